@@ -12,9 +12,12 @@ package org.rstl;
 
 import java.util.Deque;
 import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.Writer;
+import java.io.StringWriter;
 import java.io.IOException;
 
 /* This grammar uses encoded strings as a way to pass information between the lexer and the parser. 
@@ -35,6 +38,7 @@ import java.io.IOException;
     private List<Resource> resources = new ArrayList<Resource>();
     private List<String> preconditions = new ArrayList<String>();
     private List<String> variables = new ArrayList<String>();
+    private Map<String, String> varPaths = new LinkedHashMap<String, String>();
     private Statement extend = null;
     private Statement layout = null;
     private String superClassName = null;
@@ -62,11 +66,128 @@ import java.io.IOException;
       return blocks;
     }
     
+    /**
+     * Register a variable reference that the generated code looks up in the
+     * context and return the name of the static field holding its compiled form
+     */
+    private String addVarPath(String reference) {
+      String field = varPaths.get(reference);
+      if (null == field) {
+        field = "VAR_" + varPaths.size();
+        varPaths.put(reference, field);
+      }
+      return field;
+    }
+    
     public String getSuperClassName() {
     	return superClassName;
     }
     
+    public String getSuperTemplateName() {
+    	return superTemplateName;
+    }
+    
+    /**
+     * Return the names of the templates this template refers to through extends, layout, 
+     * include and widgets, in the order they are first referenced
+     */
+    public List<String> getDependencies() {
+      List<String> deps = new ArrayList<String>();
+      if (null != superTemplateName) deps.add(superTemplateName);
+      if (null != layout && !deps.contains(layout.getId())) deps.add(layout.getId());
+      for (String include : includes) {
+        if (!deps.contains(include)) deps.add(include);
+      }
+      for (Resource r : resources) {
+        String widget = r.getWidgetName();
+        if (null != widget && !widget.isEmpty() && !deps.contains(widget)) deps.add(widget);
+      }
+      return deps;
+    }
+    
+    public List<ResourceGroup> getResourceGroups() {
+      return resourceGroups;
+    }
+    
+    public List<Resource> getResources() {
+      return resources;
+    }
+    
+    public List<String> getPreconditions() {
+      return preconditions;
+    }
+    
+    public List<String> getIncludes() {
+      return includes;
+    }
+    
+    public List<String> getVariables() {
+      return variables;
+    }
+    
+    /**
+     * Return the variable references looked up in the context by the name of the static field 
+     * holding their compiled form, in the order they are first referenced
+     */
+    public Map<String, String> getVarPaths() {
+      return varPaths;
+    }
+    
+    public String getLayoutTemplateName() {
+      return (null == layout) ? null : layout.getId();
+    }
+    
+    /**
+     * Return the bytecode of the template class, generated straight from the statements 
+     * of the template without going through Java source
+     */
+    public byte[] generateBytecode(String templateName) {
+      resolveAttributePaths();
+      return new BytecodeGenerator(this).generate(templateName);
+    }
+    
+    /**
+     * Resolve the attribute paths of the json resources from the variable references of the template
+     */
+    public void resolveAttributePaths() {
+      for (Resource r : resources) {
+        if ("json".equalsIgnoreCase(r.getRepresentationFormat()) && !r.getVariableName().isEmpty()) {
+          ((ResourceImpl) r).setAttributePaths(TemplateUtil.getAttributePaths(r.getVariableName(), variables));
+        }
+      }
+    }
+    
     public void generateCode(String templateName, File outputDir) {
+      String classname = TemplateUtil.getClassName(templateName);
+      File javaFile = new File(outputDir, classname + ".java");
+      if (javaFile.exists()) {
+        javaFile.delete();
+      }
+      try {
+        Writer w = new FileWriter(javaFile);      
+        generateCode(templateName, w);
+        w.flush();
+        w.close();
+      } catch (IOException ioe) {
+        errorReporter.reportError(-1, -1, "Failed to generate Java code for template " + ioe);
+      }
+    }
+    
+    /**
+     * Return the Java source of the template class, null if the code could not be generated
+     */
+    public String generateSource(String templateName) {
+      StringWriter w = new StringWriter();
+      try {
+        generateCode(templateName, w);
+      } catch (IOException ioe) {
+        errorReporter.reportError(-1, -1, "Failed to generate Java code for template " + ioe);
+        return null;
+      }
+      return w.toString();
+    }
+    
+    private void generateCode(String templateName, Writer w) throws IOException {
       Map<String, Object> ctxt = new HashMap<String, Object>();
       String classname = TemplateUtil.getClassName(templateName);
       String packageName = TemplateUtil.getPackageName();
@@ -76,10 +197,12 @@ import java.io.IOException;
       ctxt.put("chunks", chunks);
       ctxt.put("blocks", blocks);
       ctxt.put("rgroups", resourceGroups);
+      resolveAttributePaths();
       ctxt.put("resources", resources);
       ctxt.put("preconditions", preconditions);
       ctxt.put("includes", includes);
       ctxt.put("variables", variables);
+      ctxt.put("varPaths", varPaths);
       ctxt.put("main", getMain());
       ctxt.put("true", true);
       ctxt.put("false", false);
@@ -87,21 +210,8 @@ import java.io.IOException;
       if (null != superTemplateName) ctxt.put("superTemplateName", superTemplateName);
       if (null != extend) ctxt.put("extends", extend);
       if (null != layout) ctxt.put("layout", layout);
-      File javaFile = new File(outputDir, classname + ".java");
-      if (javaFile.exists()) {
-        javaFile.delete();
-      }
       TemplateClassGenerator gen = new TemplateClassGenerator();
-      
-      try {
-        Writer w = new FileWriter(javaFile);      
-        gen.generate(w, ctxt);
-        w.flush();
-        w.close();
-      } catch (IOException ioe) {
-        errorReporter.reportError(-1, -1, "Failed to generate Java code for template " + ioe);
-      }
-    
+      gen.generate(w, ctxt);
     }
 
 	public void setErrorReporter(IErrorReporter reporter) {
@@ -293,6 +403,7 @@ forst      :  ident=FORST      {
         ForLoop loop = fac.createForLoop(identval, $ident.line);
         String varReference = loop.getCollection() + "(" + loop.getKey() +")";
         if (!variables.contains(varReference)) {variables.add(varReference);}
+        addVarPath(loop.getCollection());
         stack.peek().addStatement(loop);
         stack.push(loop);
 };
@@ -309,6 +420,7 @@ ifst : ident=IFST {
         	}
         }
         Conditional cond = fac.createConditional(identval, $ident.line);
+        addVarPath(cond.getExpression());
 	stack.peek().addStatement(cond);
 	stack.push(cond);
 };
@@ -428,6 +540,7 @@ varst : ident=VARST      {
 
 if (!variables.contains($ident.text)) {variables.add($ident.text);}
 Statement s = fac.createVariable($ident.text, $ident.line); 
+addVarPath(((Variable) s).getVariableName());
 stack.peek().addStatement(s);
 
 };
@@ -0,0 +1,747 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Generates the class of a template straight from the statements of the parsed
+ * template, without generating Java source and compiling it. The generated
+ * class behaves like the class generated from rstljavatemplate.stg and has the
+ * same shape: a static getInstance method, a method for each block and rgroup,
+ * and the methods of {@link Template}. Templates generated either way can
+ * therefore extend each other.
+ *
+ * Only the statements of the template are turned into bytecode. The chunks,
+ * resources and the template metadata are described by a {@link TemplateInfo}
+ * that is built by the static initializer of the class, and the rendering that
+ * is the same for every template is done by the static methods of
+ * {@link TemplateInfo}. The line numbers of the generated methods are the line
+ * numbers in the template.
+ */
+public class BytecodeGenerator implements Opcodes {
+	private static final String OBJECT = "java/lang/Object";
+	private static final String STRING = "java/lang/String";
+	private static final String SET = "java/util/Set";
+	private static final String TEMPLATE = "org/rstl/Template";
+	private static final String TEMPLATE_INFO = "org/rstl/TemplateInfo";
+	private static final String CONTEXT = "org/rstl/context/TemplateContext";
+	private static final String CONTEXT_FRAME = "org/rstl/context/ContextFrame";
+	private static final String LOOP_CURSOR = "org/rstl/context/LoopCursor";
+	private static final String VAR_PATH = "org/rstl/context/VarPath";
+	private static final String FOR_LOOP_COUNTER = "org/rstl/ForLoopCounter";
+	private static final String VAR_UTIL = "org/rstl/VarUtil";
+
+	private static final String D_TEMPLATE_INFO = "L" + TEMPLATE_INFO + ";";
+	private static final String D_VAR_PATH = "L" + VAR_PATH + ";";
+	private static final String D_RENDER = "(L" + CONTEXT + ";Ljava/io/Writer;Z)V";
+	private static final String D_RENDER_WITH_MAIN = "(L" + TEMPLATE + ";L" + CONTEXT + ";Ljava/io/Writer;Z)V";
+	private static final String D_INVOKE = "(Ljava/lang/String;L" + CONTEXT + ";Ljava/io/Writer;Z)V";
+
+	/*
+	 * The arguments of renderAsLayout and of the block and rgroup methods
+	 */
+	private static final int THIS = 0;
+	private static final int MAIN_TEMPLATE = 1;
+	private static final int CONTEXT_ARG = 2;
+	private static final int WRITER = 3;
+	private static final int METADATA = 4;
+
+	private final RSTLParser parser;
+	private final Map<String, Integer> chunkIndex = new HashMap<String, Integer>();
+	private final Map<Statement, Integer> resourceIndex = new IdentityHashMap<Statement, Integer>();
+	private String templateName;
+	private String className;
+	private String superName;
+	private boolean hasSuper;
+
+	public BytecodeGenerator(RSTLParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * Generate the class of a template
+	 *
+	 * @param templateName
+	 * @return the bytecode of the class
+	 */
+	public byte[] generate(String templateName) {
+		this.templateName = templateName;
+		String packagePath = TemplateUtil.getPackageName().replace('.', '/');
+		className = packagePath + '/' + TemplateUtil.getClassName(templateName);
+		hasSuper = null != parser.getSuperClassName();
+		superName = hasSuper ? packagePath + '/' + parser.getSuperClassName() : OBJECT;
+		for (Chunk chunk : parser.getChunks()) {
+			chunkIndex.put(chunk.getId(), chunkIndex.size());
+		}
+		for (Resource resource : parser.getResources()) {
+			resourceIndex.put(resource, resourceIndex.size());
+		}
+
+		ClassWriter cw = new TemplateClassWriter();
+		cw.visit(V1_7, ACC_PUBLIC | ACC_SUPER, className, null, superName, new String[] {TEMPLATE});
+		cw.visitSource(templateName, null);
+		visitField(cw, ACC_PUBLIC | ACC_FINAL | ACC_STATIC, "TEMPLATE_NAME", "Ljava/lang/String;", templateName);
+		visitField(cw, ACC_PRIVATE | ACC_FINAL | ACC_STATIC, "INFO", D_TEMPLATE_INFO, null);
+		visitField(cw, ACC_PRIVATE | ACC_FINAL | ACC_STATIC, "INSTANCE", "L" + className + ";", null);
+		for (String field : parser.getVarPaths().values()) {
+			visitField(cw, ACC_PRIVATE | ACC_FINAL | ACC_STATIC, field, D_VAR_PATH, null);
+		}
+
+		generateStaticInitializer(cw);
+		generateConstructor(cw);
+		generateGetInstance(cw);
+		for (Block block : parser.getBlocks()) {
+			generateBlock(cw, block);
+		}
+		for (ResourceGroup rgroup : parser.getResourceGroups()) {
+			generateRGroup(cw, rgroup);
+		}
+		generateRender(cw);
+		generateRenderAsLayout(cw);
+		generateInvokeMethod(cw);
+		generateGetters(cw);
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void visitField(ClassWriter cw, int access, String name, String desc, Object value) {
+		FieldVisitor fv = cw.visitField(access, name, desc, null, value);
+		fv.visitEnd();
+	}
+
+	/**
+	 * Build the description of the template, compile the variable references
+	 * and create the instance
+	 */
+	private void generateStaticInitializer(ClassWriter cw) {
+		final MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+		mv.visitCode();
+		mv.visitTypeInsn(NEW, TEMPLATE_INFO);
+		mv.visitInsn(DUP);
+		mv.visitLdcInsn(templateName);
+		pushString(mv, parser.getSuperTemplateName());
+		pushString(mv, parser.getLayoutTemplateName());
+		if (hasSuper) {
+			mv.visitMethodInsn(INVOKESTATIC, superName, "getInstance", "()L" + superName + ";", false);
+		} else {
+			mv.visitInsn(ACONST_NULL);
+		}
+		mv.visitMethodInsn(INVOKESPECIAL, TEMPLATE_INFO, "<init>",
+				"(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;L" + TEMPLATE + ";)V", false);
+		// The same description as TemplateInfo.describe builds for an interpreted template
+		TemplateInfo.describe(parser, new TemplateInfo.Describer() {
+			public void chunk(String text) {
+				mv.visitLdcInsn(text);
+				addToInfo(mv, "addChunk", "(Ljava/lang/String;)");
+			}
+
+			public void block(String name, int line) {
+				mv.visitLdcInsn(name);
+				pushInt(mv, line);
+				addToInfo(mv, "addBlock", "(Ljava/lang/String;I)");
+			}
+
+			public void rgroup(String name, int line, int startIndex, int stopIndex) {
+				mv.visitLdcInsn(name);
+				pushInt(mv, line);
+				pushInt(mv, startIndex);
+				pushInt(mv, stopIndex);
+				addToInfo(mv, "addRGroup", "(Ljava/lang/String;III)");
+			}
+
+			public void resource(String id, String widgetName, String format, String variableName,
+					String[] attributePaths, int line) {
+				mv.visitLdcInsn(id);
+				mv.visitLdcInsn(widgetName);
+				mv.visitLdcInsn(format);
+				mv.visitLdcInsn(variableName);
+				if (null == attributePaths) {
+					mv.visitInsn(ACONST_NULL);
+				} else {
+					pushInt(mv, attributePaths.length);
+					mv.visitTypeInsn(ANEWARRAY, STRING);
+					for (int ix = 0; ix < attributePaths.length; ix++) {
+						mv.visitInsn(DUP);
+						pushInt(mv, ix);
+						mv.visitLdcInsn(attributePaths[ix]);
+						mv.visitInsn(AASTORE);
+					}
+				}
+				pushInt(mv, line);
+				addToInfo(mv, "addResource", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/String;I)");
+			}
+
+			public void variable(String variable) {
+				mv.visitLdcInsn(variable);
+				addToInfo(mv, "addVariable", "(Ljava/lang/String;)");
+			}
+
+			public void precondition(String precondition) {
+				mv.visitLdcInsn(precondition);
+				addToInfo(mv, "addPrecondition", "(Ljava/lang/String;)");
+			}
+
+			public void include(String include) {
+				mv.visitLdcInsn(include);
+				addToInfo(mv, "addInclude", "(Ljava/lang/String;)");
+			}
+		});
+		addToInfo(mv, "complete", "()");
+		mv.visitFieldInsn(PUTSTATIC, className, "INFO", D_TEMPLATE_INFO);
+
+		for (Map.Entry<String, String> e : parser.getVarPaths().entrySet()) {
+			mv.visitLdcInsn(e.getKey());
+			mv.visitMethodInsn(INVOKESTATIC, VAR_PATH, "compile", "(Ljava/lang/String;)" + D_VAR_PATH, false);
+			mv.visitFieldInsn(PUTSTATIC, className, e.getValue(), D_VAR_PATH);
+		}
+
+		mv.visitTypeInsn(NEW, className);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "()V", false);
+		mv.visitFieldInsn(PUTSTATIC, className, "INSTANCE", "L" + className + ";");
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private static void addToInfo(MethodVisitor mv, String method, String argDesc) {
+		mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, method, argDesc + D_TEMPLATE_INFO, false);
+	}
+
+	private void generateConstructor(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private void generateGetInstance(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "getInstance", "()L" + className + ";", null, null);
+		mv.visitCode();
+		mv.visitFieldInsn(GETSTATIC, className, "INSTANCE", "L" + className + ";");
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+	}
+
+	private void generateBlock(ClassWriter cw, Block block) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, block.getId() + "Block", D_RENDER_WITH_MAIN, null, null);
+		mv.visitCode();
+		generateStatements(new MethodContext(mv, METADATA + 1, true), block.getStatements());
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private void generateRGroup(ClassWriter cw, ResourceGroup rgroup) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, rgroup.getId() + "RGroup", D_RENDER_WITH_MAIN, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitLdcInsn(rgroup.getId());
+		mv.visitInsn(ICONST_1);
+		mv.visitTypeInsn(ANEWARRAY, STRING);
+		mv.visitInsn(DUP);
+		mv.visitInsn(ICONST_0);
+		mv.visitLdcInsn("rgroup");
+		mv.visitInsn(AASTORE);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "writeDivBegin", "(Ljava/io/Writer;Ljava/lang/String;[Ljava/lang/String;)V", false);
+		generateStatements(new MethodContext(mv, METADATA + 1, true), rgroup.getStatements());
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "writeDivEnd", "(Ljava/io/Writer;)V", false);
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private void generateRender(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "render", D_RENDER, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitVarInsn(ILOAD, 3);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "render", "(L" + TEMPLATE + ";L" + CONTEXT + ";Ljava/io/Writer;Z)V", false);
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private void generateRenderAsLayout(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "renderAsLayout", D_RENDER_WITH_MAIN, null, null);
+		mv.visitCode();
+		int origTemplate = METADATA + 1;
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitVarInsn(ALOAD, MAIN_TEMPLATE);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "enterTemplate", "(L" + TEMPLATE + ";L" + TEMPLATE + ";L" + CONTEXT
+				+ ";)Ljava/lang/Object;", false);
+		mv.visitVarInsn(ASTORE, origTemplate);
+		if (hasSuper) {
+			loadRenderArgs(mv);
+			mv.visitMethodInsn(INVOKESPECIAL, superName, "renderAsLayout", D_RENDER_WITH_MAIN, false);
+		}
+		generateStatements(new MethodContext(mv, origTemplate + 1, false), parser.getMain());
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitVarInsn(ALOAD, origTemplate);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "exitTemplate", "(L" + CONTEXT + ";Ljava/lang/Object;)V", false);
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	/**
+	 * Dispatch on the names of the block and rgroup methods, anything this
+	 * template does not define itself is dispatched by the super template
+	 */
+	private void generateInvokeMethod(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "invokeMethod", D_INVOKE, null, null);
+		mv.visitCode();
+		for (Block block : parser.getBlocks()) {
+			generateDispatch(mv, block.getId() + "Block");
+		}
+		for (ResourceGroup rgroup : parser.getResourceGroups()) {
+			generateDispatch(mv, rgroup.getId() + "RGroup");
+		}
+		if (hasSuper) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitVarInsn(ALOAD, 3);
+			mv.visitVarInsn(ILOAD, 4);
+			mv.visitMethodInsn(INVOKESPECIAL, superName, "invokeMethod", D_INVOKE, false);
+		} else {
+			mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, "invokeFailed", "(Ljava/lang/String;)V", false);
+		}
+		mv.visitInsn(RETURN);
+		endMethod(mv);
+	}
+
+	private void generateDispatch(MethodVisitor mv, String methodName) {
+		Label next = new Label();
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitLdcInsn(methodName);
+		mv.visitMethodInsn(INVOKEVIRTUAL, STRING, "equals", "(Ljava/lang/Object;)Z", false);
+		mv.visitJumpInsn(IFEQ, next);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitInsn(ACONST_NULL);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitVarInsn(ILOAD, 4);
+		mv.visitMethodInsn(INVOKEVIRTUAL, className, methodName, D_RENDER_WITH_MAIN, false);
+		mv.visitInsn(RETURN);
+		mv.visitLabel(next);
+	}
+
+	private void generateGetters(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getTemplateName", "()Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(templateName);
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+
+		mv = cw.visitMethod(ACC_PUBLIC, "getSuperTemplateName", "()Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(TemplateInfo.nonNull(parser.getSuperTemplateName()));
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+
+		mv = cw.visitMethod(ACC_PUBLIC, "getLayoutTemplateName", "()Ljava/lang/String;", null, null);
+		mv.visitCode();
+		if (null != parser.getLayoutTemplateName()) {
+			mv.visitLdcInsn(parser.getLayoutTemplateName());
+		} else if (hasSuper) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKESPECIAL, superName, "getLayoutTemplateName", "()Ljava/lang/String;", false);
+		} else {
+			mv.visitInsn(ACONST_NULL);
+		}
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+
+		generateInfoGetter(cw, "getBlockNames", "()Ljava/util/Set;", "()Ljava/util/Set<Ljava/lang/String;>;");
+		generateInfoGetter(cw, "getRGroupNames", "()Ljava/util/Set;", "()Ljava/util/Set<Ljava/lang/String;>;");
+		generateInfoGetter(cw, "getPreconditions", "()Ljava/util/List;", "()Ljava/util/List<Ljava/lang/String;>;");
+		generateInfoGetter(cw, "getIncludes", "()Ljava/util/List;", "()Ljava/util/List<Ljava/lang/String;>;");
+
+		mv = cw.visitMethod(ACC_PUBLIC, "getRGroupRef", "(Ljava/lang/String;)Lorg/rstl/SourceRef;", null, null);
+		mv.visitCode();
+		mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, "getRGroupRef", "(Ljava/lang/String;)Lorg/rstl/SourceRef;", false);
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+
+		generateInheritedGetter(cw, "getVariables", "Ljava/util/List;", "Ljava/lang/String;");
+		generateInheritedGetter(cw, "getBlockRefs", "Ljava/util/Set;", "Lorg/rstl/SourceRef;");
+		generateInheritedGetter(cw, "getRGroupRefs", "Ljava/util/Set;", "Lorg/rstl/SourceRef;");
+		generateInheritedGetter(cw, "getResourceRefs", "Ljava/util/Set;", "Lorg/rstl/SourceRef;");
+		generateInheritedGetter(cw, "getResources", "Ljava/util/Collection;", "Lorg/rstl/ResourceRef;");
+	}
+
+	/**
+	 * Generate a getter that returns the value of the description of the
+	 * template. The generic signature lets Java source compiled against the
+	 * class see the element types.
+	 */
+	private void generateInfoGetter(ClassWriter cw, String name, String desc, String signature) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, desc, signature, null);
+		mv.visitCode();
+		mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+		mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, name, desc, false);
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+	}
+
+	/**
+	 * Generate a getter that merges the values of this template with the
+	 * values of the super template
+	 *
+	 * @param elementType
+	 *            the descriptor of the element type of the returned collection
+	 */
+	private void generateInheritedGetter(ClassWriter cw, String name, String type, String elementType) {
+		String signature = "()" + type.substring(0, type.length() - 1) + "<" + elementType + ">;";
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, "()" + type, signature, null);
+		mv.visitCode();
+		mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+		if (hasSuper) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKESPECIAL, superName, name, "()" + type, false);
+		} else {
+			mv.visitInsn(ACONST_NULL);
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, name, "(" + type + ")" + type, false);
+		mv.visitInsn(ARETURN);
+		endMethod(mv);
+	}
+
+	private void generateStatements(MethodContext m, List<Statement> statements) {
+		for (Statement s : statements) {
+			generateStatement(m, s);
+		}
+	}
+
+	private void generateStatement(MethodContext m, Statement s) {
+		MethodVisitor mv = m.mv;
+		if (s.getLine() > 0) {
+			Label line = new Label();
+			mv.visitLabel(line);
+			mv.visitLineNumber(s.getLine(), line);
+		}
+		switch (StatementType.valueOf(s.getType())) {
+		case chunkstatement:
+			mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+			mv.visitVarInsn(ALOAD, WRITER);
+			pushInt(mv, chunkIndex.get(s.getId()));
+			mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, "writeChunk", "(Ljava/io/Writer;I)V", false);
+			break;
+		case variablestatement:
+			generateVariable(mv, (Variable) s);
+			break;
+		case forstatement:
+			generateForLoop(m, (ForLoop) s);
+			break;
+		case conditionalstatement:
+			generateConditional(m, (Conditional) s);
+			break;
+		case blockstatement:
+			generateBlockCall(m, s.getId(), "Block", "getBlockNames");
+			break;
+		case rgroupstatement:
+			generateBlockCall(m, s.getId(), "RGroup", "getRGroupNames");
+			break;
+		case superblockstatement:
+			generateSuperCall(mv, s.getId(), "Block", "getBlockNames");
+			break;
+		case superrgroupstatement:
+			generateSuperCall(mv, s.getId(), "RGroup", "getRGroupNames");
+			break;
+		case resourcestatement:
+			mv.visitFieldInsn(GETSTATIC, className, "INFO", D_TEMPLATE_INFO);
+			pushInt(mv, resourceIndex.get(s));
+			mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+			mv.visitVarInsn(ALOAD, WRITER);
+			mv.visitVarInsn(ILOAD, METADATA);
+			mv.visitMethodInsn(INVOKEVIRTUAL, TEMPLATE_INFO, "fetchResource", "(IL" + CONTEXT + ";Ljava/io/Writer;Z)V", false);
+			break;
+		case includestatement:
+			generateInclude(mv, s.getId(), "renderIncludedTemplate");
+			break;
+		case includeoncestatement:
+			generateInclude(mv, s.getId(), "renderIncludedTemplateOnce");
+			break;
+		default:
+			// Declarations and custom statements do not render anything
+			break;
+		}
+	}
+
+	/**
+	 * Write the value of a variable with its filters applied, the first filter
+	 * is applied first
+	 */
+	private void generateVariable(MethodVisitor mv, Variable v) {
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		loadVarPath(mv, v.getVariableName());
+		mv.visitMethodInsn(INVOKEINTERFACE, CONTEXT, "getString", "(" + D_VAR_PATH + ")Ljava/lang/String;", true);
+		for (String filter : v.getFilters()) {
+			mv.visitMethodInsn(INVOKESTATIC, VAR_UTIL, VarUtil.getFilterMethodName(filter), "(Ljava/lang/String;)Ljava/lang/String;", false);
+		}
+		mv.visitLdcInsn(v.getId());
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, "writeVariable", "(Ljava/io/Writer;Ljava/lang/String;Ljava/lang/String;)V", false);
+	}
+
+	/**
+	 * Evaluate the collection once and bind the loop variables to slots in the
+	 * context frame, the slots are released however the loop ends
+	 */
+	private void generateForLoop(MethodContext m, ForLoop f) {
+		MethodVisitor mv = m.mv;
+		int cursor = m.newLocal();
+		int counter = m.newLocal();
+		int frame = m.newLocal();
+		int slot = m.newLocal();
+		int valueSlot = m.newLocal();
+		int thrown = m.newLocal();
+
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		loadVarPath(mv, f.getCollection());
+		mv.visitMethodInsn(INVOKEINTERFACE, CONTEXT, "get", "(" + D_VAR_PATH + ")Ljava/lang/Object;", true);
+		loadVarPath(mv, f.getCollection());
+		mv.visitMethodInsn(INVOKESTATIC, LOOP_CURSOR, "over", "(Ljava/lang/Object;Ljava/lang/Object;)L" + LOOP_CURSOR + ";", false);
+		mv.visitVarInsn(ASTORE, cursor);
+
+		mv.visitTypeInsn(NEW, FOR_LOOP_COUNTER);
+		mv.visitInsn(DUP);
+		mv.visitVarInsn(ALOAD, cursor);
+		mv.visitMethodInsn(INVOKEVIRTUAL, LOOP_CURSOR, "size", "()I", false);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitLdcInsn("forloop");
+		mv.visitMethodInsn(INVOKEINTERFACE, CONTEXT, "get", "(Ljava/lang/String;)Ljava/lang/Object;", true);
+		mv.visitMethodInsn(INVOKESPECIAL, FOR_LOOP_COUNTER, "<init>", "(ILjava/lang/Object;)V", false);
+		mv.visitVarInsn(ASTORE, counter);
+
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitMethodInsn(INVOKEINTERFACE, CONTEXT, "getFrame", "()L" + CONTEXT_FRAME + ";", true);
+		mv.visitVarInsn(ASTORE, frame);
+		mv.visitVarInsn(ALOAD, frame);
+		mv.visitLdcInsn(f.getKey());
+		mv.visitLdcInsn("forloop");
+		mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "enter", "(Ljava/lang/String;Ljava/lang/String;)I", false);
+		mv.visitVarInsn(ISTORE, slot);
+		if (null != f.getValue()) {
+			mv.visitVarInsn(ALOAD, frame);
+			mv.visitLdcInsn(f.getValue());
+			mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "enter", "(Ljava/lang/String;)I", false);
+			mv.visitVarInsn(ISTORE, valueSlot);
+		}
+		mv.visitVarInsn(ALOAD, frame);
+		mv.visitVarInsn(ILOAD, slot);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ALOAD, counter);
+		mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "set", "(ILjava/lang/Object;)V", false);
+
+		Label tryStart = new Label(), tryEnd = new Label(), handler = new Label();
+		Label loop = new Label(), done = new Label();
+		mv.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+		mv.visitLabel(tryStart);
+		mv.visitLabel(loop);
+		mv.visitVarInsn(ALOAD, cursor);
+		mv.visitMethodInsn(INVOKEVIRTUAL, LOOP_CURSOR, "next", "()Z", false);
+		mv.visitJumpInsn(IFEQ, tryEnd);
+		mv.visitVarInsn(ALOAD, frame);
+		mv.visitVarInsn(ILOAD, slot);
+		mv.visitVarInsn(ALOAD, cursor);
+		mv.visitMethodInsn(INVOKEVIRTUAL, LOOP_CURSOR, "getKey", "()Ljava/lang/Object;", false);
+		mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "set", "(ILjava/lang/Object;)V", false);
+		if (null != f.getValue()) {
+			mv.visitVarInsn(ALOAD, frame);
+			mv.visitVarInsn(ILOAD, valueSlot);
+			mv.visitVarInsn(ALOAD, cursor);
+			mv.visitMethodInsn(INVOKEVIRTUAL, LOOP_CURSOR, "getValue", "()Ljava/lang/Object;", false);
+			mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "set", "(ILjava/lang/Object;)V", false);
+		}
+		generateStatements(m, f.getStatements());
+		mv.visitVarInsn(ALOAD, counter);
+		mv.visitMethodInsn(INVOKEVIRTUAL, FOR_LOOP_COUNTER, "increment", "()V", false);
+		mv.visitJumpInsn(GOTO, loop);
+		mv.visitLabel(tryEnd);
+		generateFrameExit(mv, frame, slot);
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(handler);
+		mv.visitVarInsn(ASTORE, thrown);
+		generateFrameExit(mv, frame, slot);
+		mv.visitVarInsn(ALOAD, thrown);
+		mv.visitInsn(ATHROW);
+		mv.visitLabel(done);
+	}
+
+	private static void generateFrameExit(MethodVisitor mv, int frame, int slot) {
+		mv.visitVarInsn(ALOAD, frame);
+		mv.visitVarInsn(ILOAD, slot);
+		mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT_FRAME, "exit", "(I)V", false);
+	}
+
+	private void generateConditional(MethodContext m, Conditional cond) {
+		MethodVisitor mv = m.mv;
+		Label elseClause = new Label(), done = new Label();
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		loadVarPath(mv, cond.getExpression());
+		mv.visitMethodInsn(INVOKEINTERFACE, CONTEXT, "getBoolean", "(" + D_VAR_PATH + ")Z", true);
+		mv.visitJumpInsn(IFEQ, elseClause);
+		generateStatements(m, cond.getIfClause().getStatements());
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(elseClause);
+		if (null != cond.getElseClause()) {
+			generateStatements(m, cond.getElseClause().getStatements());
+		}
+		mv.visitLabel(done);
+	}
+
+	/**
+	 * Render a block or rgroup with the definition of the main template if it
+	 * has one. Outside of blocks a block the super template defines has
+	 * already been rendered by the super template and is skipped.
+	 */
+	private void generateBlockCall(MethodContext m, String id, String suffix, String namesGetter) {
+		MethodVisitor mv = m.mv;
+		Label own = new Label(), done = new Label();
+		if (!m.inBlock && hasSuper) {
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitMethodInsn(INVOKESPECIAL, superName, namesGetter, "()Ljava/util/Set;", false);
+			mv.visitLdcInsn(id);
+			mv.visitMethodInsn(INVOKEINTERFACE, SET, "contains", "(Ljava/lang/Object;)Z", true);
+			mv.visitJumpInsn(IFNE, done);
+		}
+		mv.visitVarInsn(ALOAD, MAIN_TEMPLATE);
+		mv.visitJumpInsn(IFNULL, own);
+		mv.visitVarInsn(ALOAD, MAIN_TEMPLATE);
+		mv.visitMethodInsn(INVOKEINTERFACE, TEMPLATE, namesGetter, "()Ljava/util/Set;", true);
+		mv.visitLdcInsn(id);
+		mv.visitMethodInsn(INVOKEINTERFACE, SET, "contains", "(Ljava/lang/Object;)Z", true);
+		mv.visitJumpInsn(IFEQ, own);
+		mv.visitVarInsn(ALOAD, MAIN_TEMPLATE);
+		mv.visitLdcInsn(id + suffix);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitVarInsn(ILOAD, METADATA);
+		mv.visitMethodInsn(INVOKEINTERFACE, TEMPLATE, "invokeMethod", D_INVOKE, true);
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(own);
+		loadRenderArgs(mv);
+		mv.visitMethodInsn(INVOKEVIRTUAL, className, id + suffix, D_RENDER_WITH_MAIN, false);
+		mv.visitLabel(done);
+	}
+
+	/**
+	 * Render the definition of a block or rgroup in the super template
+	 */
+	private void generateSuperCall(MethodVisitor mv, String id, String suffix, String namesGetter) {
+		if (!hasSuper) {
+			return;
+		}
+		Label done = new Label();
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitMethodInsn(INVOKESPECIAL, superName, namesGetter, "()Ljava/util/Set;", false);
+		mv.visitLdcInsn(id);
+		mv.visitMethodInsn(INVOKEINTERFACE, SET, "contains", "(Ljava/lang/Object;)Z", true);
+		mv.visitJumpInsn(IFEQ, done);
+		loadRenderArgs(mv);
+		mv.visitMethodInsn(INVOKESPECIAL, superName, id + suffix, D_RENDER_WITH_MAIN, false);
+		mv.visitLabel(done);
+	}
+
+	private void generateInclude(MethodVisitor mv, String templateName, String method) {
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitLdcInsn(templateName);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitVarInsn(ILOAD, METADATA);
+		mv.visitMethodInsn(INVOKESTATIC, TEMPLATE_INFO, method, "(L" + TEMPLATE + ";Ljava/lang/String;L" + CONTEXT
+				+ ";Ljava/io/Writer;Z)V", false);
+	}
+
+	private static void loadRenderArgs(MethodVisitor mv) {
+		mv.visitVarInsn(ALOAD, THIS);
+		mv.visitVarInsn(ALOAD, MAIN_TEMPLATE);
+		mv.visitVarInsn(ALOAD, CONTEXT_ARG);
+		mv.visitVarInsn(ALOAD, WRITER);
+		mv.visitVarInsn(ILOAD, METADATA);
+	}
+
+	private void loadVarPath(MethodVisitor mv, String reference) {
+		mv.visitFieldInsn(GETSTATIC, className, parser.getVarPaths().get(reference), D_VAR_PATH);
+	}
+
+	private static void pushString(MethodVisitor mv, String s) {
+		if (null == s) {
+			mv.visitInsn(ACONST_NULL);
+		} else {
+			mv.visitLdcInsn(s);
+		}
+	}
+
+	private static void pushInt(MethodVisitor mv, int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+
+	private static void endMethod(MethodVisitor mv) {
+		// The maximum stack size and the frames are computed by the class writer
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * The state of the method being generated
+	 */
+	private static final class MethodContext {
+		final MethodVisitor mv;
+		final boolean inBlock;
+		private int nextLocal;
+
+		MethodContext(MethodVisitor mv, int firstLocal, boolean inBlock) {
+			this.mv = mv;
+			this.nextLocal = firstLocal;
+			this.inBlock = inBlock;
+		}
+
+		int newLocal() {
+			return nextLocal++;
+		}
+	}
+
+	/**
+	 * Computes the frames without loading the classes of the templates, the
+	 * generated code never merges values of different reference types
+	 */
+	private static final class TemplateClassWriter extends ClassWriter {
+		TemplateClassWriter() {
+			super(COMPUTE_FRAMES);
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			return OBJECT;
+		}
+	}
+}
@@ -6,12 +6,14 @@ package org.rstl;
 
 public class Chunk extends GenericStatementImpl {
 	private String value;
+	private String text;
 	private String origValue;
 	private int startIndex;
 
 	protected Chunk(String id, String value, String origValue, int line) {
 		super(StatementType.chunkstatement, id, line);
 		this.value = value;
+		this.text = origValue;
 		this.origValue = origValue;
 	}
 
@@ -23,6 +25,14 @@ public class Chunk extends GenericStatementImpl {
 		return value;
 	}
 
+	/**
+	 * 
+	 * @return the text rendered for this statement, the literal value before it is escaped
+	 */
+	public String getText() {
+		return text;
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(super.toString());
@@ -41,6 +51,7 @@ public class Chunk extends GenericStatementImpl {
 			String remaining = origValue.substring(lastlinefeed  + 1);
 			if (remaining.trim().isEmpty()) {
 				String newvalue = origValue.substring(startIndex, lastlinefeed + 1);
+				text = newvalue;
 				value = TemplateUtil.literalize(newvalue);
 			}
 		}
@@ -57,6 +68,7 @@ public class Chunk extends GenericStatementImpl {
 		}
 		if (startIndex > 0) {
 			String newValue = origValue.substring(startIndex);
+			text = newValue;
 			value = TemplateUtil.literalize(newValue);
 		}
 	}
@@ -7,8 +7,6 @@ package org.rstl;
 import java.util.List;
 
 public class ConditionalImpl extends GenericStatementImpl implements Conditional {
-	private static int idGen = 0;
-	
 	private String expr;
 	private Block ifClauseBlock = null;
 	private Block elseClauseBlock = null;
@@ -20,7 +18,7 @@ public class ConditionalImpl extends GenericStatementImpl implements Conditional
 	}
 	
 	protected ConditionalImpl(String expr, int line, StatementFactory fac) {
-		super(StatementType.conditionalstatement, String.valueOf(idGen++), line);
+		super(StatementType.conditionalstatement, String.valueOf(fac.getStatementId()), line);
 		this.expr = expr;
 		this.fac = fac;
 		ifClauseBlock = new BlockImpl("_internal_if_block_" + getId(), line, fac);
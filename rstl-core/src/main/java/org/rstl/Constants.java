@@ -13,4 +13,5 @@ public class Constants {
 	public static final String DIVID_GENERATOR      = "$__divid_gen";
 	public static final String TEMPLATES_INCLUDED   = "$__templates_included";
 	public static final String TEMPLATEREF			= "$__template";
+	public static final String PREFETCHED_RESOURCES	= "$__prefetched";
 }
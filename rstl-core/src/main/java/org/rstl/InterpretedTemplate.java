@@ -0,0 +1,410 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rstl.context.ContextFrame;
+import org.rstl.context.LoopCursor;
+import org.rstl.context.TemplateContext;
+import org.rstl.context.VarPath;
+
+/**
+ * A template rendered by walking the statements of the parsed template, so it
+ * is available as soon as it is parsed, without generating and compiling a
+ * class. It renders the same output as the class generated for the template.
+ *
+ * A template that extends another template holds the interpreted template it
+ * extends. Blocks and rgroups are resolved the way the methods of generated
+ * classes are: a definition in the most derived template wins, and super
+ * block statements render the definition of the extended template.
+ *
+ * A template group renders edited templates with the interpreter until they
+ * have been rendered often enough to be worth compiling, see
+ * {@link TemplateGroup#setPromotionThreshold(int)}. The template then asks the
+ * group to compile it in the background.
+ */
+public class InterpretedTemplate implements Template {
+	private static final String CLASS_NAME = InterpretedTemplate.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	private final String templateName;
+	private final InterpretedTemplate superTemplate;
+	private final TemplateInfo info;
+	private final List<Statement> main;
+	private final Map<String, Block> blocks = new HashMap<String, Block>();
+	private final Map<String, ResourceGroup> rgroups = new HashMap<String, ResourceGroup>();
+	private final Map<String, Integer> chunkIndex = new HashMap<String, Integer>();
+	private final Map<Statement, Integer> resourceIndex = new IdentityHashMap<Statement, Integer>();
+	private final Map<String, VarPath> varPaths = new HashMap<String, VarPath>();
+
+	private final TemplateGroup group;
+	private final int promotionThreshold;
+	private final AtomicInteger renderCount = new AtomicInteger();
+
+	/**
+	 * @param templateName
+	 * @param parser
+	 *            the parser of the template
+	 * @param superTemplate
+	 *            the template that is extended, null if none
+	 * @param group
+	 *            the template group that is told when the template is hot,
+	 *            may be null
+	 * @param promotionThreshold
+	 *            the number of renders after which the template is hot, 0 if
+	 *            it is never hot
+	 */
+	InterpretedTemplate(String templateName, RSTLParser parser, InterpretedTemplate superTemplate, TemplateGroup group,
+			int promotionThreshold) {
+		this.templateName = templateName;
+		this.superTemplate = superTemplate;
+		this.group = group;
+		this.promotionThreshold = promotionThreshold;
+		parser.resolveAttributePaths();
+		this.info = TemplateInfo.describe(parser, templateName, superTemplate);
+		this.main = parser.getMain();
+		for (Block block : parser.getBlocks()) {
+			blocks.put(block.getId(), block);
+		}
+		for (ResourceGroup rgroup : parser.getResourceGroups()) {
+			rgroups.put(rgroup.getId(), rgroup);
+		}
+		for (Chunk chunk : parser.getChunks()) {
+			chunkIndex.put(chunk.getId(), chunkIndex.size());
+		}
+		for (Resource resource : parser.getResources()) {
+			resourceIndex.put(resource, resourceIndex.size());
+		}
+		for (String reference : parser.getVarPaths().keySet()) {
+			varPaths.put(reference, VarPath.compile(reference));
+		}
+	}
+
+	/**
+	 * Parse a template along with the templates it extends
+	 *
+	 * @param templateName
+	 * @param templateDirs
+	 *            the directories to look for the template and the templates it
+	 *            extends, in order
+	 * @param parsed
+	 *            the templates parsed so far by name, the parsed templates are
+	 *            added
+	 * @param group
+	 *            the template group that is told when the template is hot,
+	 *            may be null
+	 * @param promotionThreshold
+	 *            the number of renders after which the template is hot, 0 if
+	 *            it is never hot
+	 * @param errorList
+	 *            receives the errors and warnings in the templates
+	 * @return the template, null if it or a template it extends could not be
+	 *         found or has syntax errors
+	 */
+	static InterpretedTemplate parse(String templateName, List<File> templateDirs, Map<String, InterpretedTemplate> parsed,
+			TemplateGroup group, int promotionThreshold, List<String> errorList) {
+		return parse(templateName, templateDirs, parsed, group, promotionThreshold, errorList, new HashSet<String>());
+	}
+
+	private static InterpretedTemplate parse(String templateName, List<File> templateDirs,
+			Map<String, InterpretedTemplate> parsed, TemplateGroup group, int promotionThreshold, List<String> errorList,
+			Set<String> inProgress) {
+		InterpretedTemplate template = parsed.get(templateName);
+		if (null != template) {
+			return template;
+		}
+		if (!inProgress.add(templateName)) {
+			errorList.add("Template " + templateName + " extends itself");
+			return null;
+		}
+		File templateDir = null;
+		for (File dir : templateDirs) {
+			if (new File(dir, templateName).isFile()) {
+				templateDir = dir;
+				break;
+			}
+		}
+		if (null == templateDir) {
+			errorList.add("Failed to find template " + templateName);
+			return null;
+		}
+		RSTLParser parser = TemplateUtil.parse(templateDir, templateName, errorList);
+		if (null == parser || parser.getNumberOfSyntaxErrors() > 0) {
+			// Warnings, such as duplicate definitions, do not keep the template from rendering
+			return null;
+		}
+		InterpretedTemplate superTemplate = null;
+		if (null != parser.getSuperTemplateName()) {
+			superTemplate = parse(parser.getSuperTemplateName(), templateDirs, parsed, group, 0, errorList, inProgress);
+			if (null == superTemplate) {
+				return null;
+			}
+		}
+		template = new InterpretedTemplate(templateName, parser, superTemplate, group, promotionThreshold);
+		parsed.put(templateName, template);
+		return template;
+	}
+
+	/**
+	 * @return the number of times the template has been rendered
+	 */
+	public int getRenderCount() {
+		return renderCount.get();
+	}
+
+	public void render(TemplateContext c, Writer w, boolean includeTemplateMetadata) {
+		if (renderCount.incrementAndGet() == promotionThreshold && null != group) {
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "render", "Template " + templateName + " is hot");
+			group.promote(templateName);
+		}
+		TemplateInfo.render(this, c, w, includeTemplateMetadata);
+	}
+
+	public void renderAsLayout(Template mainTemplate, TemplateContext c, Writer w, boolean includeTemplateMetadata) {
+		Object origTemplate = TemplateInfo.enterTemplate(this, mainTemplate, c);
+		renderMain(this, mainTemplate, c, w, includeTemplateMetadata);
+		TemplateInfo.exitTemplate(c, origTemplate);
+	}
+
+	/**
+	 * Render the main statements of the extended templates and then of this
+	 * template
+	 */
+	private void renderMain(InterpretedTemplate self, Template mainTemplate, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata) {
+		if (null != superTemplate) {
+			superTemplate.renderMain(self, mainTemplate, c, w, includeTemplateMetadata);
+		}
+		execute(self, main, mainTemplate, c, w, includeTemplateMetadata, false);
+	}
+
+	public void invokeMethod(String methodName, TemplateContext c, Writer w, boolean includeMetadata) {
+		if (methodName.endsWith("Block")
+				&& renderBlock(this, methodName.substring(0, methodName.length() - 5), null, c, w, includeMetadata)) {
+			return;
+		}
+		if (methodName.endsWith("RGroup")
+				&& renderRGroup(this, methodName.substring(0, methodName.length() - 6), null, c, w, includeMetadata)) {
+			return;
+		}
+		InterpretedTemplate root = this;
+		while (null != root.superTemplate) {
+			root = root.superTemplate;
+		}
+		root.info.invokeFailed(methodName);
+	}
+
+	/**
+	 * Render the first definition of a block found in this template and the
+	 * templates it extends
+	 *
+	 * @return false if the block is not defined
+	 */
+	private boolean renderBlock(InterpretedTemplate self, String name, Template mainTemplate, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata) {
+		for (InterpretedTemplate t = this; null != t; t = t.superTemplate) {
+			Block block = t.blocks.get(name);
+			if (null != block) {
+				t.execute(self, block.getStatements(), mainTemplate, c, w, includeTemplateMetadata, true);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Render the first definition of an rgroup found in this template and the
+	 * templates it extends
+	 *
+	 * @return false if the rgroup is not defined
+	 */
+	private boolean renderRGroup(InterpretedTemplate self, String name, Template mainTemplate, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata) {
+		for (InterpretedTemplate t = this; null != t; t = t.superTemplate) {
+			ResourceGroup rgroup = t.rgroups.get(name);
+			if (null != rgroup) {
+				TemplateInfo.writeDivBegin(w, name, new String[] {"rgroup"});
+				t.execute(self, rgroup.getStatements(), mainTemplate, c, w, includeTemplateMetadata, true);
+				TemplateInfo.writeDivEnd(w);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Execute statements of this template
+	 *
+	 * @param self
+	 *            the most derived template being rendered, which resolves
+	 *            blocks and rgroups
+	 * @param inBlock
+	 *            true if the statements are part of a block or rgroup
+	 */
+	private void execute(InterpretedTemplate self, List<Statement> statements, Template mainTemplate, TemplateContext c,
+			Writer w, boolean includeTemplateMetadata, boolean inBlock) {
+		for (Statement s : statements) {
+			switch (StatementType.valueOf(s.getType())) {
+			case chunkstatement:
+				info.writeChunk(w, chunkIndex.get(s.getId()));
+				break;
+			case variablestatement:
+				Variable v = (Variable) s;
+				String value = c.getString(varPaths.get(v.getVariableName()));
+				for (String filter : v.getFilters()) {
+					value = VarUtil.applyFilter(filter, value);
+				}
+				TemplateInfo.writeVariable(w, value, v.getId());
+				break;
+			case forstatement:
+				executeForLoop(self, (ForLoop) s, mainTemplate, c, w, includeTemplateMetadata, inBlock);
+				break;
+			case conditionalstatement:
+				Conditional cond = (Conditional) s;
+				if (c.getBoolean(varPaths.get(cond.getExpression()))) {
+					execute(self, cond.getIfClause().getStatements(), mainTemplate, c, w, includeTemplateMetadata, inBlock);
+				} else if (null != cond.getElseClause()) {
+					execute(self, cond.getElseClause().getStatements(), mainTemplate, c, w, includeTemplateMetadata, inBlock);
+				}
+				break;
+			case blockstatement:
+				if (inBlock || null == superTemplate || !superTemplate.getBlockNames().contains(s.getId())) {
+					// If super defines this block it has already been rendered by super
+					if (null != mainTemplate && mainTemplate.getBlockNames().contains(s.getId())) {
+						mainTemplate.invokeMethod(s.getId() + "Block", c, w, includeTemplateMetadata);
+					} else {
+						self.renderBlock(self, s.getId(), mainTemplate, c, w, includeTemplateMetadata);
+					}
+				}
+				break;
+			case rgroupstatement:
+				if (inBlock || null == superTemplate || !superTemplate.getRGroupNames().contains(s.getId())) {
+					if (null != mainTemplate && mainTemplate.getRGroupNames().contains(s.getId())) {
+						mainTemplate.invokeMethod(s.getId() + "RGroup", c, w, includeTemplateMetadata);
+					} else {
+						self.renderRGroup(self, s.getId(), mainTemplate, c, w, includeTemplateMetadata);
+					}
+				}
+				break;
+			case superblockstatement:
+				if (null != superTemplate && superTemplate.getBlockNames().contains(s.getId())) {
+					superTemplate.renderBlock(self, s.getId(), mainTemplate, c, w, includeTemplateMetadata);
+				}
+				break;
+			case superrgroupstatement:
+				if (null != superTemplate && superTemplate.getRGroupNames().contains(s.getId())) {
+					superTemplate.renderRGroup(self, s.getId(), mainTemplate, c, w, includeTemplateMetadata);
+				}
+				break;
+			case resourcestatement:
+				info.fetchResource(resourceIndex.get(s), c, w, includeTemplateMetadata);
+				break;
+			case includestatement:
+				TemplateInfo.renderIncludedTemplate(self, s.getId(), c, w, includeTemplateMetadata);
+				break;
+			case includeoncestatement:
+				TemplateInfo.renderIncludedTemplateOnce(self, s.getId(), c, w, includeTemplateMetadata);
+				break;
+			default:
+				// Declarations and custom statements do not render anything
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Evaluate the collection once and bind the loop variables to slots in the
+	 * context frame
+	 */
+	private void executeForLoop(InterpretedTemplate self, ForLoop f, Template mainTemplate, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata, boolean inBlock) {
+		VarPath collection = varPaths.get(f.getCollection());
+		LoopCursor cursor = LoopCursor.over(c.get(collection), collection);
+		ForLoopCounter counter = new ForLoopCounter(cursor.size(), c.get("forloop"));
+		ContextFrame frame = c.getFrame();
+		int slot = frame.enter(f.getKey(), "forloop");
+		int valueSlot = (null == f.getValue()) ? -1 : frame.enter(f.getValue());
+		frame.set(slot + 1, counter);
+		try {
+			while (cursor.next()) {
+				frame.set(slot, cursor.getKey());
+				if (-1 != valueSlot) {
+					frame.set(valueSlot, cursor.getValue());
+				}
+				execute(self, f.getStatements(), mainTemplate, c, w, includeTemplateMetadata, inBlock);
+				counter.increment();
+			}
+		} finally {
+			frame.exit(slot);
+		}
+	}
+
+	public List<String> getVariables() {
+		return info.getVariables((null == superTemplate) ? null : superTemplate.getVariables());
+	}
+
+	public Set<SourceRef> getBlockRefs() {
+		return info.getBlockRefs((null == superTemplate) ? null : superTemplate.getBlockRefs());
+	}
+
+	public Set<SourceRef> getRGroupRefs() {
+		return info.getRGroupRefs((null == superTemplate) ? null : superTemplate.getRGroupRefs());
+	}
+
+	public Set<SourceRef> getResourceRefs() {
+		return info.getResourceRefs((null == superTemplate) ? null : superTemplate.getResourceRefs());
+	}
+
+	public Collection<ResourceRef> getResources() {
+		return info.getResources((null == superTemplate) ? null : superTemplate.getResources());
+	}
+
+	public Set<String> getBlockNames() {
+		return info.getBlockNames();
+	}
+
+	public Set<String> getRGroupNames() {
+		return info.getRGroupNames();
+	}
+
+	public SourceRef getRGroupRef(String name) {
+		return info.getRGroupRef(name);
+	}
+
+	public List<String> getPreconditions() {
+		return info.getPreconditions();
+	}
+
+	public List<String> getIncludes() {
+		return info.getIncludes();
+	}
+
+	public String getSuperTemplateName() {
+		return info.getSuperTemplateName();
+	}
+
+	public String getLayoutTemplateName() {
+		if (null != info.getLayoutTemplateName()) {
+			return info.getLayoutTemplateName();
+		}
+		return (null == superTemplate) ? null : superTemplate.getLayoutTemplateName();
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+}
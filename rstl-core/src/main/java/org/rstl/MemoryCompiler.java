@@ -0,0 +1,230 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+import org.rstl.io.StreamUtil;
+
+/**
+ * Compiles generated template classes held in memory with the JDT compiler,
+ * without writing the sources or reading and writing class files. Classes the
+ * sources refer to are read from a class loader; the classes of other
+ * template groups are taken straight from their {@link TemplateClassLoader}.
+ *
+ * Classes are compiled with the same settings as the batch compile of a
+ * template directory: Java 7, line number and source file attributes, and
+ * only errors are reported. Like the batch compiler, no class files are
+ * produced for a source with errors.
+ */
+public class MemoryCompiler {
+	private static final String CLASS_NAME = MemoryCompiler.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+	private static final String JAVA_VERSION = CompilerOptions.VERSION_1_7;
+
+	private MemoryCompiler() {
+	}
+
+	/**
+	 * Compile classes from source
+	 *
+	 * @param sources
+	 *            the source of each class by its fully qualified name
+	 * @param loader
+	 *            the class loader for the classes the sources refer to
+	 * @param errWriter
+	 *            receives the compile errors, may be null
+	 * @return the bytecode of each compiled class, including nested classes,
+	 *         by its binary name
+	 */
+	public static Map<String, byte[]> compile(Map<String, String> sources, ClassLoader loader, final PrintWriter errWriter) {
+		final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+		if (sources.isEmpty()) {
+			return classes;
+		}
+		ICompilationUnit[] units = new ICompilationUnit[sources.size()];
+		int ix = 0;
+		for (Map.Entry<String, String> e : sources.entrySet()) {
+			units[ix++] = new SourceUnit(e.getKey(), e.getValue());
+		}
+
+		ICompilerRequestor requestor = new ICompilerRequestor() {
+			private int errorCount = 0;
+
+			public void acceptResult(CompilationResult result) {
+				if (result.hasErrors()) {
+					for (CategorizedProblem problem : result.getErrors()) {
+						if (null != errWriter) {
+							errWriter.println("----------");
+							errWriter.println(++errorCount + ". ERROR in " + new String(result.getFileName()) + " (at line "
+									+ problem.getSourceLineNumber() + ")");
+							errWriter.println(problem.getMessage());
+						}
+					}
+					return;
+				}
+				for (ClassFile cf : result.getClassFiles()) {
+					classes.put(new String(CharOperation.concatWith(cf.getCompoundName(), '.')), cf.getBytes());
+				}
+			}
+		};
+
+		Compiler compiler = new Compiler(new NameEnvironment(sources, loader),
+				DefaultErrorHandlingPolicies.proceedWithAllProblems(), new CompilerOptions(getSettings()), requestor,
+				new DefaultProblemFactory(Locale.getDefault()));
+		compiler.compile(units);
+		if (null != errWriter) {
+			errWriter.flush();
+		}
+		return classes;
+	}
+
+	private static Map<String, String> getSettings() {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put(CompilerOptions.OPTION_Source, JAVA_VERSION);
+		settings.put(CompilerOptions.OPTION_Compliance, JAVA_VERSION);
+		settings.put(CompilerOptions.OPTION_TargetPlatform, JAVA_VERSION);
+		settings.put(CompilerOptions.OPTION_Encoding, StreamUtil.UTF8.name());
+		settings.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+		settings.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+		settings.put(CompilerOptions.OPTION_LocalVariableAttribute, CompilerOptions.DO_NOT_GENERATE);
+		settings.put(CompilerOptions.OPTION_ReportDeprecation, CompilerOptions.IGNORE);
+		settings.put(CompilerOptions.OPTION_ReportUnusedImport, CompilerOptions.IGNORE);
+		return settings;
+	}
+
+	/**
+	 * A source held in memory
+	 */
+	private static final class SourceUnit implements ICompilationUnit {
+		private final String className;
+		private final char[] contents;
+
+		SourceUnit(String className, String source) {
+			this.className = className;
+			this.contents = source.toCharArray();
+		}
+
+		public char[] getFileName() {
+			return (className.replace('.', '/') + ".java").toCharArray();
+		}
+
+		public char[] getContents() {
+			return contents;
+		}
+
+		public char[] getMainTypeName() {
+			return className.substring(className.lastIndexOf('.') + 1).toCharArray();
+		}
+
+		public char[][] getPackageName() {
+			int dotAt = className.lastIndexOf('.');
+			return (-1 == dotAt) ? CharOperation.NO_CHAR_CHAR : CharOperation.splitOn('.', className.substring(0, dotAt).toCharArray());
+		}
+
+		public boolean ignoreOptionalProblems() {
+			return false;
+		}
+	}
+
+	/**
+	 * Resolves types from the sources being compiled and from a class loader
+	 */
+	private static final class NameEnvironment implements INameEnvironment {
+		private final Map<String, String> sources;
+		private final ClassLoader loader;
+		private final Map<String, Boolean> packages = new HashMap<String, Boolean>();
+
+		NameEnvironment(Map<String, String> sources, ClassLoader loader) {
+			this.sources = sources;
+			this.loader = (null == loader) ? MemoryCompiler.class.getClassLoader() : loader;
+		}
+
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			return findType(new String(CharOperation.concatWith(compoundTypeName, '.')));
+		}
+
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			return findType(new String(CharOperation.concatWith(packageName, typeName, '.')));
+		}
+
+		private NameEnvironmentAnswer findType(String className) {
+			String source = sources.get(className);
+			if (null != source) {
+				return new NameEnvironmentAnswer(new SourceUnit(className, source), null);
+			}
+			byte[] bytes = getClassBytes(className);
+			if (null == bytes) {
+				return null;
+			}
+			try {
+				return new NameEnvironmentAnswer(new ClassFileReader(bytes, (className.replace('.', '/') + ".class").toCharArray(), true), null);
+			} catch (ClassFormatException e) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "findType", "Failed to read class " + className, e);
+				return null;
+			}
+		}
+
+		private byte[] getClassBytes(String className) {
+			if (loader instanceof TemplateClassLoader) {
+				byte[] bytes = ((TemplateClassLoader) loader).getClassBytes(className);
+				if (null != bytes) {
+					return bytes;
+				}
+			}
+			InputStream is = loader.getResourceAsStream(className.replace('.', '/') + ".class");
+			if (null == is) {
+				return null;
+			}
+			try {
+				try {
+					return StreamUtil.readFully(is);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "getClassBytes", "Failed to read class " + className, e);
+				return null;
+			}
+		}
+
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			String name = new String((null == parentPackageName) ? packageName : CharOperation.concatWith(parentPackageName, packageName, '.'));
+			Boolean isPackage = packages.get(name);
+			if (null == isPackage) {
+				// Anything that is not a type is taken to be a package
+				isPackage = !sources.containsKey(name) && null == getClassBytes(name);
+				packages.put(name, isPackage);
+			}
+			return isPackage;
+		}
+
+		public void cleanup() {
+			packages.clear();
+		}
+	}
+}
@@ -4,6 +4,7 @@
 
 package org.rstl;
 
+import java.util.List;
 
 public interface Resource extends Statement {
 	
@@ -31,4 +32,10 @@ public interface Resource extends Statement {
 	 * @return
 	 */
 	public String getTitle();
+	
+	/**
+	 * Get the attribute paths of the resource variable that the template dereferences
+	 * @return the attribute paths, or null if the template uses the whole variable
+	 */
+	public List<String> getAttributePaths();
 }
@@ -7,7 +7,6 @@ package org.rstl;
 import java.util.List;
 
 public class ResourceGroup extends GenericStatementImpl implements Block {
-	private static int sequence = 0;
 	private Block block;
 
 	
@@ -17,7 +16,7 @@ public class ResourceGroup extends GenericStatementImpl implements Block {
 	
 	protected ResourceGroup(String rGroupId, int line, int startIndex, StatementFactory fac) {
 		super(StatementType.rgroupstatement, rGroupId, line, startIndex);
-		block = new BlockImpl("_internal_rgroup_block_" + sequence++ + rGroupId, line, fac);
+		block = new BlockImpl("_internal_rgroup_block_" + fac.getStatementId() + rGroupId, line, fac);
 	}
 
 	public void addStatement(Statement s) {
@@ -4,12 +4,15 @@
 
 package org.rstl;
 
+import java.util.List;
+
 public class ResourceImpl extends GenericStatementImpl implements Resource {
 
 	private String widgetName = "";
 	private String variableName = "";
 	private String representationFormat = "";
 	private String title = "";
+	private List<String> attributePaths = null;
 	
 	protected ResourceImpl(String resourceId, String format) {
 		this(resourceId, null, null, null, format, 0);
@@ -71,6 +74,18 @@ public class ResourceImpl extends GenericStatementImpl implements Resource {
 		return title;
 	}
 	
+	public List<String> getAttributePaths() {
+		return attributePaths;
+	}
+	
+	/**
+	 * Set the attribute paths of the resource variable that the template dereferences
+	 * @param attributePaths
+	 */
+	public void setAttributePaths(List<String> attributePaths) {
+		this.attributePaths = attributePaths;
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -0,0 +1,321 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rstl.context.TemplateContext;
+import org.rstl.resource.client.Representation;
+
+/**
+ * Fetches the representations of all the resources referenced by a template
+ * before the template is rendered. The resources declared by the template, its
+ * ancestors, its layout and its included templates are collected and every
+ * resource whose identifier can be resolved from the context is fetched
+ * concurrently on a bounded pool of threads. When the template renders a
+ * resource, it waits for the prefetched representation instead of fetching
+ * it, so the latency of a page is that of the slowest resource rather than the
+ * sum of all of them.
+ * 
+ * Resources whose identifiers reference variables that are only assigned
+ * while rendering (for instance loop variables or variables bound by
+ * resource.json) are not prefetched and are fetched when rendered.
+ * 
+ * A prefetched representation is not buffered, so its entity can be streamed
+ * to the writer. It is handed to the first reference that renders the
+ * resource, other references to the same resource fetch it again.
+ * Representations that are not rendered are released when the render
+ * finishes.
+ */
+public class ResourcePrefetcher {
+	private static final String CLASS_NAME = ResourcePrefetcher.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	public static final int DEFAULT_THREADS = 32;
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+	public static final long DEFAULT_TIMEOUT = 15000;
+
+	private static volatile boolean enabled = true;
+	private static int threads = DEFAULT_THREADS;
+	private static volatile long timeout = DEFAULT_TIMEOUT;
+	private static ThreadPoolExecutor executor;
+
+	private ResourcePrefetcher() {
+	}
+
+	/**
+	 * Start fetching the resources referenced by the template and record the
+	 * pending fetches in the template context. The pending fetches must be
+	 * removed with {@link #release(TemplateContext)} when the render finishes.
+	 * 
+	 * @param template
+	 *            the template about to be rendered
+	 * @param ctxt
+	 *            the context the template will be rendered with
+	 */
+	public static void prefetch(Template template, TemplateContext ctxt) {
+		if (!enabled || null == template || null == ctxt) {
+			return;
+		}
+		Set<ResourceRef> refs = new HashSet<ResourceRef>();
+		TemplateGroup tg = (TemplateGroup) ctxt.get(Constants.TEMPLATE_GROUP);
+		collectResources(template, tg, refs, new HashSet<String>());
+		if (refs.isEmpty()) {
+			return;
+		}
+
+		// Fresh for every render, so a reused context never serves the bodies of an earlier render
+		Map<String, PrefetchTask> pending = new HashMap<String, PrefetchTask>();
+		ThreadPoolExecutor exec = getExecutor();
+		for (final ResourceRef ref : refs) {
+			final String resId = ref.getResolvedId(ctxt, false);
+			if (resId.isEmpty()) {
+				// Depends on variables that are assigned during rendering
+				continue;
+			}
+			String key = getKey(resId, ref.getFormat());
+			if (pending.containsKey(key)) {
+				continue;
+			}
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "prefetch", "Prefetching resource " + resId);
+			PrefetchTask task = new PrefetchTask(ref, resId);
+			exec.execute(task);
+			pending.put(key, task);
+		}
+		ctxt.put(Constants.PREFETCHED_RESOURCES, pending);
+	}
+
+	/**
+	 * Forget the pending fetches recorded in the template context by
+	 * {@link #prefetch(Template, TemplateContext)} and release the
+	 * representations that were not rendered
+	 * 
+	 * @param ctxt
+	 *            the template context the template was rendered with
+	 */
+	public static void release(TemplateContext ctxt) {
+		if (null == ctxt) {
+			return;
+		}
+		Map<String, PrefetchTask> pending = getPending(ctxt);
+		ctxt.remove(Constants.PREFETCHED_RESOURCES);
+		if (null != pending) {
+			for (PrefetchTask task : pending.values()) {
+				task.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Take the pending fetch for a resource if it was prefetched. The caller
+	 * must release the representation, the fetch is not returned again.
+	 * 
+	 * @param ctxt
+	 *            the template context
+	 * @param resId
+	 *            the resolved identifier of the resource
+	 * @param format
+	 *            the representation format of the resource
+	 * @return the pending fetch, or null if the resource was not prefetched
+	 */
+	public static Future<Representation> getPrefetched(TemplateContext ctxt, String resId, String format) {
+		Map<String, PrefetchTask> pending = getPending(ctxt);
+		if (null == pending) {
+			return null;
+		}
+		return pending.remove(getKey(resId, format));
+	}
+
+	/**
+	 * Wait for a prefetched representation
+	 * 
+	 * @param prefetched
+	 *            the pending fetch
+	 * @return the representation
+	 * @throws IOException
+	 *             if the fetch failed or did not complete in time
+	 */
+	public static Representation await(Future<Representation> prefetched) throws IOException {
+		try {
+			return prefetched.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Failed to prefetch resource", cause);
+		} catch (TimeoutException e) {
+			if (prefetched instanceof PrefetchTask) {
+				((PrefetchTask) prefetched).abandon();
+			} else {
+				prefetched.cancel(true);
+			}
+			throw new IOException("Timed out waiting for prefetched resource", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for prefetched resource", e);
+		}
+	}
+
+	/**
+	 * Enable or disable prefetching of resources. Prefetching is enabled by
+	 * default.
+	 * 
+	 * @param enable
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * Set the maximum number of threads used to prefetch resources. Applies to
+	 * the pool created after the next {@link #shutdown()}.
+	 * 
+	 * @param count
+	 */
+	public static synchronized void setThreads(int count) {
+		threads = count;
+	}
+
+	/**
+	 * Set the time in milliseconds a render waits for a prefetched resource
+	 * 
+	 * @param millis
+	 */
+	public static void setTimeout(long millis) {
+		timeout = millis;
+	}
+
+	/**
+	 * Stop the threads used to prefetch resources. Prefetches that are
+	 * pending are abandoned.
+	 */
+	public static synchronized void shutdown() {
+		if (null != executor) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (null == executor) {
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new PrefetchThreadFactory(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Collect the resources of the template, its ancestors, its layout and any
+	 * included templates
+	 */
+	private static void collectResources(Template template, TemplateGroup tg, Set<ResourceRef> refs,
+			Set<String> visited) {
+		if (null == template || !visited.add(template.getTemplateName())) {
+			return;
+		}
+		refs.addAll(template.getResources());
+		if (null == tg) {
+			return;
+		}
+		String layoutName = template.getLayoutTemplateName();
+		if (null != layoutName) {
+			collectResources(tg.getTemplate(layoutName), tg, refs, visited);
+		}
+		for (String include : template.getIncludes()) {
+			collectResources(tg.getTemplate(include), tg, refs, visited);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, PrefetchTask> getPending(TemplateContext ctxt) {
+		return (Map<String, PrefetchTask>) ctxt.get(Constants.PREFETCHED_RESOURCES);
+	}
+
+	private static String getKey(String resId, String format) {
+		return format + ':' + resId;
+	}
+
+	/**
+	 * The fetch of a resource. The representation is either delivered to the
+	 * render or, if the render abandoned it, released by whichever of the
+	 * fetch and the render finishes last.
+	 */
+	private static class PrefetchTask extends FutureTask<Representation> {
+		private final AtomicBoolean claimed;
+
+		PrefetchTask(final ResourceRef ref, final String resId) {
+			this(ref, resId, new AtomicBoolean());
+		}
+
+		private PrefetchTask(final ResourceRef ref, final String resId, final AtomicBoolean claimed) {
+			super(new Callable<Representation>() {
+				public Representation call() throws IOException {
+					Representation rep = ref.retrieve(resId);
+					if (!claimed.compareAndSet(false, true)) {
+						// Abandoned while fetching
+						rep.release();
+						return null;
+					}
+					return rep;
+				}
+			});
+			this.claimed = claimed;
+		}
+
+		/**
+		 * Give up on the representation and release it
+		 */
+		void abandon() {
+			if (claimed.compareAndSet(false, true)) {
+				// Not fetched yet, the fetch releases the representation
+				cancel(true);
+				return;
+			}
+			try {
+				Representation rep = get();
+				if (null != rep) {
+					rep.release();
+				}
+			} catch (ExecutionException e) {
+				// Nothing to release
+			} catch (CancellationException e) {
+				// Nothing to release
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class PrefetchThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "rstl-prefetch-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
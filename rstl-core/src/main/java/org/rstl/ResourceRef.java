@@ -4,35 +4,39 @@
 
 package org.rstl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.rstl.context.TemplateContext;
+import org.rstl.context.VarPath;
+import org.rstl.io.StreamUtil;
+import org.rstl.resource.client.BufferedRepresentation;
+import org.rstl.resource.client.JsonPathMap;
+import org.rstl.resource.client.ObjectRepresentation;
+import org.rstl.resource.client.Representation;
 import org.rstl.resource.client.ResourceRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 
 
 /**
- * Implementation of the resource references in a template
+ * Implementation of the resource references in a template. A resource
+ * reference is shared by every render of the template that declares it, so
+ * it only holds the compiled form of the resource identifier. Variable
+ * references in the identifier are resolved into a {@link ResolvedId} for each
+ * render and never stored on the reference.
  */
 public class ResourceRef {
 	private static final String CLASS_NAME = ResourceRef.class.getCanonicalName();
@@ -41,24 +45,44 @@ public class ResourceRef {
 	private static final boolean RESOURCE_FETCHED = true;
 	private static final ObjectMapper jom = new ObjectMapper();
 
-	private String resourceName;
-	private String widgetName;
-	private String format;
-	private String variableName;
+	private final String resourceName;
+	private final String widgetName;
+	private final String format;
+	private final String variableName;
 
-	private String resolvedResourceName;
-	private List<VarRef> variableReferences = new ArrayList<VarRef>();
-	private List<Object> idSegments;
-	private boolean resolved = false;
-	private boolean isBadResourceName = false;
-	private int syntaxErrorAt;
+	private final List<VarRef> variableReferences;
+	private final List<Object> idSegments;
+	private final boolean isBadResourceName;
+	private final int syntaxErrorAt;
+	private final JsonPathMap.Selection attributeSelection;
 
 	public ResourceRef(String resourceName, String widgetName,
 			String format, String variableName) {
+		this(resourceName, widgetName, format, variableName, null);
+	}
+
+	/**
+	 * @param resourceName
+	 * @param widgetName
+	 * @param format
+	 * @param variableName
+	 * @param attributePaths
+	 *            the attribute paths of the variable that the template
+	 *            dereferences, only these are parsed from a json
+	 *            representation. If null, the representation is parsed
+	 *            completely.
+	 */
+	public ResourceRef(String resourceName, String widgetName,
+			String format, String variableName, List<String> attributePaths) {
+		this.attributeSelection = (null != attributePaths) ? JsonPathMap.Selection.of(attributePaths) : null;
 		this.resourceName = resourceName;
 		this.widgetName = widgetName;
 		this.format = format;
 		this.variableName = variableName;
+		List<VarRef> variableReferences = new ArrayList<VarRef>();
+		List<Object> idSegments = null;
+		boolean isBadResourceName = false;
+		int syntaxErrorAt = 0;
 		if (resourceName.indexOf('{') != -1) {
 			idSegments = new ArrayList<Object>();
 			int k = resourceName.indexOf('{');
@@ -89,10 +113,10 @@ public class ResourceRef {
 				syntaxErrorAt = k;
 			}
 		}
-		if (null == idSegments) {
-			resolved = true;
-			resolvedResourceName = resourceName;
-		}
+		this.variableReferences = Collections.unmodifiableList(variableReferences);
+		this.idSegments = (null == idSegments) ? null : Collections.unmodifiableList(idSegments);
+		this.isBadResourceName = isBadResourceName;
+		this.syntaxErrorAt = syntaxErrorAt;
 	}
 
 	public boolean isBadResourceName() {
@@ -118,126 +142,194 @@ public class ResourceRef {
 	 */
 	public void fetchResource(TemplateContext ctxt, Writer w,
 			Map<String, String> templateInfo) {
-		String resId = getResolvedId(ctxt, true);
-		if (!resolved) {
+		ResolvedId resolvedId = resolveId(ctxt);
+		String resId = resolvedId.getId();
+		if (!resolvedId.isResolved()) {
 			_LOGGER.logp(Level.FINE, CLASS_NAME, "fetchResource", "Warning: Resource : " + resId
 					+ " is not completely resolved.");
 		}
 
-		_LOGGER.logp(Level.FINE, CLASS_NAME, "fetchResource", "Fetching Resource " + resId);
-		HttpClient client = new DefaultHttpClient();
-		HttpGet req = new HttpGet(ResourceRegistry.getAbsoluteUri(resId));
-		if (format.equalsIgnoreCase("xhtml")) {
-			req.setHeader("Accept", "application/xhtml+xml");
-		} else {
-			req.setHeader("Accept", "application/json");
-		}
+		Representation rep = null;
 		try {
-			HttpResponse res = client.execute(req);
-			// Is response valid ?
-			StatusLine status = res.getStatusLine();
-			if (status.getStatusCode() != 200) {
-				if (format.equalsIgnoreCase("json") && variableName != null
-						& !variableName.isEmpty()) {
-					// fetch failed - bail !
-				} else {
-					writeXhtmlResourceHeader(ctxt, w, templateInfo,
-							!RESOURCE_FETCHED);
-					writeXhtmlResourceFooter(ctxt, w, !RESOURCE_FETCHED);
-				}
+			Future<Representation> prefetched = ResourcePrefetcher.getPrefetched(ctxt, resId, format);
+			if (null != prefetched) {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "fetchResource", "Using prefetched Resource " + resId);
+				rep = ResourcePrefetcher.await(prefetched);
 			} else {
-				char[] buf = new char[16384];
-				HttpEntity entity = res.getEntity();
-				InputStream is = entity.getContent();
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(is));
-				Header contentType = res.getFirstHeader("Content-Type");
-				if ((contentType.getValue().equals("application/json") || contentType
-						.getValue().equals("text/json"))
-						&& format.equalsIgnoreCase("json")
-						&& variableName != null & !variableName.isEmpty()) {
-					
-					try {
-						Map<String, Object> jObj = jom.readValue(reader, Map.class);
-					
-						jObj.put("resourceid", resolvedResourceName);
-						if (null != templateInfo) {
-							jObj.put("genericid", resourceName);
-							jObj.put("widget", widgetName);
-							for (String key : templateInfo.keySet()) {
-								jObj.put(key, templateInfo.get(key));
-							}
+				rep = retrieve(resId);
+			}
+			writeRepresentation(ctxt, w, templateInfo, resId, rep);
+		} catch (IOException e) {
+			// Nothing is rendered for a resource that could not be fetched
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "fetchResource", "Failed to fetch Resource " + resId, e);
+		} finally {
+			if (null != rep) {
+				rep.release();
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the representation of the resource with the resolved identifier.
+	 * The caller must release the representation.
+	 * 
+	 * @param resId
+	 *            the resolved identifier of the resource
+	 * @return the representation of the resource
+	 * @throws IOException
+	 *             if the resource could not be retrieved
+	 */
+	Representation retrieve(String resId) throws IOException {
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "retrieve", "Fetching Resource " + resId);
+		String contentType = format.equalsIgnoreCase("xhtml") ? "application/xhtml+xml" : "application/json";
+		return ResourceRegistry.fetchResource(resId, contentType);
+	}
+
+	/**
+	 * If there is no variable, then render the XHTML representation of the
+	 * resource to the writer. If not, assign the resource representation to
+	 * the variable in the context.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeRepresentation(TemplateContext ctxt, Writer w,
+			Map<String, String> templateInfo, String resId, Representation rep) throws IOException {
+		// Is response valid ?
+		if (!rep.isValid()) {
+			if (format.equalsIgnoreCase("json") && variableName != null
+					& !variableName.isEmpty()) {
+				// fetch failed - bail !
+			} else {
+				writeXhtmlResourceHeader(ctxt, w, templateInfo, resId,
+						!RESOURCE_FETCHED);
+				writeXhtmlResourceFooter(ctxt, w, !RESOURCE_FETCHED);
+			}
+		} else {
+			String contentType = rep.getContentType();
+			String mediaType = StreamUtil.getMediaType(contentType);
+			if (("application/json".equals(mediaType) || "text/json".equals(mediaType))
+					&& format.equalsIgnoreCase("json")
+					&& variableName != null & !variableName.isEmpty()) {
+				
+				try {
+					Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+					metadata.put("resourceid", resId);
+					if (null != templateInfo) {
+						metadata.put("genericid", resourceName);
+						metadata.put("widget", widgetName);
+						for (String key : templateInfo.keySet()) {
+							metadata.put(key, templateInfo.get(key));
 						}
+					}
 
-						ctxt.put(variableName, jObj);
-					} catch (Exception jex) {
-						// Log the exception
+					Map<String, Object> jObj = null;
+					if (rep instanceof ObjectRepresentation
+							&& ((ObjectRepresentation) rep).getValue() instanceof Map) {
+						// In-process representation, bind a copy so that the
+						// handler's value is not modified
+						jObj = new LinkedHashMap<String, Object>(
+								(Map<String, Object>) ((ObjectRepresentation) rep).getValue());
+						jObj.putAll(metadata);
+					} else if (null != attributeSelection) {
+						// Only parse the attributes the template dereferences
+						byte[] body = (rep instanceof BufferedRepresentation) ? ((BufferedRepresentation) rep)
+								.getBody() : StreamUtil.readFully(rep.getEntity());
+						jObj = JsonPathMap.parse(body, StreamUtil.getCharset(contentType),
+								attributeSelection, metadata);
+					} else {
+						jObj = jom.readValue(new InputStreamReader(rep.getEntity(),
+								StreamUtil.getCharset(contentType)), Map.class);
+						jObj.putAll(metadata);
 					}
-					
+
+					ctxt.put(variableName, jObj);
+				} catch (Exception jex) {
+					// Log the exception
+				}
+				
+			} else {
+				// write the representation to the provided writer. The body is
+				// copied without decoding it if the writer accepts bytes in the
+				// charset of the representation
+				Charset charset = StreamUtil.getCharset(contentType);
+				writeXhtmlResourceHeader(ctxt, w, templateInfo, resId,
+						RESOURCE_FETCHED);
+				if (rep instanceof ObjectRepresentation
+						&& ((ObjectRepresentation) rep).getValue() instanceof String) {
+					w.write((String) ((ObjectRepresentation) rep).getValue());
+				} else if (rep instanceof BufferedRepresentation) {
+					StreamUtil.write(((BufferedRepresentation) rep).getBody(), charset, w);
 				} else {
-					// write the representation to the provided writer
-					writeXhtmlResourceHeader(ctxt, w, templateInfo,
-							RESOURCE_FETCHED);
-					int readResult = 0;
-					do {
-						readResult = reader.read(buf);
-						if (readResult == -1) {
-							break;
-						}
-						w.write(buf, 0, readResult);
-					} while (true);
-					writeXhtmlResourceFooter(ctxt, w, RESOURCE_FETCHED);
+					StreamUtil.copy(rep.getEntity(), charset, w);
 				}
+				writeXhtmlResourceFooter(ctxt, w, RESOURCE_FETCHED);
 			}
-		} catch (ClientProtocolException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * The representation format of the resource
+	 * 
+	 * @return xhtml or json
+	 */
+	public String getFormat() {
+		return format;
+	}
+
 	/**
 	 * Get the resolved identifier of the resource, applying the variable values
 	 * from the context provided.
 	 * 
 	 * @param ctxt
+	 * @param force
+	 *            if true, unresolved variables are replaced with an empty
+	 *            string. If false, an empty identifier is returned unless all
+	 *            the variables are resolved
 	 * @return
 	 */
 	public String getResolvedId(TemplateContext ctxt, boolean force) {
-		resolved = resolve(ctxt);
-
-		return getResolvedId(force);
+		ResolvedId resolvedId = resolveId(ctxt);
+		if (!force && !resolvedId.isResolved()) {
+			return "";
+		}
+		return resolvedId.getId();
 	}
 
-	private String getResolvedId(boolean force) {
-		if (resolvedResourceName != null) {
-			return resolvedResourceName;
-		}
-		String resourceId = null;
-		if (!force) {
-			if (!resolved) {
-				resourceId = "";
-			}
+	/**
+	 * Resolve the identifier of the resource using the variable values in the
+	 * context provided. The reference itself is not modified, so the same
+	 * reference can be resolved concurrently against different contexts.
+	 * 
+	 * @param ctxt
+	 *            the runtime context that contains the variable values
+	 * @return the identifier resolved for this context
+	 */
+	public ResolvedId resolveId(TemplateContext ctxt) {
+		if (null == idSegments) {
+			return new ResolvedId(resourceName, Collections.<String> emptyList());
 		}
-		if (null == resourceId) {
-			StringBuilder sb = new StringBuilder();
-			for (Object segment : idSegments) {
-				if (segment instanceof VarRef) {
-					VarRef ref = (VarRef) segment;
-					sb.append((null != ref.variableValue) ? ref.variableValue
-							: "");
+		List<String> unresolved = null;
+		StringBuilder sb = new StringBuilder(resourceName.length() + 16);
+		for (Object segment : idSegments) {
+			if (segment instanceof VarRef) {
+				VarRef ref = (VarRef) segment;
+				String name = ref.variableName;
+				Object value = ctxt.get(ref.path);
+				if (null != value) {
+					sb.append(value.toString());
 				} else {
-					sb.append((String) segment);
+					if (null == unresolved) {
+						unresolved = new ArrayList<String>();
+					}
+					unresolved.add(name);
 				}
+			} else {
+				sb.append((String) segment);
 			}
-			resourceId = sb.toString();
 		}
-		if (resolved) {
-			resolvedResourceName = resourceId;
+		if (null == unresolved) {
+			unresolved = Collections.emptyList();
 		}
-		return resourceId;
+		return new ResolvedId(sb.toString(), unresolved);
 	}
 
 	/**
@@ -264,16 +356,15 @@ public class ResourceRef {
 		return variableNames;
 	}
 
-	public List<String> getUnResolvedVarRefs() {
-		List<String> variableNames = new ArrayList<String>();
-		if (!resolved) {
-			for (VarRef ref : variableReferences) {
-				if (!ref.isResolved()) {
-					variableNames.add(ref.variableName);
-				}
-			}
-		}
-		return variableNames;
+	/**
+	 * The list of variables in the resource identifier that have no value in
+	 * the context provided
+	 * 
+	 * @param ctxt
+	 * @return
+	 */
+	public List<String> getUnResolvedVarRefs(TemplateContext ctxt) {
+		return resolveId(ctxt).getUnresolvedVariables();
 	}
 
 	/**
@@ -308,26 +399,14 @@ public class ResourceRef {
 	 *         references are resolved, return true
 	 */
 	public boolean resolve(TemplateContext ctxt) {
-		if (resolved || variableReferences.isEmpty()) {
-			resolved = true;
-		}
-		resolved = true;
-		for (VarRef ref : variableReferences) {
-			Object value = ctxt.get(ref.variableName);
-			if (null != value) {
-				ref.setValue(value.toString());
-			} else {
-				resolved = false;
-			}
-		}
-		return resolved;
+		return resolveId(ctxt).isResolved();
 	}
 
 	/**
 	 * Standard header to be injected for any resource
 	 */
 	private void writeXhtmlResourceHeader(TemplateContext ctxt, Writer w,
-			Map<String, String> templateInfo, boolean resourceFetched) {
+			Map<String, String> templateInfo, String resId, boolean resourceFetched) {
 		int divId = 0;
 		String resDivId = null;
 
@@ -345,7 +424,7 @@ public class ResourceRef {
 			w.append(" class=\"resource\">\n");
 			// Write the resource id associated with this representation
 			w.append("\t<div class=\"resourceid\">");
-			w.append(resolvedResourceName);
+			w.append(resId);
 			w.append("</div>\n");
 			// Write the template metadata resource id if template Metadata is
 			// requested
@@ -442,24 +521,48 @@ public class ResourceRef {
 	/**
 	 * Variable reference in resource identifier
 	 */
-	public class VarRef {
-		private String variableName;
-		private boolean resolved;
-		private String variableValue;
+	private static final class VarRef {
+		private final String variableName;
+		private final VarPath path;
 
-		public VarRef(String varName) {
+		VarRef(String varName) {
 			this.variableName = varName;
-			resolved = false;
-			variableValue = null;
+			this.path = VarPath.compile(varName);
+		}
+	}
+
+	/**
+	 * The identifier of a resource resolved against a template context
+	 */
+	public static final class ResolvedId {
+		private final String id;
+		private final List<String> unresolvedVariables;
+
+		ResolvedId(String id, List<String> unresolvedVariables) {
+			this.id = id;
+			this.unresolvedVariables = unresolvedVariables;
+		}
+
+		/**
+		 * @return the resolved identifier. Variables without a value are
+		 *         replaced with an empty string
+		 */
+		public String getId() {
+			return id;
 		}
 
+		/**
+		 * @return true if every variable in the identifier has a value
+		 */
 		public boolean isResolved() {
-			return resolved;
+			return unresolvedVariables.isEmpty();
 		}
 
-		public void setValue(String value) {
-			this.variableValue = value;
-			resolved = true;
+		/**
+		 * @return the names of the variables that have no value
+		 */
+		public List<String> getUnresolvedVariables() {
+			return unresolvedVariables;
 		}
 	}
 
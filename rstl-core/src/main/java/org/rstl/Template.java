@@ -5,6 +5,7 @@
 package org.rstl;
 
 import java.io.Writer;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -41,6 +42,13 @@ public interface Template {
 	 * @return Set of SourceRef objects representing resources
 	 */
 	public Set<SourceRef> getResourceRefs();
+
+	/**
+	 * Return the resources referenced by this template, including the resources
+	 * referenced by the template's super class.
+	 * @return Collection of the template's resource references
+	 */
+	public Collection<ResourceRef> getResources();
 	
 	/**
 	 * Retrieve the set of block names defined in this template (includes any blocks defined
@@ -0,0 +1,328 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rstl.io.StreamUtil;
+
+/**
+ * A jar file that keeps the classes of a template group compiled in memory
+ * across restarts of the JVM. Along with the classes the archive holds a
+ * {@link TemplateManifest} with the hash of the source of every template. The
+ * classes are only used if the manifest matches the current templates, the
+ * current code generators and the classes the templates were compiled against,
+ * otherwise the template group compiles its templates and replaces the
+ * archive.
+ *
+ * The archives are kept in the cache directory set with
+ * {@link TemplateUtil#setCacheDir(File)}, one per template group.
+ *
+ * A template group can also be compiled ahead of time into an archive with
+ * {@link TemplateGroup#writeArchive(File, String)}, which holds the template
+ * map and the template priorities along with the classes, and be loaded from
+ * it without compiling, see {@link TemplateGroup#TemplateGroup(File, String, TemplateGroup)}.
+ */
+public class TemplateArchive {
+	private static final String CLASS_NAME = TemplateArchive.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+	private static final String MANIFEST_ENTRY = TemplateUtil.getPackageDir() + '/' + TemplateManifest.MANIFEST_FILENAME;
+	private static final String CLASS_SUFFIX = ".class";
+	/**
+	 * The modification time of every entry, 2012-01-01 UTC, so the archive only depends on its content
+	 */
+	private static final long ENTRY_TIME = 1325376000000L;
+	/**
+	 * The entry of the template map of a template group compiled ahead of time
+	 */
+	public static final String TEMPLATE_MAP_ENTRY = TemplateUtil.getPackageDir() + '/' + TemplateUtil.TEMPLATE_MAP_PROPERTY_FILENAME;
+	/**
+	 * The entry of the prioritized templates by resource name of a template group compiled ahead of time
+	 */
+	public static final String PRIORITY_ENTRY = TemplateUtil.getPackageDir() + "/templatepriorities.json";
+	/**
+	 * The attribute of the jar manifest that holds the hash of the code generators the classes were generated with
+	 */
+	public static final String GENERATOR_ATTRIBUTE = "RSTL-Generator";
+
+	private final File archiveFile;
+
+	/**
+	 * @param archiveFile
+	 *            the jar file of the archive, which does not have to exist
+	 */
+	public TemplateArchive(File archiveFile) {
+		this.archiveFile = archiveFile;
+	}
+
+	/**
+	 * Return the archive of a template group in a cache directory
+	 *
+	 * @param cacheDir
+	 * @param templateSrcDir
+	 *            the template directory of the template group
+	 * @param name
+	 *            the name of the template group
+	 * @return the archive
+	 */
+	public static TemplateArchive forTemplateGroup(File cacheDir, File templateSrcDir, String name) {
+		String path = templateSrcDir.getAbsolutePath();
+		StringBuilder fileName = new StringBuilder();
+		if (null != name && !name.isEmpty()) {
+			fileName.append(name.replaceAll("[^A-Za-z0-9_.-]", "_")).append('-');
+		}
+		fileName.append(TemplateManifest.hash(path.getBytes()).substring(0, 16)).append(".jar");
+		return new TemplateArchive(new File(cacheDir, fileName.toString()));
+	}
+
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	/**
+	 * Describe the templates of a directory the way the manifest of an archive
+	 * records them
+	 *
+	 * @param templateDir
+	 * @param templateNames
+	 * @param compiledAgainst
+	 *            the description of the classes the templates are compiled
+	 *            against, such as the fingerprint of the parent template group
+	 * @return the manifest
+	 */
+	public static TemplateManifest describe(File templateDir, List<String> templateNames, String compiledAgainst) {
+		TemplateManifest manifest = new TemplateManifest(null, compiledAgainst);
+		for (String templateName : templateNames) {
+			String sourceHash;
+			try {
+				sourceHash = TemplateManifest.hash(new File(templateDir, templateName));
+			} catch (IOException e) {
+				sourceHash = "";
+			}
+			manifest.put(templateName, new TemplateManifest.Entry(sourceHash, "", null,
+					Collections.<String>emptyList()));
+		}
+		return manifest;
+	}
+
+	/**
+	 * Compute the fingerprint of a manifest, which changes whenever a template
+	 * or the classes the templates were compiled against change. Template
+	 * groups whose templates extend the templates of another group are
+	 * compiled against the fingerprint of that group.
+	 *
+	 * @param manifest
+	 * @param compiledAgainst
+	 *            the description of the classes the templates were compiled
+	 *            against
+	 * @return the hex encoded fingerprint
+	 */
+	public static String fingerprint(TemplateManifest manifest, String compiledAgainst) {
+		StringBuilder sb = new StringBuilder(TemplateManifest.getGeneratorHash()).append('|').append(compiledAgainst);
+		for (String templateName : manifest.getTemplateNames()) {
+			sb.append('|').append(templateName).append('=').append(manifest.get(templateName).getSourceHash());
+		}
+		return TemplateManifest.hash(sb.toString().getBytes());
+	}
+
+	/**
+	 * Load the classes of the archive if the archive is up to date
+	 *
+	 * @param expected
+	 *            the manifest of the current templates, see
+	 *            {@link #describe(File, List, String)}
+	 * @param compiledAgainst
+	 *            the description of the classes the templates are compiled
+	 *            against
+	 * @return the bytecode of the template classes by binary class name, null
+	 *         if the archive does not exist or is out of date
+	 */
+	public Map<String, byte[]> load(TemplateManifest expected, String compiledAgainst) {
+		if (!archiveFile.isFile()) {
+			return null;
+		}
+		Map<String, byte[]> entries;
+		TemplateManifest manifest = null;
+		try {
+			entries = readEntries();
+			if (entries.containsKey(MANIFEST_ENTRY)) {
+				manifest = TemplateManifest.load(new ByteArrayInputStream(entries.get(MANIFEST_ENTRY)));
+			}
+		} catch (IOException e) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "load", "Failed to read the template archive " + archiveFile, e);
+			return null;
+		}
+		if (null == manifest || !manifest.isCompatible(null, compiledAgainst) || !matches(manifest, expected)) {
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "load", "The template archive " + archiveFile + " is out of date");
+			return null;
+		}
+		return getClasses(entries);
+	}
+
+	private static boolean matches(TemplateManifest manifest, TemplateManifest expected) {
+		if (!manifest.getTemplateNames().equals(expected.getTemplateNames())) {
+			return false;
+		}
+		for (String templateName : expected.getTemplateNames()) {
+			if (!manifest.get(templateName).getSourceHash().equals(expected.get(templateName).getSourceHash())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the archive with the classes of the templates
+	 *
+	 * @param classes
+	 *            the bytecode of the template classes by binary class name
+	 * @param manifest
+	 *            the manifest of the templates the classes were compiled from
+	 * @throws IOException
+	 */
+	public void store(Map<String, byte[]> classes, TemplateManifest manifest) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		manifest.store(bos);
+		Map<String, byte[]> resources = new HashMap<String, byte[]>();
+		resources.put(MANIFEST_ENTRY, bos.toByteArray());
+		write(null, classes, resources);
+	}
+
+	/**
+	 * Read the entries of the archive, other than the jar manifest
+	 *
+	 * @return the content of the entries by entry name
+	 * @throws IOException
+	 */
+	public Map<String, byte[]> readEntries() throws IOException {
+		Map<String, byte[]> content = new HashMap<String, byte[]>();
+		JarFile jar = new JarFile(archiveFile);
+		try {
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				if (entry.isDirectory() || JarFile.MANIFEST_NAME.equals(entry.getName())) {
+					continue;
+				}
+				InputStream is = jar.getInputStream(entry);
+				try {
+					content.put(entry.getName(), StreamUtil.readFully(is));
+				} finally {
+					is.close();
+				}
+			}
+		} finally {
+			jar.close();
+		}
+		return content;
+	}
+
+	/**
+	 * Read the jar manifest of the archive
+	 *
+	 * @return the manifest, null if the archive does not have one
+	 * @throws IOException
+	 */
+	public Manifest readManifest() throws IOException {
+		JarFile jar = new JarFile(archiveFile);
+		try {
+			return jar.getManifest();
+		} finally {
+			jar.close();
+		}
+	}
+
+	/**
+	 * @param entries
+	 *            the entries of an archive by entry name
+	 * @return the bytecode of the classes in the entries by binary class name
+	 */
+	public static Map<String, byte[]> getClasses(Map<String, byte[]> entries) {
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+			if (e.getKey().endsWith(CLASS_SUFFIX)) {
+				String className = e.getKey().substring(0, e.getKey().length() - CLASS_SUFFIX.length());
+				classes.put(className.replace('/', '.'), e.getValue());
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Replace the archive. The archive is written next to the archive file and
+	 * moved in place, so readers never see a partial archive.
+	 *
+	 * @param jarManifest
+	 *            the jar manifest, null for none
+	 * @param classes
+	 *            the bytecode of the classes by binary class name
+	 * @param resources
+	 *            the content of other entries by entry name
+	 * @throws IOException
+	 */
+	public void write(Manifest jarManifest, Map<String, byte[]> classes, Map<String, byte[]> resources) throws IOException {
+		File dir = archiveFile.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmpFile = File.createTempFile(archiveFile.getName(), ".tmp", dir);
+		try {
+			FileOutputStream fos = new FileOutputStream(tmpFile);
+			try {
+				JarOutputStream jos = new JarOutputStream(fos);
+				if (null != jarManifest) {
+					// Written as the first entry, like JarOutputStream does, but with the fixed entry time
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					jarManifest.write(bos);
+					writeEntry(jos, JarFile.MANIFEST_NAME, bos.toByteArray());
+				}
+				// Sorted and with fixed entry times, so the same content gives the same archive
+				for (Map.Entry<String, byte[]> e : new TreeMap<String, byte[]>(resources).entrySet()) {
+					writeEntry(jos, e.getKey(), e.getValue());
+				}
+				for (Map.Entry<String, byte[]> e : new TreeMap<String, byte[]>(classes).entrySet()) {
+					writeEntry(jos, e.getKey().replace('.', '/') + CLASS_SUFFIX, e.getValue());
+				}
+				jos.finish();
+			} finally {
+				fos.close();
+			}
+			try {
+				Files.move(tmpFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	private static void writeEntry(JarOutputStream jos, String name, byte[] content) throws IOException {
+		JarEntry entry = new JarEntry(name);
+		entry.setTime(ENTRY_TIME);
+		jos.putNextEntry(entry);
+		jos.write(content);
+		jos.closeEntry();
+	}
+}
@@ -7,10 +7,23 @@ package org.rstl;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * Loads the generated template classes of a template group from its class directory.
+ * 
+ * The classes can also be handed to the loader as bytecode compiled in memory, in which 
+ * case the loader does not use a class directory.
+ * 
+ * A loader can also be layered on top of the loader of an earlier compilation of the 
+ * group. Such a loader only defines the classes of the templates that were recompiled 
+ * and leaves all other classes, including already loaded ones, to the earlier loader.
+ */
 public class TemplateClassLoader extends ClassLoader {
 	private static final String CLASS_NAME = TemplateClassLoader.class.getCanonicalName();
 	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
@@ -18,6 +31,15 @@ public class TemplateClassLoader extends ClassLoader {
 	 * Location of the generated template classes
 	 */
 	private File classDir;
+	/**
+	 * The bytecode of the classes compiled in memory by binary class name, null if the classes are in the class directory
+	 */
+	private Map<String, byte[]> classes;
+	/**
+	 * The classes defined by this loader if it is layered, null if it defines all template classes
+	 */
+	private Set<String> layerClassNames;
+	private int depth;
 	
 	public TemplateClassLoader(String templateClassDir) {
 		this(templateClassDir, null);
@@ -28,7 +50,52 @@ public class TemplateClassLoader extends ClassLoader {
 		classDir = new File(templateClassDir);
 	}
 	
-	public Class<?> loadClass(String className) throws ClassNotFoundException{
+	/**
+	 * Create a loader for recompiled templates on top of the loader of the previous compilation
+	 * @param templateClassDir
+	 * @param previous the loader of the previous compilation of the template group
+	 * @param classNames the fully qualified names of the recompiled template classes. Their nested classes 
+	 * are loaded by the new loader as well.
+	 */
+	public TemplateClassLoader(String templateClassDir, TemplateClassLoader previous, Set<String> classNames) {
+		this(templateClassDir, previous);
+		layerClassNames = classNames;
+		depth = previous.depth + 1;
+	}
+	
+	/**
+	 * Create a loader for template classes compiled in memory
+	 * @param classes the bytecode of the classes by binary class name
+	 * @param parent
+	 */
+	public TemplateClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+		super(null == parent? TemplateClassLoader.class.getClassLoader(): parent);
+		this.classes = classes;
+	}
+	
+	/**
+	 * Create a loader for templates recompiled in memory on top of the loader of the previous compilation
+	 * @param classes the bytecode of the recompiled classes by binary class name
+	 * @param previous the loader of the previous compilation of the template group
+	 */
+	public TemplateClassLoader(Map<String, byte[]> classes, TemplateClassLoader previous) {
+		this(classes, (ClassLoader) previous);
+		layerClassNames = new HashSet<String>();
+		for (String className : classes.keySet()) {
+			int nestedAt = className.indexOf('$');
+			layerClassNames.add((-1 == nestedAt) ? className : className.substring(0, nestedAt));
+		}
+		depth = previous.depth + 1;
+	}
+	
+	/**
+	 * @return the number of loaders this loader is layered on, 0 if it is not layered
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	public synchronized Class<?> loadClass(String className) throws ClassNotFoundException{
 		Class<?> clazz = null;
 		
 		// Check in VM cache
@@ -38,7 +105,7 @@ public class TemplateClassLoader extends ClassLoader {
 		}
 		
 		// Do not bother with any class that does pertain to templates
-		if (!className.startsWith(TemplateUtil.TEMPLATE_PACKAGE_NAME)) {
+		if (!className.startsWith(TemplateUtil.TEMPLATE_PACKAGE_NAME) || !inLayer(className)) {
 			clazz = getParent().loadClass(className);
 		} else {
 			clazz = findClass(className);
@@ -50,9 +117,48 @@ public class TemplateClassLoader extends ClassLoader {
 		return clazz;
 	}
 	
+	private boolean inLayer(String className) {
+		if (null == layerClassNames) {
+			return true;
+		}
+		int nestedAt = className.indexOf('$');
+		return layerClassNames.contains((-1 == nestedAt) ? className : className.substring(0, nestedAt));
+	}
+	
+	/**
+	 * Return the bytecode of a template class as this loader would load it, so the class can be
+	 * compiled against without reading it from disk
+	 * @param className the binary name of the class
+	 * @return the bytecode, null if neither this loader nor the template class loaders it delegates to have the class
+	 */
+	public byte[] getClassBytes(String className) {
+		if (className.startsWith(TemplateUtil.TEMPLATE_PACKAGE_NAME) && inLayer(className)) {
+			byte[] classBytes = readClass(className);
+			if (null != classBytes) {
+				return classBytes;
+			}
+		}
+		return (getParent() instanceof TemplateClassLoader) ? ((TemplateClassLoader) getParent()).getClassBytes(className) : null;
+	}
+	
 	public Class<?> findClass(String className) {
+		byte[] classBytes = readClass(className);
+		if (null == classBytes) {
+			return null;
+		}
+		try {
+			return defineClass(className, classBytes, 0, classBytes.length);
+		} catch (Exception ex) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "findClass", "Failed to load " + className);
+		}
+		return null;
+	}
+	
+	private byte[] readClass(String className) {
+		if (null != classes) {
+			return classes.get(className);
+		}
 		byte classBytes[];
-		Class<?> ret = null;
 		String classloc = className.replace('.', File.separatorChar) + ".class";
 		File classFile = new File(classDir, classloc);
 		if (!classFile.exists()) {
@@ -65,9 +171,9 @@ public class TemplateClassLoader extends ClassLoader {
 			FileInputStream fis = new FileInputStream(classFile);
 			dis = new DataInputStream(fis);
 			dis.readFully(classBytes);
-			ret = defineClass(className, classBytes, 0, len);
 		} catch (Exception ex) {
 			_LOGGER.logp(Level.WARNING, CLASS_NAME, "findClass", "Failed to load " + className);
+			classBytes = null;
 		}
 		finally {
 			if (null != dis) {
@@ -78,6 +184,6 @@ public class TemplateClassLoader extends ClassLoader {
 				}
 			}
 		}
-		return ret;	
+		return classBytes;	
 	}
 }
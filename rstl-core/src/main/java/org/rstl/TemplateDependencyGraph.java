@@ -0,0 +1,145 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The references between the templates of a template group. A template
+ * depends on the template it extends, its layout template, the templates
+ * it includes and its widgets. When a template changes, the templates that depend on it
+ * directly or transitively have to be recompiled and reloaded along with it.
+ *
+ * The graph is safe to use from multiple threads.
+ */
+public class TemplateDependencyGraph {
+	/**
+	 * The templates each template refers to
+	 */
+	private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+	/**
+	 * The templates that refer to each template
+	 */
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	/**
+	 * Record the references of a compiled template, replacing the references
+	 * recorded for an earlier version of the template
+	 *
+	 * @param template
+	 */
+	public void add(Template template) {
+		List<String> refs = new ArrayList<String>();
+		if (null != template.getSuperTemplateName()) {
+			refs.add(template.getSuperTemplateName());
+		}
+		if (null != template.getLayoutTemplateName()) {
+			refs.add(template.getLayoutTemplateName());
+		}
+		refs.addAll(template.getIncludes());
+		for (ResourceRef resource : template.getResources()) {
+			String widget = resource.getWidgetName();
+			if (null != widget && !widget.isEmpty()) {
+				refs.add(widget);
+			}
+		}
+		setDependencies(template.getTemplateName(), refs);
+	}
+
+	/**
+	 * Record the templates a template refers to, replacing the references
+	 * recorded earlier
+	 *
+	 * @param templateName
+	 * @param refs
+	 */
+	public synchronized void setDependencies(String templateName, Collection<String> refs) {
+		remove(templateName);
+		Set<String> deps = new LinkedHashSet<String>(refs);
+		deps.remove(templateName);
+		dependencies.put(templateName, deps);
+		for (String dep : deps) {
+			Set<String> users = dependents.get(dep);
+			if (null == users) {
+				users = new TreeSet<String>();
+				dependents.put(dep, users);
+			}
+			users.add(templateName);
+		}
+	}
+
+	/**
+	 * Forget the references of a template. References to the template from
+	 * other templates are kept.
+	 *
+	 * @param templateName
+	 */
+	public synchronized void remove(String templateName) {
+		Set<String> deps = dependencies.remove(templateName);
+		if (null == deps) {
+			return;
+		}
+		for (String dep : deps) {
+			Set<String> users = dependents.get(dep);
+			users.remove(templateName);
+			if (users.isEmpty()) {
+				dependents.remove(dep);
+			}
+		}
+	}
+
+	/**
+	 * @param templateName
+	 * @return true if the references of the template have been recorded
+	 */
+	public synchronized boolean contains(String templateName) {
+		return dependencies.containsKey(templateName);
+	}
+
+	/**
+	 * @param templateName
+	 * @return the templates the template refers to directly
+	 */
+	public synchronized List<String> getDependencies(String templateName) {
+		Set<String> deps = dependencies.get(templateName);
+		return (null == deps) ? Collections.<String>emptyList() : new ArrayList<String>(deps);
+	}
+
+	/**
+	 * Return the template along with all the templates that depend on it
+	 * directly or transitively. Templates closer to the changed template come
+	 * first, templates at the same distance are in name order.
+	 *
+	 * @param templateName
+	 * @return the affected templates, starting with the template itself
+	 */
+	public synchronized List<String> getTransitiveDependents(String templateName) {
+		Set<String> affected = new LinkedHashSet<String>();
+		Deque<String> queue = new ArrayDeque<String>();
+		affected.add(templateName);
+		queue.add(templateName);
+		while (!queue.isEmpty()) {
+			Set<String> users = dependents.get(queue.poll());
+			if (null != users) {
+				for (String user : users) {
+					if (affected.add(user)) {
+						queue.add(user);
+					}
+				}
+			}
+		}
+		return new ArrayList<String>(affected);
+	}
+}
@@ -4,30 +4,42 @@
 
 package org.rstl;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.rstl.context.TemplateContext;
 import org.rstl.context.TemplateContextImpl;
+import org.rstl.io.RenderBuffer;
+import org.rstl.resource.client.HttpConnectionPool;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -41,6 +53,11 @@ public class TemplateGroup {
 	static final private String TEMPLATE_PRIORITY_FILENAME = "templateorder.json";
 	static final private String STOREROOT = "store/";
 	private static final int MAX_BUF_SIZ = 16384;
+	/**
+	 * Number of template reloads layered on the class loader of a full update before the templates are 
+	 * loaded with a fresh class loader again
+	 */
+	private static final int MAX_LOADER_DEPTH = 16;
 	private static final ObjectMapper jom = new ObjectMapper();
 
 	
@@ -50,7 +67,59 @@ public class TemplateGroup {
 	private File genTmpDir;
 
 	private File templateClassDir;
-	private TemplateClassLoader templateClassLoader;
+	
+	/**
+	 * The archive the templates were compiled into ahead of time, null if this group compiles its templates
+	 */
+	private File archiveFile;
+	/**
+	 * The class loader and template instances for the current compilation
+	 * of the template group. Replaced as a whole when the templates are
+	 * updated.
+	 */
+	private volatile Generation generation;
+	
+	/**
+	 * The references between the templates, built when the first template is reloaded
+	 */
+	private TemplateDependencyGraph dependencyGraph;
+	
+	/**
+	 * True if the templates are compiled and loaded in memory
+	 */
+	private final boolean compileInMemory;
+	
+	/**
+	 * The bytecode of the latest compilation of each template class if the templates are compiled in memory
+	 */
+	private final Map<String, byte[]> memoryClasses = new HashMap<String, byte[]>();
+	
+	/**
+	 * Identifies the templates of the last full update, the manifests and archives of child template groups 
+	 * record it as the classes they were compiled against
+	 */
+	private volatile String fingerprint = "";
+	
+	/**
+	 * Expected size in bytes of the output of each template, used to size render buffers
+	 */
+	private final ConcurrentHashMap<String, Integer> outputSizes = new ConcurrentHashMap<String, Integer>();
+	
+	/**
+	 * Number of renders after which an interpreted template is compiled, 0 if updated templates are compiled 
+	 * right away
+	 */
+	private volatile int promotionThreshold = 0;
+	
+	/**
+	 * The templates that are currently interpreted, guarded by this template group
+	 */
+	private final Set<String> interpretedTemplates = new HashSet<String>();
+	
+	/**
+	 * True while a thread is compiling the interpreted templates, guarded by this template group
+	 */
+	private boolean promotionPending = false;
 	
 	// TODO: make this a indirect relationship through TemplateGroupRegistry
 	private TemplateGroup parentTemplateGroup;
@@ -61,7 +130,6 @@ public class TemplateGroup {
 	private Map<String, List<String>> templateMap;
 	private Map<String, List<String>> prioritizedTemplateMap;
 	private Set<String> storeList;
-	private Map<String, Template> templateObjectCache = Collections.synchronizedMap(new HashMap<String, Template>());
 
 	/**
 	 * Create a template group from a template source directory
@@ -79,8 +147,8 @@ public class TemplateGroup {
 	 * 			the templates to be used to define the template group
 	 * @param classDir
 	 * 			the directory location where the template classes will be
-	 *          generated and loaded from. If null a generated temp directory
-	 *          will used
+	 *          generated and loaded from. If null the templates are compiled
+	 *          and loaded in memory
 	 * @param tmpJavaDir
 	 * 			the temporary directory where the java code for the templates
 	 *          are generated. If null, a generated temp directory will be
@@ -96,8 +164,8 @@ public class TemplateGroup {
 	 * 			the templates to be used to define the template group
 	 * @param classDir
 	 * 			the directory location where the template classes will be
-	 *          generated and loaded from. If null a generated temp directory
-	 *          will used
+	 *          generated and loaded from. If null the templates are compiled
+	 *          and loaded in memory
 	 * @param tmpJavaDir 
 	 *  		the temporary directory where the java code for the templates
 	 *          are generated. If null, a generated temp directory will be
@@ -117,12 +185,18 @@ public class TemplateGroup {
 	 * satisfy template rendering requests that may not be in the subclassed
 	 * template group.
 	 * 
+	 * Without a class directory the java code of the templates is generated and
+	 * compiled in memory and the classes are loaded straight from the compiled
+	 * bytecode. A template group whose parent is compiled in memory is compiled in
+	 * memory as well; if it has a class directory the compiled classes are also 
+	 * written there.
+	 * 
 	 * @param templateSrcDir
 	 *            the templates to be used to define the template group
 	 * @param classDir
 	 *            the directory location where the template classes will be
-	 *            generated and loaded from. If null a generated temp directory
-	 *            will used
+	 *            generated and loaded from. If null the templates are compiled
+	 *            and loaded in memory
 	 * @param tmpJavaDir
 	 *            the temporary directory where the java code for the templates
 	 *            are generated. If null, a generated temp directory will be
@@ -138,7 +212,10 @@ public class TemplateGroup {
 			 String tmpJavaDir, String name, TemplateGroup parent) {
 		this.name = name;
 		this.templateSrcDir = new File(templateSrcDir);
-		if (null == tmpJavaDir) {
+		this.compileInMemory = (null == classDir) || (null != parent && parent.compileInMemory);
+		if (compileInMemory) {
+			genTmpDir = (null == tmpJavaDir) ? null : new File(tmpJavaDir);
+		} else if (null == tmpJavaDir) {
 			try {
 				genTmpDir = File.createTempFile("ctlc", null);
 			} catch (Exception ex) {
@@ -150,15 +227,7 @@ public class TemplateGroup {
 			genTmpDir = new File(tmpJavaDir);
 		}
 
-		if (null == classDir) {
-			try {
-				templateClassDir = File.createTempFile("ctlj", null);
-			} catch (Exception ex) {
-				_LOGGER.logp(Level.SEVERE, CLASS_NAME, "constructor", "Failed to create template class dir");
-				throw new IllegalArgumentException(
-						"Failed to create a temporary class directory");
-			}
-		} else {
+		if (null != classDir) {
 			templateClassDir = new File(classDir);
 		}
 		// This relationship should probably be indirect so that an update to the parent template group picks up the updated parent group here
@@ -167,21 +236,52 @@ public class TemplateGroup {
 
 	}
 	
+	/**
+	 * Create a template group from an archive its templates were compiled into ahead of time, see 
+	 * {@link #writeArchive(File, String)}. The classes are loaded from the archive as they are, so the group 
+	 * does not need the template sources or a compiler. Updating the group reads the archive again, the 
+	 * templates that were loaded are kept if the archive can no longer be read.
+	 * 
+	 * @param archiveFile
+	 *            the archive of the template classes
+	 * @param name
+	 *            the name of the template group
+	 * @param parent
+	 *            the template group that will be used to satisfy inheritance
+	 *            relationships and requests for missing templates
+	 * @throws IllegalArgumentException if the archive cannot be read
+	 */
+	public TemplateGroup(File archiveFile, String name, TemplateGroup parent) {
+		this.name = name;
+		this.archiveFile = archiveFile;
+		this.compileInMemory = true;
+		this.parentTemplateGroup = parent;
+		update();
+	}
 	
+	/**
+	 * @return the directory of the template sources, null if the templates are loaded from an archive
+	 */
 	public String getTemplateSrcDir() {
-		return templateSrcDir.getAbsolutePath();
+		return (null == templateSrcDir) ? null : templateSrcDir.getAbsolutePath();
 	}
 
+	/**
+	 * @return the directory of the generated java code, null if the templates are compiled in memory
+	 */
 	public String getGenTmpDir() {
-		return genTmpDir.getAbsolutePath();
+		return (null == genTmpDir) ? null : genTmpDir.getAbsolutePath();
 	}
 
+	/**
+	 * @return the directory of the template classes, null if the classes are only kept in memory
+	 */
 	public String getTemplateClassDir() {
-		return templateClassDir.getAbsolutePath();
+		return (null == templateClassDir) ? null : templateClassDir.getAbsolutePath();
 	}
 
 	public TemplateClassLoader getTemplateClassLoader() {
-		return templateClassLoader;
+		return generation.loader;
 	}
 
 	public TemplateGroup getParentTemplateGroup() {
@@ -212,13 +312,76 @@ public class TemplateGroup {
 			if (null == c) {
 				c = new TemplateContextImpl(new HashMap<String, Object>(), this);
 			}
-			template.render(c, w, false);
+			try {
+				ResourcePrefetcher.prefetch(template, c);
+				template.render(c, w, false);
+			} finally {
+				ResourcePrefetcher.release(c);
+			}
 		} else {
 			// TODO: statistics., error page ??
 			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "render", "Failed to render template " + templateName);
 		}		
 	}
 	
+	/**
+	 * Render a pre-compiled template as UTF-8 encoded bytes. The output is rendered into a
+	 * pooled buffer, sized from earlier renders of the template, and written to the stream
+	 * in one go. Static text of the template is copied already encoded. The stream is not
+	 * flushed or closed.
+	 * 
+	 * @param templateName
+	 * @param c
+	 * @param out
+	 * @throws IOException if the rendered output could not be written to the stream
+	 */
+	public void render(String templateName, TemplateContext c, OutputStream out) throws IOException {
+		RenderBuffer buf = RenderBuffer.acquire(getExpectedOutputSize(templateName));
+		try {
+			render(templateName, c, buf);
+			recordOutputSize(templateName, buf.size());
+			buf.writeTo(out);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * Render a pre-compiled template as UTF-8 encoded bytes to a channel, see
+	 * {@link #render(String, TemplateContext, OutputStream)}.
+	 * 
+	 * @param templateName
+	 * @param c
+	 * @param channel
+	 * @throws IOException if the rendered output could not be written to the channel
+	 */
+	public void render(String templateName, TemplateContext c, WritableByteChannel channel) throws IOException {
+		RenderBuffer buf = RenderBuffer.acquire(getExpectedOutputSize(templateName));
+		try {
+			render(templateName, c, buf);
+			recordOutputSize(templateName, buf.size());
+			buf.writeTo(channel);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * @param templateName
+	 * @return the size in bytes a render of the template is expected to produce, 0 if the template
+	 * has not been rendered as bytes yet
+	 */
+	int getExpectedOutputSize(String templateName) {
+		Integer size = outputSizes.get(templateName);
+		return (null == size) ? 0 : size;
+	}
+	
+	private void recordOutputSize(String templateName, int size) {
+		// Follow the output size but let occasional large pages decay slowly
+		int expected = getExpectedOutputSize(templateName);
+		outputSizes.put(templateName, (size >= expected) ? size : expected - (expected - size) / 4);
+	}
+	
 	public Set<Object> getTemplateList() {
 		Set<Object> ret = null;
 		ret = templateClassMap.keySet();
@@ -236,7 +399,12 @@ public class TemplateGroup {
 		// Render the template if we have an instance of it.
 		if (null != template) {
 			// TODO: timing, statistics (count)
-			template.render(c, w, true);
+			try {
+				ResourcePrefetcher.prefetch(template, c);
+				template.render(c, w, true);
+			} finally {
+				ResourcePrefetcher.release(c);
+			}
 		} else {
 			// TODO: statistics., error page ??
 			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "renderWithMetadata", "Failed to render template " + templateName);
@@ -244,47 +412,51 @@ public class TemplateGroup {
 	}
 	
 	/**
-	 * Return the template object singleton of type <code>WCSTemplate</code> associated with specified templateName
+	 * Render precompiled template with template metadata embedded in the rendered output as
+	 * UTF-8 encoded bytes, see {@link #render(String, TemplateContext, OutputStream)}.
+	 * @param templateName
+	 * @param c
+	 * @param out
+	 * @throws IOException if the rendered output could not be written to the stream
+	 */
+	public void renderWithMetadata(String templateName, TemplateContext c, OutputStream out) throws IOException {
+		RenderBuffer buf = RenderBuffer.acquire(getExpectedOutputSize(templateName));
+		try {
+			renderWithMetadata(templateName, c, buf);
+			recordOutputSize(templateName, buf.size());
+			buf.writeTo(out);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * Return the template object singleton of type <code>WCSTemplate</code> associated with specified templateName.
+	 * Each template is loaded once per update of the template group, cached lookups do not lock.
 	 * @param templateName
 	 * @return WCSTemplate 
 	 */
 	public Template getTemplate(String templateName) {
-		String className = TemplateUtil.getPackageName() + '.' + TemplateUtil.getClassName(templateName);
 		// Check cache - templates are singletons
-		Template template = templateObjectCache.get(templateName);
-		if (null == template) {
-			Class<?> clazz;
-			Method getInstanceMethod;
-			try {
-				clazz = Class.forName(className, true, templateClassLoader);
-				Class<?>[] varargs = null;
-				Object[] parms = null;
-				getInstanceMethod = clazz.getMethod("getInstance", varargs);
-				Object obj = getInstanceMethod.invoke(null, parms);
-				template = (Template) obj;
-				templateObjectCache.put(templateName, template);
-			} catch (SecurityException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (NoSuchMethodException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IllegalArgumentException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (InvocationTargetException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (ClassNotFoundException e) {
-				// TODO Auto-generated catch block
-				_LOGGER.logp(Level.SEVERE, CLASS_NAME, "getTemplate", "Check if java file ("+ TemplateUtil.getClassName(templateName) +
-						" got generated or has errors at " + getGenTmpDir() + " can be compiled");
+		Generation gen = generation;
+		FutureTask<Template> loader = gen.templates.get(templateName);
+		if (null == loader) {
+			// Load the template once, concurrent callers wait for the same load
+			FutureTask<Template> task = new FutureTask<Template>(new TemplateLoader(gen.loader, templateName, getGenTmpDir()));
+			loader = gen.templates.putIfAbsent(templateName, task);
+			if (null == loader) {
+				loader = task;
+				task.run();
 			}
 		}
-		return template;
+		try {
+			return loader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "getTemplate", "Failed to load template " + templateName, e.getCause());
+		}
+		return null;
 	}
 	
 	public List<String> getPrioritizedTemplates(String resourceName) {
@@ -296,15 +468,30 @@ public class TemplateGroup {
 	}
 	
 	/**
-	 * Update the template group by deleting any temporary java and class directories and recompiling the templates in this group.
+	 * Update the template group by recompiling the templates in this group that changed, or depend on templates that changed,
+	 * since the class directory was last compiled. The classes of the other templates are reused, see 
+	 * {@link TemplateUtil#compileIncremental(File, File, File, PrintWriter, PrintWriter, List, String)}.
 	 * This method expects that any parent template groups have already been updated and compiled ahead of this template group and will use 
 	 * the compiled class directories from those template groups so that it is available for compiling the templates in this group.
 	 */
 	public void update() {
-		genTmpDir.delete();
-		genTmpDir.mkdir();
-		templateClassDir.delete();
-		templateClassDir.mkdir();
+		if (null != archiveFile) {
+			updateFromArchive();
+			return;
+		}
+		if (compileInMemory) {
+			updateInMemory();
+			return;
+		}
+		// The temporary directories start out as the files created by File.createTempFile
+		if (!genTmpDir.isDirectory()) {
+			genTmpDir.delete();
+		}
+		genTmpDir.mkdirs();
+		if (!templateClassDir.isDirectory()) {
+			templateClassDir.delete();
+		}
+		templateClassDir.mkdirs();
 		// Generate java files
 
 		// TODO: compute additional classpath elements from parent group
@@ -315,9 +502,11 @@ public class TemplateGroup {
 			ancestor = ancestor.parentTemplateGroup;
 		}
 		_LOGGER.logp(Level.FINE, CLASS_NAME, "update", "The additional class path is computed as " + additionalClassPath);
-		TemplateUtil.compile(this.templateSrcDir, genTmpDir, templateClassDir,
+		String compiledAgainst = (null == parentTemplateGroup) ? "" : parentTemplateGroup.fingerprint;
+		TemplateUtil.compileIncremental(this.templateSrcDir, genTmpDir, templateClassDir,
 				new PrintWriter(compileOut), new PrintWriter(compileErr),
-				exceptionList, additionalClassPath);
+				exceptionList, additionalClassPath, compiledAgainst);
+		fingerprint = TemplateManifest.load(templateClassDir).getFingerprint();
 
 		if (compileErr.size()  > 0) {
 			_LOGGER.logp(Level.WARNING, CLASS_NAME, "update", "Errors in templates");
@@ -337,41 +526,488 @@ public class TemplateGroup {
 		}
 		createTemplateMaps();
 		
-		templateObjectCache.clear();
-
-		templateClassLoader = new TemplateClassLoader(templateClassDir
-				.getAbsolutePath(), (null == parentTemplateGroup) ? null
-				: parentTemplateGroup.getTemplateClassLoader());
+		synchronized (this) {
+			dependencyGraph = null;
+			interpretedTemplates.clear();
+		}
+		newGeneration();
+	}
+	
+	/**
+	 * Compile all templates of this group in memory and load them from the compiled bytecode. With a cache 
+	 * directory the classes are loaded from the archive of this group instead if no template changed since
+	 * the archive was written, see {@link TemplateUtil#setCacheDir(File)}.
+	 */
+	private void updateInMemory() {
+		List<String> templateNames = TemplateUtil.getTemplateNames(templateSrcDir);
+		String compiledAgainst = (null == parentTemplateGroup) ? "" : parentTemplateGroup.fingerprint;
+		TemplateManifest manifest = TemplateArchive.describe(templateSrcDir, templateNames, compiledAgainst);
+		File cacheDir = TemplateUtil.getCacheDir();
+		TemplateArchive archive = (null == cacheDir) ? null : TemplateArchive.forTemplateGroup(cacheDir, templateSrcDir, name);
+		Map<String, byte[]> classes = (null == archive) ? null : archive.load(manifest, compiledAgainst);
+		if (null != classes) {
+			_LOGGER.logp(Level.INFO, CLASS_NAME, "update", "Loaded " + classes.size() + " classes for " 
+					+ templateNames.size() + " templates from " + archive.getArchiveFile());
+		} else {
+			int exceptions = exceptionList.size();
+			classes = TemplateUtil.compileInMemory(templateNames, templateSrcDir, 
+					getParentClassLoader(), new PrintWriter(compileErr), exceptionList);
+			if (compileErr.size()  > 0) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "update", "Errors in templates");
+				System.err.print(compileErr);
+			}
+			_LOGGER.logp(Level.INFO, CLASS_NAME, "update", "Compiled " + classes.size() + " classes for " 
+					+ templateNames.size() + " templates in memory");
+			// Only archive a complete compilation, templates that failed are compiled again on the next update
+			if (null != archive && exceptionList.size() == exceptions && hasAllClasses(templateNames, classes)) {
+				try {
+					archive.store(classes, manifest);
+				} catch (IOException e) {
+					exceptionList.add(e);
+				}
+			}
+		}
+		
+		templateClassMap = new Properties();
+		for (String templateName : templateNames) {
+			if (classes.containsKey(TemplateUtil.getQualifiedClassName(templateName))) {
+				templateClassMap.put(templateName, TemplateUtil.getClassName(templateName));
+			}
+		}
+		storeClasses(classes, new ArrayList<String>(templateClassMap.stringPropertyNames()), false);
+		createTemplateMaps();
+		
+		synchronized (this) {
+			dependencyGraph = null;
+			interpretedTemplates.clear();
+			memoryClasses.clear();
+			memoryClasses.putAll(classes);
+		}
+		fingerprint = TemplateArchive.fingerprint(manifest, compiledAgainst);
+		newGeneration();
+	}
+	
+	private static boolean hasAllClasses(List<String> templateNames, Map<String, byte[]> classes) {
+		for (String templateName : templateNames) {
+			if (!classes.containsKey(TemplateUtil.getQualifiedClassName(templateName))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Load the templates of this group from the archive they were compiled into
+	 */
+	private void updateFromArchive() {
+		Map<String, byte[]> classes;
+		Properties classMap = new Properties();
+		Map<String, List<String>> priorities;
+		String generator = null;
+		try {
+			TemplateArchive archive = new TemplateArchive(archiveFile);
+			Map<String, byte[]> entries = archive.readEntries();
+			classes = TemplateArchive.getClasses(entries);
+			if (entries.containsKey(TemplateArchive.TEMPLATE_MAP_ENTRY)) {
+				classMap.load(new ByteArrayInputStream(entries.get(TemplateArchive.TEMPLATE_MAP_ENTRY)));
+			}
+			priorities = entries.containsKey(TemplateArchive.PRIORITY_ENTRY) 
+					? jom.readValue(entries.get(TemplateArchive.PRIORITY_ENTRY), HashMap.class) 
+					: new HashMap<String, List<String>>();
+			Manifest manifest = archive.readManifest();
+			if (null != manifest) {
+				generator = manifest.getMainAttributes().getValue(TemplateArchive.GENERATOR_ATTRIBUTE);
+			}
+		} catch (IOException e) {
+			rejectArchive("Failed to read the template archive " + archiveFile, e);
+			return;
+		}
+		if (!TemplateManifest.getGeneratorHash().equals(generator)) {
+			// The classes call into the runtime of the engine they were generated by
+			String message = "The templates in " + archiveFile + " were generated by a different version of the template engine";
+			rejectArchive(message, new IllegalStateException(message));
+			return;
+		}
+		_LOGGER.logp(Level.INFO, CLASS_NAME, "update", "Loaded " + classes.size() + " classes for " 
+				+ classMap.size() + " templates from " + archiveFile);
+		templateClassMap = classMap;
+		createTemplateMaps(priorities);
+		
+		synchronized (this) {
+			dependencyGraph = null;
+			interpretedTemplates.clear();
+			memoryClasses.clear();
+			memoryClasses.putAll(classes);
+		}
+		try {
+			fingerprint = TemplateManifest.hash(archiveFile);
+		} catch (IOException e) {
+			fingerprint = "";
+		}
+		newGeneration();
 	}
 	
 	/**
-	 * Update a single template named by the template name
+	 * Report an archive that cannot be loaded. The templates that were loaded before are kept.
+	 * @throws IllegalArgumentException if no templates were loaded yet, so the group cannot be created
+	 */
+	private void rejectArchive(String message, Exception e) {
+		_LOGGER.logp(Level.SEVERE, CLASS_NAME, "update", message, e);
+		exceptionList.add(e);
+		if (null == generation) {
+			throw new IllegalArgumentException(message, e);
+		}
+	}
+	
+	/**
+	 * Write the classes of this group compiled in memory to an archive, along with the template map and 
+	 * the priorities of the templates, so the group can be loaded from the archive without compiling, see 
+	 * {@link #TemplateGroup(File, String, TemplateGroup)}
+	 * 
+	 * @param archiveFile
+	 *            the archive to write
+	 * @param version
+	 *            the version recorded in the archive, may be null
+	 * @throws IOException
+	 */
+	public void writeArchive(File archiveFile, String version) throws IOException {
+		if (!compileInMemory) {
+			throw new IllegalStateException("Template group " + name + " is not compiled in memory");
+		}
+		Map<String, byte[]> classes;
+		synchronized (this) {
+			classes = new HashMap<String, byte[]>(memoryClasses);
+		}
+		Map<String, byte[]> resources = new HashMap<String, byte[]>();
+		resources.put(TemplateArchive.TEMPLATE_MAP_ENTRY, storeSorted(templateClassMap));
+		resources.put(TemplateArchive.PRIORITY_ENTRY, jom.writeValueAsBytes(new TreeMap<String, List<String>>(prioritizedTemplateMap)));
+		
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		if (null != name && !name.isEmpty()) {
+			attributes.put(Attributes.Name.IMPLEMENTATION_TITLE, name);
+		}
+		if (null != version) {
+			attributes.put(Attributes.Name.IMPLEMENTATION_VERSION, version);
+		}
+		attributes.putValue(TemplateArchive.GENERATOR_ATTRIBUTE, TemplateManifest.getGeneratorHash());
+		new TemplateArchive(archiveFile).write(manifest, classes, resources);
+	}
+	
+	/**
+	 * Store properties in key order and without the date that {@link Properties#store(OutputStream, String)} 
+	 * writes, so the same properties are always stored the same way
+	 */
+	private static byte[] storeSorted(Properties properties) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		properties.store(bos, null);
+		// Every property is on a single line and the date is the only comment
+		List<String> lines = new ArrayList<String>();
+		for (String line : new String(bos.toByteArray(), "ISO-8859-1").split("\r?\n")) {
+			if (!line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		Collections.sort(lines);
+		StringBuilder sb = new StringBuilder("#This file is automatically generated\n");
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString().getBytes("ISO-8859-1");
+	}
+	
+	/**
+	 * Write classes compiled in memory to the class directory, if this group has one
+	 */
+	private void storeClasses(Map<String, byte[]> classes, List<String> templateNames, boolean merge) {
+		if (null == templateClassDir) {
+			return;
+		}
+		try {
+			TemplateUtil.storeClasses(classes, templateClassDir);
+		} catch (IOException e) {
+			exceptionList.add(e);
+		}
+		TemplateUtil.storeTemplateMap(templateNames, templateClassDir, exceptionList, merge);
+	}
+	
+	private ClassLoader getParentClassLoader() {
+		return (null == parentTemplateGroup) ? null : parentTemplateGroup.getTemplateClassLoader();
+	}
+	
+	/**
+	 * Update a single template named by the template name. The templates that extend the template, use it as their 
+	 * layout or include it, directly or transitively, are recompiled along with it. Only the classes of these templates 
+	 * are reloaded, all other templates keep their loaded classes and instances. With a promotion threshold the 
+	 * templates are interpreted until they are hot, see {@link #setPromotionThreshold(int)}.
 	 * @param templateName
 	 */
-	public void updateSingleTemplate(String templateName) {
+	public synchronized void updateSingleTemplate(String templateName) {
+		if (null != archiveFile) {
+			// The archive is compiled as a whole
+			update();
+			return;
+		}
+		TemplateDependencyGraph graph = getDependencyGraph();
+		List<String> affected = graph.getTransitiveDependents(templateName);
+		if (promotionThreshold > 0 && interpretTemplates(affected)) {
+			return;
+		}
+		// The classes the recompiled templates are compiled against must be current
+		Set<String> names = new HashSet<String>(affected);
+		names.addAll(interpretedTemplates);
+		interpretedTemplates.clear();
+		compileAndReload(new ArrayList<String>(names));
+	}
+	
+	/**
+	 * Set the number of renders after which a template that is interpreted is compiled. With a threshold above 0 
+	 * {@link #updateSingleTemplate(String)} parses the updated templates and renders them with the interpreter, 
+	 * see {@link InterpretedTemplate}, so they are available at once. The templates are compiled and reloaded in 
+	 * the background once one of them has been rendered as often as the threshold. A full {@link #update()} 
+	 * always compiles.
+	 * @param renders the number of renders, 0 to compile updated templates right away, which is the default
+	 */
+	public void setPromotionThreshold(int renders) {
+		promotionThreshold = renders;
+	}
+	
+	/**
+	 * Parse the templates and make their interpreted templates current, the other templates keep their 
+	 * instances
+	 * @return false if a template could not be parsed, nothing is changed then
+	 */
+	private boolean interpretTemplates(List<String> templateNames) {
+		List<File> templateDirs = new ArrayList<File>();
+		for (TemplateGroup group = this; null != group; group = group.parentTemplateGroup) {
+			if (null != group.templateSrcDir) {
+				templateDirs.add(group.templateSrcDir);
+			}
+		}
+		Map<String, InterpretedTemplate> parsed = new HashMap<String, InterpretedTemplate>();
+		List<String> errorList = new ArrayList<String>();
+		List<Template> templates = new ArrayList<Template>();
+		for (String name : templateNames) {
+			Template template = InterpretedTemplate.parse(name, templateDirs, parsed, this, promotionThreshold, errorList);
+			if (null == template) {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "interpretTemplates", "Compiling instead of interpreting " 
+						+ templateNames + ": " + errorList);
+				return false;
+			}
+			templates.add(template);
+		}
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "interpretTemplates", "Interpreting " + templateNames);
+		Generation previous = generation;
+		Generation next = new Generation(previous.loader);
+		next.templates.putAll(previous.templates);
+		for (Template template : templates) {
+			FutureTask<Template> loaded = new FutureTask<Template>(new LoadedTemplate(template));
+			loaded.run();
+			next.templates.put(template.getTemplateName(), loaded);
+			templateClassMap.put(template.getTemplateName(), TemplateUtil.getClassName(template.getTemplateName()));
+		}
+		createTemplateMaps();
+		generation = next;
+		interpretedTemplates.addAll(templateNames);
+		TemplateDependencyGraph graph = getDependencyGraph();
+		for (Template template : templates) {
+			graph.add(template);
+		}
+		return true;
+	}
+	
+	/**
+	 * Compile the interpreted templates in the background, called when an interpreted template is hot
+	 * @param templateName the template that is hot
+	 */
+	void promote(String templateName) {
+		synchronized (this) {
+			if (promotionPending || !interpretedTemplates.contains(templateName)) {
+				return;
+			}
+			promotionPending = true;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				promoteInterpretedTemplates();
+			}
+		}, "rstl-promote-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Compile and reload the templates that are interpreted
+	 */
+	synchronized void promoteInterpretedTemplates() {
+		promotionPending = false;
+		if (interpretedTemplates.isEmpty()) {
+			return;
+		}
+		List<String> names = new ArrayList<String>(interpretedTemplates);
+		interpretedTemplates.clear();
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "promoteInterpretedTemplates", "Compiling " + names);
+		compileAndReload(names);
+	}
+	
+	/**
+	 * Compile the templates and reload their classes
+	 */
+	private void compileAndReload(List<String> affected) {
 		String additionalClassPath = null;
 		TemplateGroup ancestor = parentTemplateGroup;
 		while (null != ancestor) {
 			additionalClassPath = File.pathSeparator + ancestor.getTemplateClassDir();
 			ancestor = ancestor.parentTemplateGroup;
 		}
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "updateSingleTemplate", "Recompiling " + affected);
 		ByteArrayOutputStream cout = new ByteArrayOutputStream(),	cerr = new ByteArrayOutputStream();
-		TemplateUtil.compileSingle(templateName, this.templateSrcDir, genTmpDir, templateClassDir, 
-				new PrintWriter(cout), new PrintWriter(cerr), exceptionList, additionalClassPath);
+		Map<String, byte[]> classes = null;
+		if (compileInMemory) {
+			classes = TemplateUtil.compileInMemory(affected, templateSrcDir, generation.loader, 
+					new PrintWriter(cerr), exceptionList);
+			storeClasses(classes, affected, true);
+		} else {
+			TemplateUtil.compileTemplates(affected, this.templateSrcDir, genTmpDir, templateClassDir, 
+					new PrintWriter(cout), new PrintWriter(cerr), exceptionList, additionalClassPath);
+		}
 		if (cerr.size()  > 0) {
 			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "updateSingleTemplate", "Errors in compile:" + cerr);
 		}
 		_LOGGER.logp(Level.INFO, CLASS_NAME, "updateSingleTemplate", "Compilation output:" + cout);
 		
+		for (String name : affected) {
+			templateClassMap.put(name, TemplateUtil.getClassName(name));
+		}
 		createTemplateMaps();
-		templateObjectCache.clear();
-
-		templateClassLoader = new TemplateClassLoader(templateClassDir
+		reloadTemplates(affected, classes);
+		TemplateDependencyGraph graph = getDependencyGraph();
+		for (String name : affected) {
+			List<String> deps = getSourceDependencies(name);
+			if (null != deps) {
+				graph.setDependencies(name, deps);
+			} else {
+				graph.remove(name);
+			}
+		}
+	}
+	
+	/**
+	 * Return the references between the templates of this group. The graph is built the first time it is 
+	 * needed after an update, from the references recorded in the manifest of the class directory, or from 
+	 * the template sources for templates that are not in the manifest. No template is loaded to build it.
+	 */
+	synchronized TemplateDependencyGraph getDependencyGraph() {
+		if (null == dependencyGraph) {
+			TemplateDependencyGraph graph = new TemplateDependencyGraph();
+			TemplateManifest manifest = (null == templateClassDir) ? null : TemplateManifest.load(templateClassDir);
+			for (String name : templateClassMap.stringPropertyNames()) {
+				TemplateManifest.Entry entry = (null == manifest) ? null : manifest.get(name);
+				List<String> deps = (null != entry) ? entry.getDependencies() : getSourceDependencies(name);
+				if (null != deps) {
+					graph.setDependencies(name, deps);
+				}
+			}
+			dependencyGraph = graph;
+		}
+		return dependencyGraph;
+	}
+	
+	/**
+	 * Parse a template for the templates it refers to
+	 * @param templateName
+	 * @return the referenced templates, null if the template has no source
+	 */
+	private List<String> getSourceDependencies(String templateName) {
+		if (null == templateSrcDir || !new File(templateSrcDir, templateName).isFile()) {
+			return null;
+		}
+		RSTLParser parser = TemplateUtil.parse(templateSrcDir, templateName, new ArrayList<String>());
+		return (null == parser) ? null : parser.getDependencies();
+	}
+	
+	/**
+	 * Load the specified templates with a class loader layered on the current one. The instances of all other 
+	 * templates are carried over. Renders in progress keep using the templates of the previous generation.
+	 * @param templateNames the recompiled templates
+	 * @param classes the bytecode of the recompiled classes if they were compiled in memory, null if they 
+	 * were compiled to the class directory
+	 */
+	private void reloadTemplates(List<String> templateNames, Map<String, byte[]> classes) {
+		Set<String> classNames = new HashSet<String>();
+		for (String name : templateNames) {
+			classNames.add(TemplateUtil.getQualifiedClassName(name));
+		}
+		if (null != classes) {
+			// Replace the classes of the templates that compiled, including their nested classes. A template 
+			// that failed to compile keeps its previous classes.
+			Set<String> compiled = new HashSet<String>();
+			for (String className : classes.keySet()) {
+				compiled.add(getOuterClassName(className));
+			}
+			synchronized (this) {
+				Iterator<String> it = memoryClasses.keySet().iterator();
+				while (it.hasNext()) {
+					if (compiled.contains(getOuterClassName(it.next()))) {
+						it.remove();
+					}
+				}
+				memoryClasses.putAll(classes);
+			}
+		}
+		Generation previous = generation;
+		if (previous.loader.getDepth() >= MAX_LOADER_DEPTH) {
+			newGeneration();
+			return;
+		}
+		Generation next = new Generation((null == classes) 
+				? new TemplateClassLoader(templateClassDir.getAbsolutePath(), previous.loader, classNames)
+				: new TemplateClassLoader(classes, previous.loader));
+		for (Map.Entry<String, FutureTask<Template>> e : previous.templates.entrySet()) {
+			if (!classNames.contains(TemplateUtil.getQualifiedClassName(e.getKey()))) {
+				next.templates.put(e.getKey(), e.getValue());
+			}
+		}
+		generation = next;
+	}
+	
+	/**
+	 * Return the name of the top level class of a class name
+	 */
+	private static String getOuterClassName(String className) {
+		int nestedAt = className.indexOf('$');
+		return (-1 == nestedAt) ? className : className.substring(0, nestedAt);
+	}
+	
+	/**
+	 * Load the templates with a new class loader. Renders in progress keep
+	 * using the templates of the previous generation.
+	 */
+	private void newGeneration() {
+		if (compileInMemory) {
+			Map<String, byte[]> classes;
+			synchronized (this) {
+				classes = new HashMap<String, byte[]>(memoryClasses);
+			}
+			generation = new Generation(new TemplateClassLoader(classes, getParentClassLoader()));
+			return;
+		}
+		generation = new Generation(new TemplateClassLoader(templateClassDir
 				.getAbsolutePath(), (null == parentTemplateGroup) ? null
-				: parentTemplateGroup.getTemplateClassLoader());
+				: parentTemplateGroup.getTemplateClassLoader()));
 	}
 	
 	private void createTemplateMaps() {
+		createTemplateMaps(null);
+	}
+	
+	/**
+	 * Create the template maps from the template class map
+	 * @param priorities the prioritized templates by resource name, null to read the priorities of the 
+	 * templates from the template directories
+	 */
+	private void createTemplateMaps(Map<String, List<String>> priorities) {
 		templateMap = new HashMap<String, List<String>>();
 		Set<String> templateNames =  templateClassMap.stringPropertyNames();
 		for (String templateName: templateNames) {
@@ -394,6 +1030,15 @@ public class TemplateGroup {
 		prioritizedTemplateMap = new HashMap<String, List<String>>();
 		storeList = new HashSet<String>();
 		for (String resourceName :templateMap.keySet()) {
+			String store = getStoreFromTemplateName(resourceName);
+			if (null != store && !store.equals("default")) {
+				storeList.add(store);
+			}
+			if (null != priorities) {
+				List<String> orderedTemplates = priorities.get(resourceName);
+				prioritizedTemplateMap.put(resourceName, (null == orderedTemplates) ? new ArrayList<String>() : orderedTemplates);
+				continue;
+			}
 			File resDir = new File(templateSrcDir, resourceName);
 			File priorityFile = new File(resDir, TEMPLATE_PRIORITY_FILENAME);
 			List<String> templOrder = new ArrayList<String>();
@@ -418,10 +1063,6 @@ public class TemplateGroup {
 				orderedTemplates = availableTemplates;
 			}
 			prioritizedTemplateMap.put(resourceName, orderedTemplates);
-			String store = getStoreFromTemplateName(resourceName);
-			if (null != store && !store.equals("default")) {
-				storeList.add(store);
-			}
 		}
 	}
 	
@@ -444,7 +1085,7 @@ public class TemplateGroup {
 			return null;
 		}
 		// Render template
-		_LOGGER.logp(Level.FINE, CLASS_NAME, "storeTemplateMatch", "Matched template " + t.getTemplateName() + " for uri " + ctxt.get("HttpRequestURI") + " from template group" + templateSrcDir.getAbsolutePath());
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "storeTemplateMatch", "Matched template " + t.getTemplateName() + " for uri " + ctxt.get("HttpRequestURI") + " from template group" + getTemplateSrcDir());
 		return t;
 	}
 	
@@ -470,6 +1111,11 @@ public class TemplateGroup {
 			return;
 		}
 		
+		if (null == getTemplateSrcDir()) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "updateTemplateDefinition", "Template group " + name 
+					+ " is loaded from an archive and does not have template sources");
+			return;
+		}
 		File templateSrcDir = new File(getTemplateSrcDir());
 		File templateFile = new File(templateSrcDir, fullTemplateName);
 
@@ -561,6 +1207,17 @@ public class TemplateGroup {
 		updateSingleTemplate(fullTemplateName);
 	}
 
+	/**
+	 * Release the resources held on behalf of the templates in this group,
+	 * including the pooled connections and the threads used to fetch resource
+	 * representations. The connection pool and the prefetch threads are shared
+	 * by all template groups and are recreated on the next resource fetch.
+	 */
+	public void shutdown() {
+		_LOGGER.logp(Level.INFO, CLASS_NAME, "shutdown", "Shutting down template group " + name);
+		ResourcePrefetcher.shutdown();
+		HttpConnectionPool.shutdown();
+	}
 	
 	public String getName() {
 		return name;
@@ -601,4 +1258,83 @@ public class TemplateGroup {
 		}
 		return null;
 	}
+
+	/**
+	 * A compilation of the template group: the class loader for the template
+	 * classes and the template instances loaded from it
+	 */
+	private static final class Generation {
+		final TemplateClassLoader loader;
+		final ConcurrentHashMap<String, FutureTask<Template>> templates = new ConcurrentHashMap<String, FutureTask<Template>>();
+
+		Generation(TemplateClassLoader loader) {
+			this.loader = loader;
+		}
+	}
+
+	/**
+	 * A template that is already loaded, such as an interpreted template
+	 */
+	private static final class LoadedTemplate implements Callable<Template> {
+		private final Template template;
+
+		LoadedTemplate(Template template) {
+			this.template = template;
+		}
+
+		public Template call() {
+			return template;
+		}
+	}
+
+	/**
+	 * Load the template class and return its singleton instance, or null if
+	 * the template does not exist
+	 */
+	private static final class TemplateLoader implements Callable<Template> {
+		private final ClassLoader loader;
+		private final String templateName;
+		private final String genTmpDir;
+
+		TemplateLoader(ClassLoader loader, String templateName, String genTmpDir) {
+			this.loader = loader;
+			this.templateName = templateName;
+			this.genTmpDir = genTmpDir;
+		}
+
+		public Template call() {
+			String className = TemplateUtil.getPackageName() + '.' + TemplateUtil.getClassName(templateName);
+			Template template = null;
+			Class<?> clazz;
+			Method getInstanceMethod;
+			try {
+				clazz = Class.forName(className, true, loader);
+				Class<?>[] varargs = null;
+				Object[] parms = null;
+				getInstanceMethod = clazz.getMethod("getInstance", varargs);
+				Object obj = getInstanceMethod.invoke(null, parms);
+				template = (Template) obj;
+			} catch (SecurityException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (NoSuchMethodException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (IllegalArgumentException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (IllegalAccessException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (InvocationTargetException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			} catch (ClassNotFoundException e) {
+				// TODO Auto-generated catch block
+				_LOGGER.logp(Level.SEVERE, CLASS_NAME, "getTemplate", "Check if java file ("+ TemplateUtil.getClassName(templateName) +
+						" got generated or has errors at " + genTmpDir + " can be compiled");
+			}
+			return template;
+		}
+	}
 }
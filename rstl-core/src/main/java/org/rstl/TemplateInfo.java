@@ -0,0 +1,503 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rstl.context.TemplateContext;
+import org.rstl.io.ByteSink;
+import org.rstl.io.StreamUtil;
+
+/**
+ * The description of a template class generated by the
+ * {@link BytecodeGenerator}, along with the parts of rendering that are the
+ * same for every template. A generated class holds its description in a
+ * static field that is built by its static initializer, and its methods call
+ * into the description for the chunks, includes, resources and the template
+ * metadata. Only the statements of the template are turned into bytecode.
+ *
+ * The description is built once, by chaining the add methods and finishing
+ * with {@link #complete()}, and does not change afterwards, so it can be read
+ * from any thread without locking.
+ */
+public class TemplateInfo {
+	private static final String CLASS_NAME = TemplateInfo.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	private final String templateName;
+	private final String superTemplateName;
+	private final String layoutTemplateName;
+	private final Template superTemplate;
+
+	private final List<String> chunks = new ArrayList<String>();
+	private final List<byte[]> chunkBytes = new ArrayList<byte[]>();
+	private final List<SourceRef> blockRefs = new ArrayList<SourceRef>();
+	private final List<SourceRef> rgroupRefs = new ArrayList<SourceRef>();
+	private final List<SourceRef> resourceRefs = new ArrayList<SourceRef>();
+	private final List<ResourceRef> resources = new ArrayList<ResourceRef>();
+	private final Map<ResourceRef, ResourceRef> resRefMap = new LinkedHashMap<ResourceRef, ResourceRef>();
+	private final Map<String, SourceRef> rgroupSrcMap = new HashMap<String, SourceRef>();
+	private final List<String> variables = new ArrayList<String>();
+	private final List<String> preconditions = new ArrayList<String>();
+	private final List<String> includes = new ArrayList<String>();
+
+	private Set<String> allBlocks;
+	private Set<String> allRGroups;
+
+	/**
+	 * @param templateName
+	 * @param superTemplateName
+	 *            the template that is extended, null if none
+	 * @param layoutTemplateName
+	 *            the layout template named by the template itself, null if none
+	 * @param superTemplate
+	 *            the instance of the template that is extended, null if none
+	 */
+	public TemplateInfo(String templateName, String superTemplateName, String layoutTemplateName, Template superTemplate) {
+		this.templateName = templateName;
+		this.superTemplateName = superTemplateName;
+		this.layoutTemplateName = layoutTemplateName;
+		this.superTemplate = superTemplate;
+	}
+
+	/**
+	 * Describe a parsed template, the way the static initializer of a class
+	 * generated by the {@link BytecodeGenerator} does
+	 *
+	 * @param parser
+	 *            the parser of the template
+	 * @param templateName
+	 * @param superTemplate
+	 *            the instance of the template that is extended, null if none
+	 * @return the completed description
+	 */
+	static TemplateInfo describe(RSTLParser parser, String templateName, Template superTemplate) {
+		final TemplateInfo info = new TemplateInfo(templateName, parser.getSuperTemplateName(),
+				parser.getLayoutTemplateName(), superTemplate);
+		describe(parser, new Describer() {
+			public void chunk(String text) {
+				info.addChunk(text);
+			}
+
+			public void block(String name, int line) {
+				info.addBlock(name, line);
+			}
+
+			public void rgroup(String name, int line, int startIndex, int stopIndex) {
+				info.addRGroup(name, line, startIndex, stopIndex);
+			}
+
+			public void resource(String id, String widgetName, String format, String variableName,
+					String[] attributePaths, int line) {
+				info.addResource(id, widgetName, format, variableName, attributePaths, line);
+			}
+
+			public void variable(String variable) {
+				info.addVariable(variable);
+			}
+
+			public void precondition(String precondition) {
+				info.addPrecondition(precondition);
+			}
+
+			public void include(String include) {
+				info.addInclude(include);
+			}
+		});
+		return info.complete();
+	}
+
+	/**
+	 * Pass the parts of a parsed template to a describer, in the order they
+	 * are added to the description
+	 */
+	static void describe(RSTLParser parser, Describer describer) {
+		for (Chunk chunk : parser.getChunks()) {
+			describer.chunk(chunk.getText());
+		}
+		for (Block block : parser.getBlocks()) {
+			describer.block(block.getId(), block.getLine());
+		}
+		for (ResourceGroup rgroup : parser.getResourceGroups()) {
+			describer.rgroup(rgroup.getId(), rgroup.getLine(), rgroup.getDeclStart(), rgroup.getDeclStop());
+		}
+		for (Resource resource : parser.getResources()) {
+			List<String> paths = resource.getAttributePaths();
+			describer.resource(resource.getId(), nonNull(resource.getWidgetName()),
+					nonNull(resource.getRepresentationFormat()), nonNull(resource.getVariableName()),
+					(null == paths) ? null : paths.toArray(new String[paths.size()]), resource.getLine());
+		}
+		for (String variable : parser.getVariables()) {
+			describer.variable(variable);
+		}
+		for (String precondition : parser.getPreconditions()) {
+			describer.precondition(precondition);
+		}
+		for (String include : parser.getIncludes()) {
+			describer.include(include);
+		}
+	}
+
+	static String nonNull(String s) {
+		return (null == s) ? "" : s;
+	}
+
+	/**
+	 * Receives the parts of a parsed template that make up its description,
+	 * with the arguments of the matching add methods. The
+	 * {@link BytecodeGenerator} turns them into the calls of the static
+	 * initializer of the generated class.
+	 */
+	interface Describer {
+		void chunk(String text);
+
+		void block(String name, int line);
+
+		void rgroup(String name, int line, int startIndex, int stopIndex);
+
+		void resource(String id, String widgetName, String format, String variableName, String[] attributePaths,
+				int line);
+
+		void variable(String variable);
+
+		void precondition(String precondition);
+
+		void include(String include);
+	}
+
+	/**
+	 * Add the text of a chunk, chunks are numbered in the order they are added
+	 */
+	public TemplateInfo addChunk(String text) {
+		chunks.add(text);
+		chunkBytes.add(text.getBytes(StreamUtil.UTF8));
+		return this;
+	}
+
+	public TemplateInfo addBlock(String name, int line) {
+		blockRefs.add(new SourceRef(name, templateName, line));
+		return this;
+	}
+
+	public TemplateInfo addRGroup(String name, int line, int startIndex, int stopIndex) {
+		SourceRef ref = new SourceRef(name, templateName, line, startIndex, stopIndex);
+		rgroupRefs.add(ref);
+		rgroupSrcMap.put(name, ref);
+		return this;
+	}
+
+	/**
+	 * Add a resource, resources are numbered in the order they are added
+	 *
+	 * @param attributePaths
+	 *            the attribute paths of the resource variable used by the
+	 *            template, null if the whole variable is used
+	 */
+	public TemplateInfo addResource(String id, String widgetName, String format, String variableName,
+			String[] attributePaths, int line) {
+		ResourceRef key = new ResourceRef(id, widgetName, format, variableName);
+		ResourceRef resRef = new ResourceRef(id, widgetName, format, variableName,
+				(null == attributePaths) ? null : Arrays.asList(attributePaths));
+		resources.add(key);
+		resRefMap.put(key, resRef);
+		resourceRefs.add(new SourceRef(id, templateName, line));
+		return this;
+	}
+
+	public TemplateInfo addVariable(String variable) {
+		variables.add(variable);
+		return this;
+	}
+
+	public TemplateInfo addPrecondition(String precondition) {
+		preconditions.add(precondition);
+		return this;
+	}
+
+	public TemplateInfo addInclude(String include) {
+		includes.add(include);
+		return this;
+	}
+
+	/**
+	 * Collect the blocks and resource groups inherited from the template that
+	 * is extended
+	 */
+	public TemplateInfo complete() {
+		Set<String> blocks = new TreeSet<String>();
+		Set<String> rgroups = new TreeSet<String>();
+		for (SourceRef ref : blockRefs) {
+			blocks.add(ref.getName());
+		}
+		for (SourceRef ref : rgroupRefs) {
+			rgroups.add(ref.getName());
+		}
+		if (null != superTemplate) {
+			blocks.addAll(superTemplate.getBlockNames());
+			rgroups.addAll(superTemplate.getRGroupNames());
+		}
+		allBlocks = Collections.unmodifiableSet(blocks);
+		allRGroups = Collections.unmodifiableSet(rgroups);
+		return this;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	/**
+	 * @return the template that is extended, an empty string if none
+	 */
+	public String getSuperTemplateName() {
+		return (null == superTemplateName) ? "" : superTemplateName;
+	}
+
+	public String getLayoutTemplateName() {
+		return layoutTemplateName;
+	}
+
+	public Set<String> getBlockNames() {
+		return allBlocks;
+	}
+
+	public Set<String> getRGroupNames() {
+		return allRGroups;
+	}
+
+	public SourceRef getRGroupRef(String name) {
+		return rgroupSrcMap.get(name);
+	}
+
+	public List<String> getPreconditions() {
+		return Collections.unmodifiableList(preconditions);
+	}
+
+	public List<String> getIncludes() {
+		return Collections.unmodifiableList(includes);
+	}
+
+	/**
+	 * @param inherited
+	 *            the variables of the template that is extended, null if none
+	 */
+	public List<String> getVariables(List<String> inherited) {
+		List<String> retList = new ArrayList<String>(variables);
+		if (null != inherited) {
+			for (String l : inherited) {
+				if (!retList.contains(l)) {
+					retList.add(l);
+				}
+			}
+		}
+		return retList;
+	}
+
+	public Set<SourceRef> getBlockRefs(Set<SourceRef> inherited) {
+		return merge(blockRefs, inherited);
+	}
+
+	public Set<SourceRef> getRGroupRefs(Set<SourceRef> inherited) {
+		return merge(rgroupRefs, inherited);
+	}
+
+	public Set<SourceRef> getResourceRefs(Set<SourceRef> inherited) {
+		return merge(resourceRefs, inherited);
+	}
+
+	public Collection<ResourceRef> getResources(Collection<ResourceRef> inherited) {
+		List<ResourceRef> l = new ArrayList<ResourceRef>(resRefMap.values());
+		if (null != inherited) {
+			l.addAll(inherited);
+		}
+		return l;
+	}
+
+	private static Set<SourceRef> merge(List<SourceRef> refs, Set<SourceRef> inherited) {
+		Set<SourceRef> l = new TreeSet<SourceRef>(refs);
+		if (null != inherited) {
+			l.addAll(inherited);
+		}
+		return l;
+	}
+
+	/**
+	 * Write a chunk, byte oriented writers get the pre-encoded text when they
+	 * use the same charset
+	 */
+	public void writeChunk(Writer w, int chunk) {
+		try {
+			if (w instanceof ByteSink && StreamUtil.UTF8.equals(((ByteSink) w).getCharset())) {
+				byte[] b = chunkBytes.get(chunk);
+				((ByteSink) w).writeBytes(b, 0, b.length);
+			} else {
+				w.append(chunks.get(chunk));
+			}
+		} catch (IOException ioe) {
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "writeChunk", "Failed to write chunk " + chunk + " of template "
+					+ templateName, ioe);
+		}
+	}
+
+	/**
+	 * Write the value of a variable
+	 */
+	public static void writeVariable(Writer w, String value, String variable) {
+		try {
+			w.append(value);
+		} catch (IOException ioe) {
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "writeVariable", "Failed to write variable " + variable, ioe);
+		}
+	}
+
+	/**
+	 * Fetch a resource and write its representation
+	 */
+	public void fetchResource(int resource, TemplateContext c, Writer w, boolean includeTemplateMetadata) {
+		ResourceRef resRef = resRefMap.get(resources.get(resource));
+		Map<String, String> templateInfo = null;
+		if (includeTemplateMetadata) {
+			templateInfo = new HashMap<String, String>();
+			templateInfo.put("templateName", templateName);
+		}
+		resRef.fetchResource(c, w, templateInfo);
+	}
+
+	public void invokeFailed(String methodName) {
+		_LOGGER.logp(Level.WARNING, CLASS_NAME, "invokeFailed", "Failed to invoke " + methodName + " in template "
+				+ templateName + ": no such block or rgroup");
+	}
+
+	/**
+	 * Render a template, through its layout template if it has one
+	 */
+	public static void render(Template template, TemplateContext c, Writer w, boolean includeTemplateMetadata) {
+		String layoutName = template.getLayoutTemplateName();
+		Template layoutTemplate = null;
+		if (null != layoutName) {
+			layoutTemplate = findTemplate(template, layoutName, c);
+			if (null == layoutTemplate) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "render", "Failed to locate layout template \"" + layoutName
+						+ "\"");
+			}
+		}
+		if (null != layoutTemplate) {
+			layoutTemplate.renderAsLayout(template, c, w, includeTemplateMetadata);
+		} else {
+			template.renderAsLayout(null, c, w, includeTemplateMetadata);
+		}
+	}
+
+	/**
+	 * Make a template the current template of the context
+	 *
+	 * @return the template that was current before
+	 */
+	public static Object enterTemplate(Template template, Template mainTemplate, TemplateContext c) {
+		Object origTemplate = c.get(Constants.TEMPLATEREF);
+		c.put(Constants.TEMPLATEREF, (null != mainTemplate) ? mainTemplate : template);
+		return origTemplate;
+	}
+
+	/**
+	 * Restore the current template of the context
+	 */
+	public static void exitTemplate(TemplateContext c, Object origTemplate) {
+		if (null == origTemplate) {
+			c.remove(Constants.TEMPLATEREF);
+		} else {
+			c.put(Constants.TEMPLATEREF, origTemplate);
+		}
+	}
+
+	public static void renderIncludedTemplateOnce(Template template, String templateName, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata) {
+		Set<String> alreadyIncludedTemplates = (Set<String>) c.get(Constants.TEMPLATES_INCLUDED);
+		if (!alreadyIncludedTemplates.contains(templateName)) {
+			renderIncludedTemplate(template, templateName, c, w, includeTemplateMetadata);
+		}
+	}
+
+	/**
+	 * Render the included template with the current context
+	 */
+	public static void renderIncludedTemplate(Template template, String templateName, TemplateContext c, Writer w,
+			boolean includeTemplateMetadata) {
+		Set<String> alreadyIncludedTemplates = (Set<String>) c.get(Constants.TEMPLATES_INCLUDED);
+		alreadyIncludedTemplates.add(templateName);
+		Template inclTemplate = findTemplate(template, templateName, c);
+		if (null == inclTemplate) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "renderIncludedTemplate", "Failed to locate template \""
+					+ templateName + "\"");
+		} else {
+			inclTemplate.render(c, w, includeTemplateMetadata);
+		}
+	}
+
+	/**
+	 * Find a template in the template group of the context, or by its class
+	 * name in the class loader of the referring template if the context does
+	 * not have a template group
+	 */
+	private static Template findTemplate(Template template, String templateName, TemplateContext c) {
+		TemplateGroup tg = (TemplateGroup) c.get(Constants.TEMPLATE_GROUP);
+		if (null != tg) {
+			return tg.getTemplate(templateName);
+		}
+		try {
+			Class<?> templateClass = Class.forName(TemplateUtil.getQualifiedClassName(templateName), true,
+					template.getClass().getClassLoader());
+			Method getInstanceMethod = templateClass.getMethod("getInstance");
+			return (Template) getInstanceMethod.invoke(null);
+		} catch (Exception e) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "findTemplate", "Failed to load template " + templateName, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a div with the specified id and style information
+	 */
+	public static void writeDivBegin(Writer w, String id, String[] styles) {
+		try {
+			w.append("<div class=\"");
+			w.append("rgroup_" + id);
+			if (null != styles && styles.length > 0) {
+				for (String style : styles) {
+					w.append(" ").append(style);
+				}
+			}
+			w.append("\"");
+			w.append(">");
+			w.append("<div class=\"rgroupname\">" + id + "</div>");
+		} catch (IOException ioe) {
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "writeDivBegin", "Failed to write div begin " + id, ioe);
+		}
+	}
+
+	/**
+	 * Write a div end
+	 */
+	public static void writeDivEnd(Writer w) {
+		try {
+			w.append("</div>");
+		} catch (IOException ioe) {
+			_LOGGER.logp(Level.SEVERE, CLASS_NAME, "writeDivEnd", "Failed to write div end", ioe);
+		}
+	}
+}
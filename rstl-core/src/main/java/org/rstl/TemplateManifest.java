@@ -0,0 +1,342 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rstl.io.StreamUtil;
+
+/**
+ * The record of the templates compiled into a class directory. For every
+ * template the manifest keeps the hash of the template source, the hash of the
+ * Java source generated from it and the templates it depends on through
+ * extends, layout, include and widgets. The manifest is stored next to the
+ * template map in the class directory, so a template group can tell which
+ * templates have to be recompiled after a change or a restart of the JVM.
+ *
+ * A manifest only applies to classes generated by the same code generator
+ * with the same additional class path and compiled against the same templates
+ * of the parent template group, see {@link #isCompatible(String, String)}.
+ * The parent template group is recorded by its fingerprint, see
+ * {@link #getFingerprint()}, so a change to a template of an ancestor group
+ * invalidates the classes of its descendants, also across restarts.
+ */
+public class TemplateManifest {
+	private static final String CLASS_NAME = TemplateManifest.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+	public static final String MANIFEST_FILENAME = "templatemanifest.properties";
+	private static final String GENERATOR_KEY = "manifest.generator";
+	private static final String CLASSPATH_KEY = "manifest.classpath";
+	private static final String PARENT_KEY = "manifest.parent";
+	private static final String SOURCE_SUFFIX = ".source";
+	private static final String GENERATED_SUFFIX = ".generated";
+	private static final String EXTENDS_SUFFIX = ".extends";
+	private static final String DEPENDS_SUFFIX = ".depends";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static String generatorHash;
+
+	private final String generator;
+	private final String classPath;
+	private final String parent;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/**
+	 * Create an empty manifest
+	 * @param classPath the additional class path the templates are compiled with, may be null
+	 */
+	public TemplateManifest(String classPath) {
+		this(classPath, null);
+	}
+
+	/**
+	 * Create an empty manifest
+	 * @param classPath the additional class path the templates are compiled with, may be null
+	 * @param parent the fingerprint of the parent template group the templates are compiled against, may be null
+	 */
+	public TemplateManifest(String classPath, String parent) {
+		this(getGeneratorHash(), (null == classPath) ? "" : classPath, (null == parent) ? "" : parent);
+	}
+
+	private TemplateManifest(String generator, String classPath, String parent) {
+		this.generator = generator;
+		this.classPath = classPath;
+		this.parent = parent;
+	}
+
+	/**
+	 * Load the manifest of a class directory
+	 * @param classDir
+	 * @return the manifest, which is empty if the class directory does not have a readable manifest
+	 */
+	public static TemplateManifest load(File classDir) {
+		File manifestFile = getManifestFile(classDir);
+		if (manifestFile.isFile()) {
+			try {
+				FileInputStream fis = new FileInputStream(manifestFile);
+				try {
+					return load(fis);
+				} finally {
+					fis.close();
+				}
+			} catch (IOException e) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "load", "Failed to read the template manifest " + manifestFile, e);
+			}
+		}
+		return new TemplateManifest("", "", "");
+	}
+
+	/**
+	 * Load a manifest from a stream
+	 * @param is
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static TemplateManifest load(InputStream is) throws IOException {
+		Properties p = new Properties();
+		p.load(is);
+		TemplateManifest manifest = new TemplateManifest(p.getProperty(GENERATOR_KEY, ""), p.getProperty(CLASSPATH_KEY, ""),
+				p.getProperty(PARENT_KEY, ""));
+		for (String key : p.stringPropertyNames()) {
+			if (key.endsWith(SOURCE_SUFFIX)) {
+				String templateName = key.substring(0, key.length() - SOURCE_SUFFIX.length());
+				String depends = p.getProperty(templateName + DEPENDS_SUFFIX, "");
+				manifest.put(templateName, new Entry(p.getProperty(key),
+						p.getProperty(templateName + GENERATED_SUFFIX, ""),
+						p.getProperty(templateName + EXTENDS_SUFFIX),
+						depends.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(depends.split(","))));
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Store the manifest in a class directory
+	 * @param classDir
+	 * @throws IOException
+	 */
+	public void store(File classDir) throws IOException {
+		File manifestFile = getManifestFile(classDir);
+		manifestFile.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(manifestFile);
+		try {
+			store(fos);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Store the manifest in a stream
+	 * @param os
+	 * @throws IOException
+	 */
+	public void store(OutputStream os) throws IOException {
+		Properties p = new Properties();
+		p.setProperty(GENERATOR_KEY, generator);
+		p.setProperty(CLASSPATH_KEY, classPath);
+		p.setProperty(PARENT_KEY, parent);
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			String templateName = e.getKey();
+			Entry entry = e.getValue();
+			p.setProperty(templateName + SOURCE_SUFFIX, entry.getSourceHash());
+			p.setProperty(templateName + GENERATED_SUFFIX, entry.getGeneratedHash());
+			if (null != entry.getSuperTemplateName()) {
+				p.setProperty(templateName + EXTENDS_SUFFIX, entry.getSuperTemplateName());
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String dep : entry.getDependencies()) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(dep);
+			}
+			p.setProperty(templateName + DEPENDS_SUFFIX, sb.toString());
+		}
+		p.store(os, "This file is automatically generated");
+	}
+
+	/**
+	 * @param classPath the additional class path the templates are about to be compiled with
+	 * @return true if the classes recorded in this manifest were generated by the current code generator
+	 *         and compiled against the same class path
+	 */
+	public boolean isCompatible(String classPath) {
+		return isCompatible(classPath, null);
+	}
+
+	/**
+	 * @param classPath the additional class path the templates are about to be compiled with
+	 * @param parent the fingerprint of the parent template group the templates are about to be compiled against
+	 * @return true if the classes recorded in this manifest were generated by the current code generator
+	 *         and compiled against the same class path and parent template group
+	 */
+	public boolean isCompatible(String classPath, String parent) {
+		return generator.equals(getGeneratorHash()) && this.classPath.equals((null == classPath) ? "" : classPath)
+				&& this.parent.equals((null == parent) ? "" : parent);
+	}
+
+	/**
+	 * @return the hash of the recorded templates along with the code generator and the parent template group
+	 *         they were compiled against, which changes whenever the compiled classes would
+	 */
+	public String getFingerprint() {
+		StringBuilder sb = new StringBuilder(generator).append('|').append(parent);
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			sb.append('|').append(e.getKey()).append('=').append(e.getValue().getSourceHash())
+					.append(',').append(e.getValue().getGeneratedHash());
+		}
+		return hash(sb.toString().getBytes());
+	}
+
+	/**
+	 * @param templateName
+	 * @return the entry for a template, null if the template is not in the manifest
+	 */
+	public Entry get(String templateName) {
+		return entries.get(templateName);
+	}
+
+	public void put(String templateName, Entry entry) {
+		entries.put(templateName, entry);
+	}
+
+	/**
+	 * @return the names of the templates in the manifest
+	 */
+	public Set<String> getTemplateNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Compute the hash of the content of a file
+	 * @param f
+	 * @return the hex encoded hash
+	 * @throws IOException
+	 */
+	public static String hash(File f) throws IOException {
+		return hash(Files.readAllBytes(f.toPath()));
+	}
+
+	/**
+	 * Compute the hash of a byte array
+	 * @param content
+	 * @return the hex encoded hash
+	 */
+	public static String hash(byte[] content) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(content);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-1
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int ix = 0; ix < digest.length; ix++) {
+			hex[2 * ix] = HEX[(digest[ix] >> 4) & 0xF];
+			hex[2 * ix + 1] = HEX[digest[ix] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return the hash of the code generators and the version of the engine, which changes whenever the 
+	 *         generated code would
+	 */
+	static synchronized String getGeneratorHash() {
+		if (null == generatorHash) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			// Read as resources, so computing the hash does not load the code generators and their compilers
+			readResource("rstljavatemplate.stg", content);
+			readResource("BytecodeGenerator.class", content);
+			String version = TemplateManifest.class.getPackage().getImplementationVersion();
+			if (null != version) {
+				byte[] bytes = version.getBytes();
+				content.write(bytes, 0, bytes.length);
+			}
+			generatorHash = hash(content.toByteArray());
+		}
+		return generatorHash;
+	}
+
+	private static void readResource(String name, ByteArrayOutputStream content) {
+		InputStream is = TemplateManifest.class.getResourceAsStream(name);
+		if (null == is) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "getGeneratorHash", "Failed to find the code generator " + name);
+			return;
+		}
+		try {
+			try {
+				byte[] bytes = StreamUtil.readFully(is);
+				content.write(bytes, 0, bytes.length);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "getGeneratorHash", "Failed to read the code generator " + name, e);
+		}
+	}
+
+	private static File getManifestFile(File classDir) {
+		return new File(new File(classDir, TemplateUtil.getPackageDir()), MANIFEST_FILENAME);
+	}
+
+	/**
+	 * The record of a single compiled template
+	 */
+	public static final class Entry {
+		private final String sourceHash;
+		private final String generatedHash;
+		private final String superTemplateName;
+		private final List<String> dependencies;
+
+		/**
+		 * @param sourceHash the hash of the template source
+		 * @param generatedHash the hash of the Java source generated for the template
+		 * @param superTemplateName the template that is extended, null if none
+		 * @param dependencies the templates referenced through extends, layout, include and widgets
+		 */
+		public Entry(String sourceHash, String generatedHash, String superTemplateName, List<String> dependencies) {
+			this.sourceHash = sourceHash;
+			this.generatedHash = generatedHash;
+			this.superTemplateName = superTemplateName;
+			this.dependencies = Collections.unmodifiableList(new ArrayList<String>(dependencies));
+		}
+
+		public String getSourceHash() {
+			return sourceHash;
+		}
+
+		public String getGeneratedHash() {
+			return generatedHash;
+		}
+
+		public String getSuperTemplateName() {
+			return superTemplateName;
+		}
+
+		public List<String> getDependencies() {
+			return dependencies;
+		}
+	}
+}
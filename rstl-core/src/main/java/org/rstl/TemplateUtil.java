@@ -4,14 +4,27 @@ package org.rstl;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -42,6 +55,11 @@ public class TemplateUtil {
 	private static String SLASH_R_REGEX_REPLACE = "\\\\r\\\" + \n\t\\\"";
 	private static String SLASH_N_REGEX_REPLACE = "\\\\n\\\" + \n\t\\\"";
 	private static Pattern TEMPLATE_SUFFIX_PATTERN = Pattern.compile(".+\\.(ct|htm)l$");
+	
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+	private static int minBatchSize = 200;
+	private static boolean generateBytecode = false;
+	private static File cacheDir = null;
 
 	/**
 	 * Return the class name from the name of the template
@@ -137,6 +155,46 @@ public class TemplateUtil {
 		return retval;
 	}
 
+	/**
+	 * Find the attribute paths of a variable that are dereferenced by the
+	 * variable references of a template. For instance the references
+	 * "home.name" and "home.address.city" dereference the paths "name" and
+	 * "address.city" of the variable home.
+	 * 
+	 * @param variableName
+	 *            the name of the variable
+	 * @param variables
+	 *            the variable references in the template, as collected by the
+	 *            parser (including filters and for loop collections)
+	 * @return the attribute paths, or null if a reference uses the whole
+	 *         variable
+	 */
+	public static List<String> getAttributePaths(String variableName, List<String> variables) {
+		List<String> paths = new ArrayList<String>();
+		String prefix = variableName + ".";
+		for (String ref : variables) {
+			String name = ref;
+			if (name.startsWith("^")) {
+				// Strip the filter metadata ^offset,..^ and the filters
+				int metaStop = name.indexOf('^', 1);
+				String meta = name.substring(1, metaStop);
+				int comma = meta.indexOf(',');
+				int nameLen = Integer.parseInt(comma == -1 ? meta : meta.substring(0, comma));
+				name = name.substring(metaStop + 1, metaStop + 1 + nameLen);
+			} else if (name.endsWith(")") && name.indexOf('(') != -1) {
+				// for loop collection(key)
+				name = name.substring(0, name.indexOf('('));
+			}
+			if (name.equals(variableName)) {
+				return null;
+			}
+			if (name.startsWith(prefix) && !paths.contains(name.substring(prefix.length()))) {
+				paths.add(name.substring(prefix.length()));
+			}
+		}
+		return paths;
+	}
+
 	/**
 	 * Compile the java source and classes for a given template directory
 	 * 
@@ -172,12 +230,344 @@ public class TemplateUtil {
 		
 		ArrayList<String> templateNames = new ArrayList<String>();
 		List<String> errorList = new ArrayList<String>();
-		scanDirectory(templateDir, templateDir, 0, javaGenDir, templateNames,
-				errorList);
+		Map<String, String> superClasses = new HashMap<String, String>();
+		collectTemplates(templateDir, "", templateNames);
+		generateJavaFiles(templateDir, templateNames, javaGenDir, errorList, superClasses, null, exceptionList);
 		for (String error: errorList) {
 			errWriter.println(error);
 		}
-		commonCompile(templateNames, templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, false);
+		commonCompile(templateNames, superClasses, templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, false);
+	}
+
+	/**
+	 * Compile the templates of a directory that changed since the class directory was last compiled
+	 * incrementally. A template is regenerated if its source changed, its class is missing or any template 
+	 * it depends on through extends, layout, include or widgets was regenerated or removed. A regenerated 
+	 * template is only recompiled if the generated java source changed or the template it extends was 
+	 * recompiled. The classes of all other templates are reused. The state of the class directory is kept 
+	 * in a {@link TemplateManifest} in the class directory. Without a compatible manifest all templates are 
+	 * compiled.
+	 * 
+	 * @param templateDir
+	 * @param tmpJavaDir
+	 * @param classDir
+	 * @param outWriter
+	 * @param errWriter
+	 * @param exceptionList
+	 * @param additionalClassPath
+	 */
+	public static void compileIncremental(File templateDir, File tmpJavaDir,
+			File classDir, PrintWriter outWriter, PrintWriter errWriter,
+			List<Exception> exceptionList, String additionalClassPath) {
+		compileIncremental(templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, null);
+	}
+
+	/**
+	 * Compile the templates of a directory incrementally against the classes of a parent template group, see
+	 * {@link #compileIncremental(File, File, File, PrintWriter, PrintWriter, List, String)}. All templates are 
+	 * compiled if the fingerprint of the parent template group changed since the class directory was last 
+	 * compiled.
+	 * 
+	 * @param templateDir
+	 * @param tmpJavaDir
+	 * @param classDir
+	 * @param outWriter
+	 * @param errWriter
+	 * @param exceptionList
+	 * @param additionalClassPath
+	 * @param compiledAgainst the fingerprint of the parent template group, see {@link TemplateManifest#getFingerprint()}
+	 */
+	public static void compileIncremental(File templateDir, File tmpJavaDir,
+			File classDir, PrintWriter outWriter, PrintWriter errWriter,
+			List<Exception> exceptionList, String additionalClassPath, String compiledAgainst) {
+		File javaGenDir = new File(tmpJavaDir, getPackageDir());
+		javaGenDir.mkdirs();
+		File classGenDir = new File(classDir, getPackageDir());
+		classGenDir.mkdirs();
+		
+		List<String> templateNames = new ArrayList<String>();
+		collectTemplates(templateDir, "", templateNames);
+		TemplateManifest previous = TemplateManifest.load(classDir);
+		if (!previous.isCompatible(additionalClassPath, compiledAgainst)) {
+			previous = new TemplateManifest(additionalClassPath, compiledAgainst);
+		}
+		
+		// Templates whose source changed
+		Map<String, String> sourceHashes = new HashMap<String, String>();
+		Set<String> changed = new HashSet<String>();
+		for (String templateName : templateNames) {
+			TemplateManifest.Entry entry = previous.get(templateName);
+			try {
+				sourceHashes.put(templateName, TemplateManifest.hash(new File(templateDir, templateName)));
+			} catch (IOException e) {
+				sourceHashes.put(templateName, "");
+			}
+			if (null == entry || !entry.getSourceHash().equals(sourceHashes.get(templateName))
+					|| !new File(classGenDir, getClassName(templateName) + ".class").exists()) {
+				changed.add(templateName);
+			}
+		}
+		for (String templateName : previous.getTemplateNames()) {
+			if (!sourceHashes.containsKey(templateName)) {
+				deleteClassFiles(classGenDir, templateName);
+				changed.add(templateName);
+			}
+		}
+		// Along with the templates that depend on them
+		boolean propagate = true;
+		while (propagate) {
+			propagate = false;
+			for (String templateName : templateNames) {
+				if (!changed.contains(templateName)) {
+					for (String dep : previous.get(templateName).getDependencies()) {
+						if (changed.contains(dep)) {
+							changed.add(templateName);
+							propagate = true;
+							break;
+						}
+					}
+				}
+			}
+		}
+		List<String> regenerate = new ArrayList<String>();
+		for (String templateName : templateNames) {
+			if (changed.contains(templateName)) {
+				regenerate.add(templateName);
+			}
+		}
+		
+		List<String> errorList = new ArrayList<String>();
+		Map<String, String> superClasses = new HashMap<String, String>();
+		Map<String, RSTLParser> parsers = new HashMap<String, RSTLParser>();
+		generateJavaFiles(templateDir, regenerate, javaGenDir, errorList, superClasses, parsers, exceptionList);
+		if (null != errWriter) {
+			for (String error: errorList) {
+				errWriter.println(error);
+			}
+		}
+		
+		TemplateManifest manifest = new TemplateManifest(additionalClassPath, compiledAgainst);
+		Map<String, String> generatedHashes = new HashMap<String, String>();
+		Set<String> recompile = new HashSet<String>();
+		for (String templateName : regenerate) {
+			TemplateManifest.Entry entry = previous.get(templateName);
+			String generatedHash = "";
+			try {
+				generatedHash = TemplateManifest.hash(new File(javaGenDir, getClassName(templateName) + ".java"));
+			} catch (IOException e) {
+				// Not generated, compiling it reports the error
+			}
+			generatedHashes.put(templateName, generatedHash);
+			if (null == entry || !entry.getGeneratedHash().equals(generatedHash)
+					|| !new File(classGenDir, getClassName(templateName) + ".class").exists()) {
+				recompile.add(templateName);
+			}
+		}
+		// A template is recompiled along with the template it extends
+		boolean extend = true;
+		while (extend) {
+			extend = false;
+			for (String templateName : regenerate) {
+				RSTLParser parser = parsers.get(templateName);
+				if (!recompile.contains(templateName) && null != parser 
+						&& recompile.contains(parser.getSuperTemplateName())) {
+					recompile.add(templateName);
+					extend = true;
+				}
+			}
+		}
+		List<String> templatesToCompile = new ArrayList<String>();
+		for (String templateName : regenerate) {
+			if (recompile.contains(templateName)) {
+				templatesToCompile.add(templateName);
+				deleteClassFiles(classGenDir, templateName);
+			}
+		}
+		
+		if (templatesToCompile.isEmpty()) {
+			if (null != outWriter) {
+				outWriter.println("All " + templateNames.size() + " templates in " + classDir.getAbsolutePath() + " are up to date");
+			}
+		} else {
+			commonCompile(templatesToCompile, superClasses, templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, true);
+		}
+		storeTemplateMap(templateNames, classDir, exceptionList, false);
+		
+		// Record the templates that have a class, so templates that failed to compile are retried
+		for (String templateName : templateNames) {
+			if (!new File(classGenDir, getClassName(templateName) + ".class").exists()) {
+				continue;
+			}
+			RSTLParser parser = parsers.get(templateName);
+			if (null != parser) {
+				manifest.put(templateName, new TemplateManifest.Entry(sourceHashes.get(templateName), 
+						generatedHashes.get(templateName), parser.getSuperTemplateName(), parser.getDependencies()));
+			} else if (!changed.contains(templateName)) {
+				manifest.put(templateName, previous.get(templateName));
+			}
+		}
+		try {
+			manifest.store(classDir);
+		} catch (IOException e) {
+			if (null != exceptionList) {
+				exceptionList.add(e);
+			} else {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Compile templates in memory. The java sources are generated as strings and compiled with the 
+	 * {@link MemoryCompiler}, nothing is written to disk. If bytecode generation is enabled, see 
+	 * {@link #setGenerateBytecode(boolean)}, the classes are generated straight from the parsed templates 
+	 * by the {@link BytecodeGenerator} instead.
+	 * 
+	 * @param templateNames the templates to compile
+	 * @param templateDir
+	 * @param loader the class loader for the classes the templates refer to, including the templates 
+	 * they extend that are not compiled with them
+	 * @param errWriter
+	 * @param exceptionList
+	 * @return the bytecode of the template classes by binary class name
+	 */
+	public static Map<String, byte[]> compileInMemory(List<String> templateNames, final File templateDir, 
+			ClassLoader loader, PrintWriter errWriter, List<Exception> exceptionList) {
+		final boolean bytecode = generateBytecode;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		final List<List<String>> templateErrors = new ArrayList<List<String>>();
+		for (final String templateName : templateNames) {
+			final List<String> eList = new ArrayList<String>();
+			templateErrors.add(eList);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					RSTLParser parser = generate(templateDir, templateName, null, eList);
+					if (null == parser) {
+						return null;
+					}
+					ErrorReporter reporter = new ErrorReporter(new File(templateDir, templateName).getAbsolutePath());
+					parser.setErrorReporter(reporter);
+					Object result = bytecode ? parser.generateBytecode(templateName) : parser.generateSource(templateName);
+					eList.addAll(reporter.getErrors());
+					return result;
+				}
+			});
+		}
+		List<Object> results = runAll(tasks, exceptionList);
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+		for (int ix = 0; ix < templateNames.size(); ix++) {
+			if (null != errWriter) {
+				for (String error : templateErrors.get(ix)) {
+					errWriter.println(error);
+				}
+			}
+			// A template that failed was reported by runAll
+			Object result = results.get(ix);
+			if (result instanceof byte[]) {
+				classes.put(getQualifiedClassName(templateNames.get(ix)), (byte[]) result);
+			} else if (null != result) {
+				sources.put(getQualifiedClassName(templateNames.get(ix)), (String) result);
+			}
+		}
+		if (bytecode) {
+			if (null != errWriter) {
+				errWriter.flush();
+			}
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "compileInMemory", "Generated bytecode for " + classes.size() + " templates");
+			return classes;
+		}
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "compileInMemory", "Compiling " + sources.size() + " templates in memory");
+		return MemoryCompiler.compile(sources, loader, errWriter);
+	}
+	
+	/**
+	 * Write classes compiled in memory to a class directory
+	 * @param classes the bytecode of the classes by binary class name
+	 * @param classDir
+	 * @throws IOException
+	 */
+	public static void storeClasses(Map<String, byte[]> classes, File classDir) throws IOException {
+		for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+			File classFile = new File(classDir, e.getKey().replace('.', File.separatorChar) + ".class");
+			classFile.getParentFile().mkdirs();
+			FileOutputStream fos = new FileOutputStream(classFile);
+			try {
+				fos.write(e.getValue());
+			} finally {
+				fos.close();
+			}
+		}
+	}
+	
+	/**
+	 * Delete the class file of a template along with the class files of its nested classes
+	 */
+	private static void deleteClassFiles(File classGenDir, String templateName) {
+		final String className = getClassName(templateName);
+		File[] classFiles = classGenDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.equals(className + ".class") || name.startsWith(className + "$");
+			}
+		});
+		if (null != classFiles) {
+			for (File classFile : classFiles) {
+				classFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Set the number of threads used to generate and compile the templates of a directory
+	 * @param threads
+	 */
+	public static void setParallelism(int threads) {
+		parallelism = Math.max(1, threads);
+	}
+	
+	/**
+	 * Generate the classes of templates compiled in memory straight from the parsed templates, without 
+	 * generating and compiling Java source. The generated classes behave the same as the classes compiled 
+	 * from Java source and either kind can extend the other.
+	 * @param enabled
+	 */
+	public static void setGenerateBytecode(boolean enabled) {
+		generateBytecode = enabled;
+	}
+	
+	/**
+	 * @return true if the classes of templates compiled in memory are generated as bytecode, see 
+	 * {@link #setGenerateBytecode(boolean)}
+	 */
+	public static boolean isGenerateBytecode() {
+		return generateBytecode;
+	}
+	
+	/**
+	 * Keep the classes of template groups compiled in memory in a {@link TemplateArchive} in a cache 
+	 * directory. A template group that is created or updated while nothing changed since its archive was 
+	 * written loads its classes from the archive instead of compiling its templates.
+	 * @param dir the cache directory, null to compile template groups in memory on every update, which 
+	 * is the default
+	 */
+	public static void setCacheDir(File dir) {
+		cacheDir = dir;
+	}
+	
+	/**
+	 * @return the cache directory for the classes of template groups compiled in memory, null if none
+	 */
+	public static File getCacheDir() {
+		return cacheDir;
+	}
+	
+	/**
+	 * Set the minimum number of templates compiled by one compiler invocation. A template
+	 * directory is only compiled in parallel batches if it holds at least twice as many templates.
+	 * @param size
+	 */
+	public static void setMinBatchSize(int size) {
+		minBatchSize = Math.max(1, size);
 	}
 
 	/**
@@ -194,23 +584,45 @@ public class TemplateUtil {
 			File tmpJavaDir, File classDir, PrintWriter outWriter,
 			PrintWriter errWriter, List<Exception> exceptionList,
 			String additionalClassPath) {
+		compileTemplates(Collections.singletonList(templateName), templateDir, tmpJavaDir, classDir, 
+				outWriter, errWriter, exceptionList, additionalClassPath);
+	}
+	
+	/**
+	 * Compile the specified templates of a template directory in place. The templates are added to 
+	 * the template map properties file, the classes of the other templates are not touched.
+	 * 
+	 * @param templateNames
+	 * @param templateDir
+	 * @param tmpJavaDir
+	 * @param classDir
+	 * @param outWriter
+	 * @param errWriter
+	 * @param exceptionList
+	 * @param additionalClassPath
+	 */
+	public static void compileTemplates(List<String> templateNames, File templateDir,
+			File tmpJavaDir, File classDir, PrintWriter outWriter,
+			PrintWriter errWriter, List<Exception> exceptionList,
+			String additionalClassPath) {
 
 		File javaGenDir = new File(tmpJavaDir, getPackageDir());
 		
 		List<String> eList = new ArrayList<String>();
-		generateJavaFile(templateDir, templateName, javaGenDir, eList);
+		Map<String, String> superClasses = new HashMap<String, String>();
+		generateJavaFiles(templateDir, templateNames, javaGenDir, eList, superClasses, null, exceptionList);
 		for (String error: eList) {
 			errWriter.println(error);
 		}
 		
-		List<String> templatesToCompile = new ArrayList<String>();
-		templatesToCompile.add(templateName);
-		commonCompile(templatesToCompile, templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, true);
+		commonCompile(templateNames, superClasses, templateDir, tmpJavaDir, classDir, outWriter, errWriter, exceptionList, additionalClassPath, true);
 	}
 	
 	/**
 	 * Common compile utility for compiling a template directory or a single template file
 	 * @param templatesToCompile
+	 * @param superClasses the class name of the super template of each generated class that extends one, 
+	 * null if the templates should be compiled in a single batch
 	 * @param templateDir
 	 * @param tmpJavaDir
 	 * @param classDir
@@ -220,8 +632,8 @@ public class TemplateUtil {
 	 * @param additionalClassPath
 	 * @param spotUpdate if true then the specified template or templates will be updated in place
 	 */
-	private static void commonCompile(List<String> templatesToCompile, File templateDir,
-			File tmpJavaDir, File classDir, PrintWriter outWriter,
+	private static void commonCompile(List<String> templatesToCompile, Map<String, String> superClasses, 
+			File templateDir, File tmpJavaDir, File classDir, PrintWriter outWriter,
 			PrintWriter errWriter, List<Exception> exceptionList,
 			String additionalClassPath, boolean spotUpdate) 
 	{
@@ -234,42 +646,47 @@ public class TemplateUtil {
 		}
 
 		File srcDir = new File(tmpJavaDir, getPackageDir());
-		File templateMapDir = new File(classDir, getPackageDir());
-		File templateMap = new File(templateMapDir,
-				TEMPLATE_MAP_PROPERTY_FILENAME);
-		Properties p = new Properties();
 		System.out.println("Additional Classpath: " + additionalClassPath);
+		// The class directory is on the class path for templates extending templates that are not recompiled
 		String classPath = "-cp "
-				+ rstlClassPath
+				+ rstlClassPath + File.pathSeparator + classDir.getAbsolutePath()
 				+ ((null != additionalClassPath) ? additionalClassPath : "");
 		if (null != outWriter) {
 			outWriter.println("Compiling " + templatesToCompile.size() + " source files to " + classDir.getAbsolutePath());
 		}
-		StringBuffer sb = new StringBuffer();
-		for (String templateName : templatesToCompile) {
-			File javaFile = new File(srcDir, getClassName(templateName)
-					+ ".java");
-			sb.append(javaFile.getAbsolutePath()).append(" ");
-			p.put(templateName, getClassName(templateName));
-		}
 		
-		String compileStr = "-1.7 " + classPath + " -nowarn " + sb.toString()
-				+ " -d " + classDir.getAbsolutePath();
-		_LOGGER.logp(Level.FINE, CLASS_NAME, "compile", "The compile string is :" + compileStr);
-		System.out.println("The compile str is " + compileStr);
-		CompilationProgress progress = null;
-		BatchCompiler.compile(compileStr, outWriter, errWriter, progress);
+		List<List<String>> batches = createBatches(templatesToCompile, superClasses);
+		if (batches.size() == 1) {
+			compileBatch(batches.get(0), srcDir, classPath, classDir, outWriter, errWriter);
+		} else {
+			compileBatches(batches, srcDir, classPath, classDir, outWriter, errWriter, exceptionList);
+		}
 
+		storeTemplateMap(templatesToCompile, classDir, exceptionList, spotUpdate);
+	}
+	
+	/**
+	 * Write the template map properties file, which maps template names to the generated class names
+	 * @param templateNames
+	 * @param classDir
+	 * @param exceptionList
+	 * @param merge if true the templates are added to the existing template map
+	 */
+	static void storeTemplateMap(List<String> templateNames, File classDir, List<Exception> exceptionList, boolean merge) {
+		File templateMapDir = new File(classDir, getPackageDir());
+		File templateMap = new File(templateMapDir,
+				TEMPLATE_MAP_PROPERTY_FILENAME);
+		Properties p = new Properties();
 		try {
 			templateMap.createNewFile();
-			if (spotUpdate) {
+			if (merge) {
 				FileInputStream fis = new FileInputStream(templateMap);
 				p.load(fis);
-				for (String templateName: templatesToCompile) {
-					p.put(templateName, getClassName(templateName));
-				}
 				fis.close();
 			}
+			for (String templateName: templateNames) {
+				p.put(templateName, getClassName(templateName));
+			}
 			FileOutputStream fos = new FileOutputStream(templateMap);
 			p.store(new PrintWriter(fos),
 					"This file is automatically generated");
@@ -281,11 +698,194 @@ public class TemplateUtil {
 				e.printStackTrace();
 			}
 		}
+	}
+	
+	/**
+	 * Compile a batch of generated template classes with a single compiler invocation
+	 */
+	private static void compileBatch(List<String> templateNames, File srcDir, String classPath, File classDir, 
+			PrintWriter outWriter, PrintWriter errWriter) {
+		StringBuffer sb = new StringBuffer();
+		for (String templateName : templateNames) {
+			File javaFile = new File(srcDir, getClassName(templateName)
+					+ ".java");
+			sb.append(javaFile.getAbsolutePath()).append(" ");
+		}
 		
+		String compileStr = "-1.7 " + classPath + " -nowarn " + sb.toString()
+				+ " -d " + classDir.getAbsolutePath();
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "compile", "The compile string is :" + compileStr);
+		CompilationProgress progress = null;
+		BatchCompiler.compile(compileStr, outWriter, errWriter, progress);
+	}
+	
+	/**
+	 * Compile batches in parallel. The output of each batch is collected separately and 
+	 * written out in batch order, so the combined output does not depend on timing.
+	 */
+	private static void compileBatches(List<List<String>> batches, final File srcDir, final String classPath, 
+			final File classDir, PrintWriter outWriter, PrintWriter errWriter, List<Exception> exceptionList) {
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "compileBatches", "Compiling in " + batches.size() + " parallel batches");
+		List<StringWriter> outs = new ArrayList<StringWriter>();
+		List<StringWriter> errs = new ArrayList<StringWriter>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<String> batch : batches) {
+			final StringWriter out = new StringWriter();
+			final StringWriter err = new StringWriter();
+			outs.add(out);
+			errs.add(err);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					PrintWriter batchOut = new PrintWriter(out);
+					PrintWriter batchErr = new PrintWriter(err);
+					compileBatch(batch, srcDir, classPath, classDir, batchOut, batchErr);
+					batchOut.flush();
+					batchErr.flush();
+					return null;
+				}
+			});
+		}
+		runAll(tasks, exceptionList);
+		for (int ix = 0; ix < batches.size(); ix++) {
+			if (null != outWriter) {
+				outWriter.print(outs.get(ix));
+			}
+			if (null != errWriter) {
+				errWriter.print(errs.get(ix));
+			}
+		}
+	}
+	
+	/**
+	 * Split the templates into batches that can be compiled independently. A template that extends
+	 * another is compiled in the same batch as its super template. The split only depends on the 
+	 * templates, not on timing.
+	 */
+	private static List<List<String>> createBatches(List<String> templateNames, Map<String, String> superClasses) {
+		List<List<String>> batches = new ArrayList<List<String>>();
+		int batchCount = Math.min(parallelism, templateNames.size() / minBatchSize);
+		if (null == superClasses || batchCount < 2) {
+			batches.add(templateNames);
+			return batches;
+		}
+		
+		// Group each template with the root of its inheritance tree
+		Map<String, String> classToTemplate = new HashMap<String, String>();
+		for (String templateName : templateNames) {
+			classToTemplate.put(getClassName(templateName), templateName);
+		}
+		Map<String, List<String>> families = new LinkedHashMap<String, List<String>>();
+		for (String templateName : templateNames) {
+			String root = templateName;
+			Set<String> visited = new HashSet<String>();
+			while (visited.add(root)) {
+				String superTemplate = classToTemplate.get(superClasses.get(getClassName(root)));
+				if (null == superTemplate) {
+					break;
+				}
+				root = superTemplate;
+			}
+			List<String> family = families.get(root);
+			if (null == family) {
+				family = new ArrayList<String>();
+				families.put(root, family);
+			}
+			family.add(templateName);
+		}
+		
+		// Largest families first, each to the smallest batch so far
+		List<List<String>> sorted = new ArrayList<List<String>>(families.values());
+		Collections.sort(sorted, new Comparator<List<String>>() {
+			public int compare(List<String> f1, List<String> f2) {
+				return f2.size() - f1.size();
+			}
+		});
+		for (int ix = 0; ix < batchCount; ix++) {
+			batches.add(new ArrayList<String>());
+		}
+		for (List<String> family : sorted) {
+			List<String> smallest = batches.get(0);
+			for (List<String> batch : batches) {
+				if (batch.size() < smallest.size()) {
+					smallest = batch;
+				}
+			}
+			smallest.addAll(family);
+		}
+		Iterator<List<String>> it = batches.iterator();
+		while (it.hasNext()) {
+			if (it.next().isEmpty()) {
+				it.remove();
+			}
+		}
+		return batches;
+	}
+	
+	/**
+	 * Run tasks on a pool of parallelism threads and wait for all of them to complete. The exception of 
+	 * a task that failed is added to the exception list. If the thread is interrupted while collecting 
+	 * the results, the interruption is added to the exception list, the remaining results are dropped 
+	 * and the interrupt status of the thread is restored.
+	 * @return the results of the tasks in task order, null for a task that failed
+	 */
+	private static <T> List<T> runAll(List<Callable<T>> tasks, List<Exception> exceptionList) {
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, Math.max(1, tasks.size())));
+		try {
+			List<Future<T>> futures = pool.invokeAll(tasks);
+			List<T> results = new ArrayList<T>(futures.size());
+			boolean interrupted = false;
+			for (Future<T> future : futures) {
+				T result = null;
+				if (!interrupted) {
+					try {
+						result = future.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (null != exceptionList) {
+							exceptionList.add((cause instanceof Exception) ? (Exception) cause : e);
+						} else {
+							cause.printStackTrace();
+						}
+					} catch (InterruptedException e) {
+						interrupted = true;
+						if (null != exceptionList) {
+							exceptionList.add(e);
+						} else {
+							e.printStackTrace();
+						}
+					}
+				}
+				results.add(result);
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
 	}
 
 	public static void generateJavaFile(File templateDir, String templateName,
 			File tmpJavaDir, List<String> errorList) {
+		generate(templateDir, templateName, tmpJavaDir, errorList);
+	}
+	
+	/**
+	 * Parse a template without generating code for it
+	 * @return the parser of the template, null if the template could not be read
+	 */
+	static RSTLParser parse(File templateDir, String templateName, List<String> errorList) {
+		return generate(templateDir, templateName, null, errorList);
+	}
+	
+	/**
+	 * Generate the java file for a template
+	 * @param tmpJavaDir the directory for the java file, null to only parse the template
+	 * @return the parser of the template, null if the template could not be read
+	 */
+	private static RSTLParser generate(File templateDir, String templateName,
+			File tmpJavaDir, List<String> errorList) {
 		File templateFile = new File(templateDir, templateName);
 		ErrorReporter reporter = new ErrorReporter(templateFile.getAbsolutePath());
 		ANTLRFileStream stream = null;
@@ -298,7 +898,7 @@ public class TemplateUtil {
 		if (null == stream) {
 			_LOGGER.logp(Level.WARNING, CLASS_NAME, "generateJavaFile", "Failed to find template:"
 					+ templateFile.getAbsolutePath());
-			return;
+			return null;
 		}
 		RSTLLexer lexer = new RSTLLexer(stream);
 		lexer.setErrorReporter(reporter);
@@ -310,8 +910,11 @@ public class TemplateUtil {
 		} catch (RecognitionException re) {
 			re.printStackTrace();
 		}
+		if (null != tmpJavaDir) {
+			parser.generateCode(templateName, tmpJavaDir);
+		}
 		errorList.addAll(reporter.getErrors());
-		parser.generateCode(templateName, tmpJavaDir);
+		return parser;
 	}
 
 	/**
@@ -325,40 +928,86 @@ public class TemplateUtil {
 	public static void scanDirectory(String templateDir, String tmpJavaDir, List<String> templateNames, List<String> errorList) {
 		File templateSrcDir = new File(templateDir);
 		File genDestDir = new File(tmpJavaDir);
-		scanDirectory(templateSrcDir, templateSrcDir, 0, genDestDir, templateNames, errorList);
+		List<String> names = new ArrayList<String>();
+		collectTemplates(templateSrcDir, "", names);
+		List<Exception> exceptionList = new ArrayList<Exception>();
+		generateJavaFiles(templateSrcDir, names, genDestDir, errorList, new HashMap<String, String>(), null, exceptionList);
+		for (Exception e : exceptionList) {
+			errorList.add(e.toString());
+		}
+		templateNames.addAll(names);
+	}
+	
+	/**
+	 * Return the names of the templates in a template directory and its sub directories, in name order
+	 * @param templateDir
+	 * @return the template names, relative to the template directory
+	 */
+	public static List<String> getTemplateNames(File templateDir) {
+		List<String> templateNames = new ArrayList<String>();
+		collectTemplates(templateDir, "", templateNames);
+		return templateNames;
 	}
 	
 	/**
-	 * Scan a template directory for templates and generate a java classes for any matching templates
+	 * Collect the names of the templates in a directory and its sub directories, in name order
 	 * 
-	 * @param templateDir - the root directory of the templates
 	 * @param workingDir - the current working directory within the root directory
-	 * @param level - the directory level
-	 * @param tmpJavaDir - the java directory where the temporary generated files str
+	 * @param prefix - the path of the working directory relative to the root directory
 	 * @param templateNames - the list of template names
-	 * @param errors - The list of errors
 	 */
-	private static void scanDirectory(File templateDir, File workingDir,
-			int level, File tmpJavaDir, List<String> templateNames,
-			List<String> errors) {
+	private static void collectTemplates(File workingDir, String prefix, List<String> templateNames) {
 		File[] files = workingDir.listFiles();
+		Arrays.sort(files);
 		for (File candidate : files) {
 			if (candidate.isDirectory()) {
-				scanDirectory(templateDir, candidate, level + 1, tmpJavaDir,
-						templateNames, errors);
+				collectTemplates(candidate, prefix + candidate.getName() + "/", templateNames);
 			} else if (candidate.isFile()
 					&& TEMPLATE_SUFFIX_PATTERN.matcher(candidate.getName()).matches()) {
-				String templateName = candidate.getAbsolutePath();
-				int index = templateName.lastIndexOf(File.separator);
-				for (int ix = 0; ix < level; ix++) {
-					index = templateName.substring(0, index).lastIndexOf(
-							File.separator);
+				templateNames.add(prefix + candidate.getName());
+			}
+		}
+	}
+	
+	/**
+	 * Parse the templates and generate their java files in parallel. Errors are reported in the order 
+	 * of the templates.
+	 * 
+	 * @param templateDir - the root directory of the templates
+	 * @param templateNames - the templates to generate
+	 * @param tmpJavaDir - the java directory where the temporary generated files are stored
+	 * @param errors - The list of errors
+	 * @param superClasses - receives the class name of the super template of each generated class that extends one
+	 * @param parsers - receives the parser of each generated template, may be null
+	 * @param exceptionList - receives the exceptions that prevented a template from being generated
+	 */
+	private static void generateJavaFiles(final File templateDir, List<String> templateNames, final File tmpJavaDir,
+			List<String> errors, Map<String, String> superClasses, Map<String, RSTLParser> parsers, 
+			List<Exception> exceptionList) {
+		List<Callable<RSTLParser>> tasks = new ArrayList<Callable<RSTLParser>>();
+		final List<List<String>> templateErrors = new ArrayList<List<String>>();
+		for (final String templateName : templateNames) {
+			final List<String> eList = new ArrayList<String>();
+			templateErrors.add(eList);
+			tasks.add(new Callable<RSTLParser>() {
+				public RSTLParser call() {
+					return generate(templateDir, templateName, tmpJavaDir, eList);
 				}
-				templateName = templateName.substring(index + 1).replace("\\",
-						"/");
-				templateNames.add(templateName);
-				generateJavaFile(templateDir, templateName, tmpJavaDir,
-						errors);
+			});
+		}
+		List<RSTLParser> results = runAll(tasks, exceptionList);
+		for (int ix = 0; ix < templateNames.size(); ix++) {
+			errors.addAll(templateErrors.get(ix));
+			// A template that failed was reported by runAll
+			RSTLParser parser = results.get(ix);
+			if (null == parser) {
+				continue;
+			}
+			if (null != parser.getSuperClassName()) {
+				superClasses.put(getClassName(templateNames.get(ix)), parser.getSuperClassName());
+			}
+			if (null != parsers) {
+				parsers.put(templateNames.get(ix), parser);
 			}
 		}
 	}
@@ -22,10 +22,38 @@ public class VarUtil {
 	private static List<String> builtInList = Arrays.asList(builtInFilters);
 	
 	public static String getFilterFunction(String filterName) {
-		if (builtInList.contains(filterName)) {
-			return "VarUtil." + filterName + "(";
-		} else {
-			return "VarUtil.noop(";
+		return "VarUtil." + getFilterMethodName(filterName) + "(";
+	}
+	
+	/**
+	 * Return the name of the method of this class that applies a filter to a String
+	 * @param filterName
+	 * @return the method name, noop for filters that are not built in
+	 */
+	public static String getFilterMethodName(String filterName) {
+		return builtInList.contains(filterName) ? filterName : "noop";
+	}
+	
+	/**
+	 * Apply a filter to a String
+	 * @param filterName
+	 * @param s
+	 * @return the filtered String, the String itself for filters that are not built in
+	 */
+	public static String applyFilter(String filterName, String s) {
+		switch (getFilterMethodName(filterName)) {
+		case "urlencode":
+			return urlencode(s);
+		case "upper":
+			return upper(s);
+		case "lower":
+			return lower(s);
+		case "join":
+			return join(s);
+		case "xmlescape":
+			return xmlescape(s);
+		default:
+			return noop(s);
 		}
 	}
 	
@@ -35,6 +35,7 @@ public class BlockContextProvider implements IContextProvider {
 			String methodName = vName.substring(BLOCK_NAMESPACE.length() + 1);
 			Template template = (Template)ctx.get(Constants.TEMPLATEREF);
 			if (template.getBlockNames().contains(methodName)) {
+				// The block is kept as a String, so it is rendered into characters rather than encoded bytes
 				Writer w = new StringWriter();
 				template.invokeMethod(methodName + "Block", ctx, w, false);
 				retVal = w.toString();
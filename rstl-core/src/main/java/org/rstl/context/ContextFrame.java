@@ -0,0 +1,130 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.context;
+
+/**
+ * Local variables of the template code being rendered, such as for-loop keys
+ * and the forloop counter. The variables are kept in slots on a stack that is
+ * owned by one {@link TemplateContext}, so the context map is not modified
+ * while iterating.
+ *
+ * Generated code reserves the slots for a loop with {@link #enter(String, String)}
+ * when the loop starts. The position of each variable relative to the returned
+ * base slot is fixed when the template is compiled, so binding a new value on
+ * every iteration is a plain array store. Variable lookups in the context check
+ * the slots, innermost first, before the context map.
+ *
+ * A frame is not thread safe, it is used by the single thread rendering with
+ * its context.
+ */
+public final class ContextFrame {
+	private static final int INITIAL_SLOTS = 16;
+	/**
+	 * Returned by {@link #lookup(String)} for a variable that is not bound, as
+	 * a variable can be bound to null
+	 */
+	static final Object UNBOUND = new Object();
+
+	private String[] names = new String[INITIAL_SLOTS];
+	private Object[] values = new Object[INITIAL_SLOTS];
+	private int top = 0;
+
+	/**
+	 * Reserve a slot for a single variable
+	 *
+	 * @param name
+	 * @return the slot of the variable
+	 */
+	public int enter(String name) {
+		ensureCapacity(top + 1);
+		names[top] = name;
+		return top++;
+	}
+
+	/**
+	 * Reserve two consecutive slots
+	 *
+	 * @param name1
+	 *            the variable in the returned slot
+	 * @param name2
+	 *            the variable in the slot following it
+	 * @return the slot of the first variable
+	 */
+	public int enter(String name1, String name2) {
+		ensureCapacity(top + 2);
+		int base = top;
+		names[base] = name1;
+		names[base + 1] = name2;
+		top += 2;
+		return base;
+	}
+
+	/**
+	 * Bind a value to a slot
+	 *
+	 * @param slot
+	 * @param value
+	 */
+	public void set(int slot, Object value) {
+		values[slot] = value;
+	}
+
+	/**
+	 * Release the slots starting at base along with any slots reserved after
+	 * it
+	 *
+	 * @param base
+	 */
+	public void exit(int base) {
+		for (int ix = base; ix < top; ix++) {
+			names[ix] = null;
+			values[ix] = null;
+		}
+		top = base;
+	}
+
+	/**
+	 * Find the innermost slot for a variable
+	 *
+	 * @param name
+	 * @return the slot, -1 if the variable is not bound
+	 */
+	public int find(String name) {
+		for (int ix = top - 1; ix >= 0; ix--) {
+			String n = names[ix];
+			if (n == name || n.equals(name)) {
+				return ix;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Look up the value of a variable
+	 *
+	 * @param name
+	 * @return the value bound to the innermost slot for the variable, which may
+	 *         be null, or {@link #UNBOUND} if the variable is not bound
+	 */
+	Object lookup(String name) {
+		if (0 == top) {
+			return UNBOUND;
+		}
+		int slot = find(name);
+		return -1 == slot ? UNBOUND : values[slot];
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > names.length) {
+			int capacity = Math.max(size, names.length * 2);
+			String[] newNames = new String[capacity];
+			Object[] newValues = new Object[capacity];
+			System.arraycopy(names, 0, newNames, 0, top);
+			System.arraycopy(values, 0, newValues, 0, top);
+			names = newNames;
+			values = newValues;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.context;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Iterates the collection of a for loop. A cursor is created once per loop
+ * and walks the value in place, so arrays are not copied, primitive arrays
+ * can be iterated, and lists with random access are iterated by index without
+ * an iterator.
+ *
+ * For a Map the cursor walks the entries; {@link #getKey()} returns the key of
+ * the entry and {@link #getValue()} its value, which is what the
+ * "for key, value in map" form of the loop binds. For any other collection
+ * {@link #getKey()} returns the element and {@link #getValue()} returns null.
+ *
+ * Elements of primitive arrays are boxed when they are returned.
+ */
+public abstract class LoopCursor {
+	private static final String CLASS_NAME = LoopCursor.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	/**
+	 * Create a cursor for the collection of a loop
+	 *
+	 * @param value
+	 *            the value of the collection
+	 * @param reference
+	 *            the variable reference the value was retrieved with, used for
+	 *            logging
+	 * @return the cursor, which is empty if the value cannot be iterated
+	 */
+	public static LoopCursor over(Object value, Object reference) {
+		if (null == value) {
+			return new EmptyCursor();
+		}
+		if (value instanceof List && value instanceof RandomAccess) {
+			return new ListCursor((List<?>) value);
+		} else if (value instanceof Iterable) {
+			return new IteratorCursor((Iterable<?>) value);
+		} else if (value instanceof Map) {
+			return new MapCursor((Map<?, ?>) value);
+		} else if (value instanceof Object[]) {
+			return new ObjectArrayCursor((Object[]) value);
+		} else if (value instanceof int[]) {
+			return new IntArrayCursor((int[]) value);
+		} else if (value instanceof long[]) {
+			return new LongArrayCursor((long[]) value);
+		} else if (value.getClass().isArray()) {
+			return new ArrayCursor(value);
+		} else if (value instanceof String) {
+			return new ObjectArrayCursor(new Object[] {value});
+		}
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "over", "Could not convert variable reference " + reference + " to List (" + value.getClass().getName() +")");
+		return new EmptyCursor();
+	}
+
+	/**
+	 * @return the number of elements, 0 if it is not known up front
+	 */
+	public abstract int size();
+
+	/**
+	 * Move to the next element
+	 *
+	 * @return false if there are no more elements
+	 */
+	public abstract boolean next();
+
+	/**
+	 * @return the current element, or the key of the current entry of a Map
+	 */
+	public abstract Object getKey();
+
+	/**
+	 * @return the value of the current entry of a Map, null for other
+	 *         collections
+	 */
+	public Object getValue() {
+		return null;
+	}
+
+	private static final class EmptyCursor extends LoopCursor {
+		public int size() {
+			return 0;
+		}
+
+		public boolean next() {
+			return false;
+		}
+
+		public Object getKey() {
+			return null;
+		}
+	}
+
+	private static final class ListCursor extends LoopCursor {
+		private final List<?> list;
+		private final int size;
+		private int ix = -1;
+
+		ListCursor(List<?> list) {
+			this.list = list;
+			this.size = list.size();
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() {
+			return ++ix < size;
+		}
+
+		public Object getKey() {
+			return list.get(ix);
+		}
+	}
+
+	private static final class IteratorCursor extends LoopCursor {
+		private final Iterator<?> it;
+		private final int size;
+		private Object current;
+
+		IteratorCursor(Iterable<?> iterable) {
+			this.it = iterable.iterator();
+			this.size = (iterable instanceof Collection) ? ((Collection<?>) iterable).size() : 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() {
+			if (it.hasNext()) {
+				current = it.next();
+				return true;
+			}
+			current = null;
+			return false;
+		}
+
+		public Object getKey() {
+			return current;
+		}
+	}
+
+	private static final class MapCursor extends LoopCursor {
+		private final Iterator<? extends Map.Entry<?, ?>> it;
+		private final int size;
+		private Map.Entry<?, ?> current;
+
+		MapCursor(Map<?, ?> map) {
+			this.it = map.entrySet().iterator();
+			this.size = map.size();
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() {
+			if (it.hasNext()) {
+				current = it.next();
+				return true;
+			}
+			current = null;
+			return false;
+		}
+
+		public Object getKey() {
+			return current.getKey();
+		}
+
+		public Object getValue() {
+			return current.getValue();
+		}
+	}
+
+	private static final class ObjectArrayCursor extends LoopCursor {
+		private final Object[] arr;
+		private int ix = -1;
+
+		ObjectArrayCursor(Object[] arr) {
+			this.arr = arr;
+		}
+
+		public int size() {
+			return arr.length;
+		}
+
+		public boolean next() {
+			return ++ix < arr.length;
+		}
+
+		public Object getKey() {
+			return arr[ix];
+		}
+	}
+
+	private static final class IntArrayCursor extends LoopCursor {
+		private final int[] arr;
+		private int ix = -1;
+
+		IntArrayCursor(int[] arr) {
+			this.arr = arr;
+		}
+
+		public int size() {
+			return arr.length;
+		}
+
+		public boolean next() {
+			return ++ix < arr.length;
+		}
+
+		public Object getKey() {
+			return Integer.valueOf(arr[ix]);
+		}
+	}
+
+	private static final class LongArrayCursor extends LoopCursor {
+		private final long[] arr;
+		private int ix = -1;
+
+		LongArrayCursor(long[] arr) {
+			this.arr = arr;
+		}
+
+		public int size() {
+			return arr.length;
+		}
+
+		public boolean next() {
+			return ++ix < arr.length;
+		}
+
+		public Object getKey() {
+			return Long.valueOf(arr[ix]);
+		}
+	}
+
+	/**
+	 * Any other primitive array
+	 */
+	private static final class ArrayCursor extends LoopCursor {
+		private final Object arr;
+		private final int size;
+		private int ix = -1;
+
+		ArrayCursor(Object arr) {
+			this.arr = arr;
+			this.size = Array.getLength(arr);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() {
+			return ++ix < size;
+		}
+
+		public Object getKey() {
+			return Array.get(arr, ix);
+		}
+	}
+}
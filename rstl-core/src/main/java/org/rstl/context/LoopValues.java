@@ -0,0 +1,101 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.context;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.RandomAccess;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversion of context values to collections, used by
+ * {@link TemplateContext#getList(String)} and
+ * {@link TemplateContext#getListSize(String)}. Generated for loops iterate
+ * with a {@link LoopCursor} instead.
+ */
+public class LoopValues {
+	private static final String CLASS_NAME = LoopValues.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	private LoopValues() {
+	}
+
+	/**
+	 * Return a value as something that can be iterated
+	 *
+	 * @param value
+	 *            the value of the collection
+	 * @param reference
+	 *            the variable reference the value was retrieved with, used for
+	 *            logging
+	 * @return the iterable, an empty list if the value cannot be iterated
+	 */
+	public static Iterable<Object> toIterable(Object value, Object reference) {
+		if (null != value) {
+			if (value instanceof Iterable) {
+				return (Iterable<Object>) value;
+			} else if (value instanceof String) {
+				return Arrays.asList(value);
+			} else if (value instanceof Object[]) {
+				return Arrays.asList((Object[]) value);
+			} else if (value.getClass().isArray()) {
+				return new PrimitiveArrayList(value);
+			} else {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "toIterable", "Could not convert variable reference " + reference + " to List (" + value.getClass().getName() +")");
+			}
+		}
+		return Collections.EMPTY_LIST;
+	}
+
+	/**
+	 * Return the number of elements in a value
+	 *
+	 * @param value
+	 *            the value of the collection
+	 * @param reference
+	 *            the variable reference the value was retrieved with, used for
+	 *            logging
+	 * @return the number of elements, 0 if the size is not known
+	 */
+	public static int size(Object value, Object reference) {
+		if (null != value) {
+			if (value instanceof Collection) {
+				return ((Collection<?>) value).size();
+			} else if (value instanceof String) {
+				return 1;
+			} else if (value.getClass().isArray()) {
+				return Array.getLength(value);
+			} else {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "size", "Could not convert variable reference " + reference + " to List (" + value.getClass().getName() +")");
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Read only view of a primitive array with boxed elements
+	 */
+	private static final class PrimitiveArrayList extends AbstractList<Object> implements RandomAccess {
+		private final Object arr;
+		private final int size;
+
+		PrimitiveArrayList(Object arr) {
+			this.arr = arr;
+			this.size = Array.getLength(arr);
+		}
+
+		public Object get(int index) {
+			return Array.get(arr, index);
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.context;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of the accessors used to read properties of Java beans
+ * referenced from templates.
+ *
+ * A property "name" is read with the public method getName(), the public
+ * boolean method isName() or the public field name, in that order. The result
+ * of the lookup is remembered per class, including the fact that a class does
+ * not have the property, so reflection is used at most once for every class
+ * and property. Accessors are kept in a {@link ClassValue} and therefore do not
+ * prevent classes from being unloaded along with their class loader.
+ */
+public class PropertyAccessors {
+	private static final String CLASS_NAME = PropertyAccessors.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final ClassValue<ConcurrentMap<String, PropertyAccessor>> accessors = new ClassValue<ConcurrentMap<String, PropertyAccessor>>() {
+		protected ConcurrentMap<String, PropertyAccessor> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, PropertyAccessor>();
+		}
+	};
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private PropertyAccessors() {
+	}
+
+	/**
+	 * Return the accessor for a property of a class
+	 *
+	 * @param clazz
+	 * @param property
+	 * @return the accessor, never null. If the class does not have the
+	 *         property, the accessor's {@link PropertyAccessor#exists()}
+	 *         returns false.
+	 */
+	public static PropertyAccessor getAccessor(Class<?> clazz, String property) {
+		ConcurrentMap<String, PropertyAccessor> classAccessors = accessors.get(clazz);
+		PropertyAccessor accessor = classAccessors.get(property);
+		if (null != accessor) {
+			hits.incrementAndGet();
+			return accessor;
+		}
+		misses.incrementAndGet();
+		accessor = new PropertyAccessor(clazz, property, resolve(clazz, property));
+		PropertyAccessor prev = classAccessors.putIfAbsent(property, accessor);
+		return null == prev ? accessor : prev;
+	}
+
+	/**
+	 * Read a property of a bean
+	 *
+	 * @param bean
+	 * @param property
+	 * @return the value of the property, null if the bean does not have the
+	 *         property or reading it failed
+	 */
+	public static Object getProperty(Object bean, String property) {
+		return getAccessor(bean.getClass(), property).get(bean);
+	}
+
+	/**
+	 * @return the number of lookups answered from the registry
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to inspect the class
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	private static MethodHandle resolve(Class<?> clazz, String property) {
+		if (property.isEmpty()) {
+			return null;
+		}
+		String suffix = property.substring(0, 1).toUpperCase() + property.substring(1);
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		try {
+			Method m = findMethod(clazz, "get" + suffix);
+			if (null == m) {
+				m = findMethod(clazz, "is" + suffix);
+				if (null != m && m.getReturnType() != boolean.class && m.getReturnType() != Boolean.class) {
+					m = null;
+				}
+			}
+			if (null != m) {
+				MethodHandle handle = lookup.unreflect(m);
+				if (Modifier.isStatic(m.getModifiers())) {
+					handle = MethodHandles.dropArguments(handle, 0, Object.class);
+				}
+				return handle.asType(ACCESSOR_TYPE);
+			}
+			Field f = findField(clazz, property);
+			if (null != f) {
+				if (Modifier.isStatic(f.getModifiers())) {
+					return MethodHandles.dropArguments(lookup.unreflectGetter(f), 0, Object.class).asType(ACCESSOR_TYPE);
+				}
+				return lookup.unreflectGetter(f).asType(ACCESSOR_TYPE);
+			}
+		} catch (IllegalAccessException e) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "resolve", "Property " + property + " of " + clazz.getName()
+					+ " is not accessible", e);
+			return null;
+		}
+		_LOGGER.logp(Level.WARNING, CLASS_NAME, "resolve", "Attempting to retrieve a non existent property " + property
+				+ " from Java Object of type " + clazz.getName());
+		return null;
+	}
+
+	private static Method findMethod(Class<?> clazz, String name) {
+		try {
+			Method m = clazz.getMethod(name);
+			return void.class == m.getReturnType() ? null : m;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Field findField(Class<?> clazz, String name) {
+		try {
+			return clazz.getField(name);
+		} catch (NoSuchFieldException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads one property of instances of one class
+	 */
+	public static final class PropertyAccessor {
+		private final Class<?> type;
+		private final String property;
+		private final MethodHandle handle;
+
+		PropertyAccessor(Class<?> type, String property, MethodHandle handle) {
+			this.type = type;
+			this.property = property;
+			this.handle = handle;
+		}
+
+		/**
+		 * @return the class this accessor reads from
+		 */
+		public Class<?> getType() {
+			return type;
+		}
+
+		/**
+		 * @return true if the class has the property
+		 */
+		public boolean exists() {
+			return null != handle;
+		}
+
+		/**
+		 * Read the property
+		 *
+		 * @param bean
+		 *            an instance of the accessor's class
+		 * @return the value of the property, null if the class does not have
+		 *         the property or reading it failed
+		 */
+		public Object get(Object bean) {
+			if (null == handle) {
+				return null;
+			}
+			try {
+				return (Object) handle.invokeExact(bean);
+			} catch (Throwable t) {
+				_LOGGER.logp(Level.WARNING, CLASS_NAME, "get", "Failed to retrieve property " + property + " from "
+						+ type.getName(), t);
+			}
+			return null;
+		}
+	}
+}
@@ -22,10 +22,29 @@ public interface TemplateContext {
 	
 	public boolean getBoolean(String l);
 	
+	/*
+	 * The following are used by generated templates with references compiled
+	 * once per template, they behave like their String counterparts
+	 */
+	public Object get(VarPath path);
+
+	public String getString(VarPath path);
+	
+	public Iterable<Object> getList(VarPath path);
+	
+	public int getListSize(VarPath path);
+	
+	public boolean getBoolean(VarPath path);
+	
 	public void put(String key, Object val);
 
 	public void remove(String key);
 	
+	/**
+	 * @return the frame holding the local variables of the template code being rendered
+	 */
+	public ContextFrame getFrame();
+	
 	// TODO: allow for getCollection so that an empty collection/list can be returned if not available in context.
 
 }
@@ -4,11 +4,8 @@
 
 package org.rstl.context;
 
-import java.lang.reflect.Method;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +26,7 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
 
 	private List<IContextProvider> providerList = new ArrayList<IContextProvider>();
+	private ContextFrame frame = new ContextFrame();
 	Map<String, Object> ctx;
 
 	public TemplateContextImpl(Map<String, Object> arg, TemplateGroup tg) {
@@ -71,28 +69,37 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	 * @return Object representing the value of the variable, null if it does not exist
 	 */
 	public Object get(String l) {
+		return get(VarPath.of(l));
+	}
+	
+	/**
+	 * Retrieve a variable from the Template Context using a compiled reference
+	 * @return Object representing the value of the variable, null if it does not exist
+	 */
+	public Object get(VarPath path) {
+		String l = path.getName();
 		if (_LOGGER.isLoggable(Level.FINE)) {
 			_LOGGER.logp(Level.FINE, CLASS_NAME, "get", "Get context variable: " + l);
 		}
-		Object retValue = null;
-
 		// Check to see if the value needs to be dereferenced
-		int varAt = l.indexOf('.');
-		String firstVarSeg = l;
-		if (varAt > 0) { 
-			// Check for attribute references
-			firstVarSeg = l.substring(0, varAt);
-		} 
+		boolean dereference = path.getAttributeCount() > 0;
 		
-		for (IContextProvider p : providerList) {
+		// Local variables bound by the template code take precedence, also when they are bound to null
+		Object retValue = frame.lookup(path.getHead());
+		boolean local = ContextFrame.UNBOUND != retValue;
+		if (!local) {
+			retValue = null;
+		}
+		for (int ix = 0; !local && null == retValue && ix < providerList.size(); ix++) {
+			IContextProvider p = providerList.get(ix);
 			if (p.looksUpCompleteReference()) {
 				retValue = p.lookup(l);
 				if (null != retValue) {
 					// reset attribute references
-					varAt = -1;
+					dereference = false;
 				}
 			} else {
-				retValue = p.lookup(firstVarSeg);
+				retValue = p.lookup(path.getHead());
 			}
 			if (null != retValue) {
 				break;
@@ -103,15 +110,13 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 			retValue = null;
 		}
 		// Look for attribute references if the first segment returned an object and there are additional segments to process
-		if (null != retValue && varAt > 0) {
-			String[] attributes = l.substring(varAt + 1).split("\\.");
-			for (String attr: attributes) {
-				retValue = dereferenceAttribute(retValue, attr, l);
+		if (null != retValue && dereference) {
+			for (int ix = 0; ix < path.getAttributeCount(); ix++) {
+				retValue = dereferenceAttribute(retValue, path, ix);
 				if (null == retValue) {
 					break;
 				}
 			}
-			// TODO: Cache result ?? intermediates ?
 		}
 		if (_LOGGER.isLoggable(Level.FINE)) {
 			_LOGGER.logp(Level.FINE, CLASS_NAME, "get", "Retrieved value for context variable: " + l + " value: " + retValue);
@@ -123,15 +128,17 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	/**
 	 * Dereference the attribute in the variable object
 	 * @param variable
-	 * @param attribute
+	 * @param path the compiled variable reference
+	 * @param ix the position of the attribute in the reference
 	 */
-	private Object dereferenceAttribute(Object variable, String attribute, String originalVariableName) {
+	private Object dereferenceAttribute(Object variable, VarPath path, int ix) {
 		Object retVal = null;
+		String attribute = path.getAttribute(ix);
 		if (_LOGGER.isLoggable(Level.FINE)) {
 			_LOGGER.logp(Level.FINE, CLASS_NAME, "dereferenceAttribute", "Dereferencing attribute:" + attribute + " from variable");
 		}
 
-		if (null != attribute && !attribute.isEmpty()) {
+		if (!attribute.isEmpty()) {
 			if (variable instanceof Map) {
 				if (_LOGGER.isLoggable(Level.FINE)) {
 					_LOGGER.logp(Level.FINE, CLASS_NAME, "dereferenceAttribute", "retrieve as a map entry");
@@ -143,14 +150,13 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 				if (_LOGGER.isLoggable(Level.FINE)) {
 					_LOGGER.logp(Level.FINE, CLASS_NAME, "dereferenceAttribute", "retrieve as a list or array element");
 				}
-				Integer index = 0;
-				boolean attributeConsumed = false;
-				try {
-					index = Integer.parseInt(attribute);
-					attributeConsumed = true;
-				} catch (NumberFormatException e) {
+				int index = 0;
+				boolean attributeConsumed = path.isIndex(ix);
+				if (attributeConsumed) {
+					index = path.getIndex(ix);
+				} else {
 					_LOGGER.logp(Level.WARNING, CLASS_NAME, "dereferenceAttribute", "Attempting to index an array/list with something that is not a number (" 
-							+ attribute +") when referencing the variable:" + originalVariableName + "; Using 0 as the index in to list");
+							+ attribute +") when referencing the variable:" + path.getName() + "; Using 0 as the index in to list");
 				}
 				retVal = getIndexedValue(variable, index);
 				// If the index is not a number, this will default to 0th index for convenience
@@ -158,7 +164,7 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 				if (null != retVal && !attributeConsumed) {
 					// (sigh) recursion ..
 					// We need to consume the attribute if possible before returning the value;
-					retVal = dereferenceAttribute(retVal, attribute, originalVariableName);
+					retVal = dereferenceAttribute(retVal, path, ix);
 				}
 			} else if (variable instanceof ResourceBundle) {
 				if (_LOGGER.isLoggable(Level.FINE)) {
@@ -170,25 +176,14 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 					retVal = rb.getObject(attribute);
 				} catch (MissingResourceException mre) {
 					_LOGGER.logp(Level.WARNING, CLASS_NAME, "dereferenceAttribute", "Attempting to retrieve a non existent message (%0) from resource bundle when retrieving variable %1", 
-							new Object[] {attribute , originalVariableName});					
+							new Object[] {attribute , path.getName()});					
 				}
 			} else {
 				// Treat as a bean
 				if (_LOGGER.isLoggable(Level.FINE)) {
-					_LOGGER.logp(Level.FINE, CLASS_NAME, "dereferenceAttribute", "retrieve as a list or array element");
-				}
-
-				String methodName = "get" + attribute.substring(0, 1).toUpperCase() + attribute.substring(1);
-				try {
-					Class<?>[] varargs = null;
-					Object[] parms = null;
-					Method m = variable.getClass().getMethod(methodName, varargs);
-					retVal = m.invoke(variable, parms);
-				
-				} catch (Exception e) {
-					_LOGGER.logp(Level.WARNING, CLASS_NAME, "dereferenceAttribute", "Attempting to retrieve a non existent/invalid method (%0) from Java Object for variable name: %1", 
-							new Object[] {methodName, originalVariableName});
+					_LOGGER.logp(Level.FINE, CLASS_NAME, "dereferenceAttribute", "retrieve as a bean property");
 				}
+				retVal = path.getProperty(ix, variable);
 			}
 		}
 		if (_LOGGER.isLoggable(Level.FINE)) {
@@ -212,9 +207,8 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 				retVal = ((List)list).get(index);
 			}
 		} else if (list.getClass().isArray()) {
-			Object[] arr = (Object[])list; 
-			if (index >= 0 && arr.length > index) {
-				retVal = arr[index];
+			if (index >= 0 && Array.getLength(list) > index) {
+				retVal = Array.get(list, index);
 			}
 		}
 
@@ -222,7 +216,16 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	}
 
 	public void put(String key, Object val) {
-		ctx.put(key, val);
+		int slot = frame.find(key);
+		if (-1 != slot) {
+			frame.set(slot, val);
+		} else {
+			ctx.put(key, val);
+		}
+	}
+	
+	public ContextFrame getFrame() {
+		return frame;
 	}
 
 	public void remove(String key) {
@@ -230,6 +233,10 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	}
 
 	public String getString(String l) {
+		return getString(VarPath.of(l));
+	}
+	
+	public String getString(VarPath l) {
 		Object obj = get(l);
 		String s = convertToString(obj);
 		return s;
@@ -252,48 +259,26 @@ public class TemplateContextImpl implements TemplateContext, IContextProvider {
 	}
 
 	public Iterable<Object> getList(String l) {
-		Object ret = get(l);
-		if (null != ret) {
-			Class<?> clazz = ret.getClass();
-			if (ret instanceof Iterable) {
-				return (Iterable) ret;
-			} else if (ret instanceof String){
-				return Arrays.asList(ret);
-			} else if (clazz.isArray()) {
-				Class<?> componentType = clazz.getComponentType();
-				Object[] arr = (Object[])ret;
-				List<Object> list = new ArrayList<Object>();
-				for(Object x: arr) {
-					list.add(x);
-				}
-				return list;
-			} else {
-				_LOGGER.logp(Level.FINE, CLASS_NAME, "getList", "Could not convert variable reference " + l + " to List (" + ret.getClass().getName() +")");
-			}
-		}
-		return Collections.EMPTY_LIST;
+		return getList(VarPath.of(l));
+	}
+	
+	public Iterable<Object> getList(VarPath l) {
+		return LoopValues.toIterable(get(l), l);
 	}
 	
 	public int getListSize(String l) {
-		Object ret = get(l);
-		if (null != ret) {
-			Class<?> clazz = ret.getClass();
-			if (ret instanceof Collection) {
-				return ((Collection) ret).size();
-			} else if (ret instanceof String){
-				return 1;
-			} else if (clazz.isArray()) {
-				Class<?> componentType = clazz.getComponentType();
-				Object[] arr = (Object[])ret;
-				return arr.length;
-			} else {
-				_LOGGER.logp(Level.FINE, CLASS_NAME, "getListSize", "Could not convert variable reference " + l + " to List (" + ret.getClass().getName() +")");
-			}
-		}
-		return 0;		
+		return getListSize(VarPath.of(l));
+	}
+	
+	public int getListSize(VarPath l) {
+		return LoopValues.size(get(l), l);
 	}
 
 	public boolean getBoolean(String l) {
+		return getBoolean(VarPath.of(l));
+	}
+	
+	public boolean getBoolean(VarPath l) {
 		Object ret = get(l);
 		if (null != ret) {
 			if (ret instanceof Boolean) {
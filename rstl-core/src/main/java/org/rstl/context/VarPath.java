@@ -0,0 +1,209 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.rstl.context.PropertyAccessors.PropertyAccessor;
+
+/**
+ * A variable reference such as "product.price.amount" compiled once into its
+ * segments. Generated templates hold one instance per distinct reference in a
+ * static field and hand it to the {@link TemplateContext}, so the reference is
+ * not re-parsed on every render.
+ *
+ * Each attribute segment keeps a monomorphic inline cache of the bean property
+ * accessor it last resolved. As long as the same class of object shows up at
+ * that position, the accessor is used without any lookup. Other classes fall
+ * back to the shared {@link PropertyAccessors} registry.
+ *
+ * Instances are immutable apart from the inline caches, which are safe to
+ * update racily, and can be shared between threads. References that are only
+ * known as strings at runtime are compiled once and shared, see
+ * {@link #of(String)}.
+ */
+public final class VarPath {
+	/**
+	 * The number of shared references after which the shared references are
+	 * dropped, so references built from request data cannot grow it unbounded
+	 */
+	private static final int MAX_SHARED = 4096;
+	private static final ConcurrentHashMap<String, VarPath> shared = new ConcurrentHashMap<String, VarPath>();
+
+	private final String name;
+	private final String head;
+	private final Segment[] segments;
+
+	private VarPath(String name, String head, Segment[] segments) {
+		this.name = name;
+		this.head = head;
+		this.segments = segments;
+	}
+
+	/**
+	 * Compile a variable reference
+	 *
+	 * @param name
+	 *            the variable reference, for instance "a.b.0.c"
+	 * @return the compiled reference
+	 */
+	public static VarPath compile(String name) {
+		int varAt = name.indexOf('.');
+		if (varAt <= 0) {
+			return new VarPath(name, name, new Segment[0]);
+		}
+		List<Segment> segs = new ArrayList<Segment>();
+		int start = varAt + 1;
+		int dotAt;
+		while ((dotAt = name.indexOf('.', start)) != -1) {
+			segs.add(new Segment(name.substring(start, dotAt)));
+			start = dotAt + 1;
+		}
+		segs.add(new Segment(name.substring(start)));
+		// Like String.split, trailing empty attributes are dropped
+		int count = segs.size();
+		while (count > 0 && segs.get(count - 1).attribute.isEmpty()) {
+			count--;
+		}
+		return new VarPath(name, name.substring(0, varAt), segs.subList(0, count).toArray(new Segment[count]));
+	}
+
+	/**
+	 * Return the shared compiled reference for a variable reference, compiling
+	 * it the first time it is used
+	 *
+	 * @param name
+	 *            the variable reference, for instance "a.b.0.c"
+	 * @return the compiled reference
+	 */
+	public static VarPath of(String name) {
+		VarPath path = shared.get(name);
+		if (null == path) {
+			if (shared.size() >= MAX_SHARED) {
+				shared.clear();
+			}
+			path = compile(name);
+			shared.put(name, path);
+		}
+		return path;
+	}
+
+	/**
+	 * @return the complete variable reference
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the first segment of the reference, which names the variable in
+	 *         the context
+	 */
+	public String getHead() {
+		return head;
+	}
+
+	/**
+	 * @return the number of attributes dereferenced after the head
+	 */
+	public int getAttributeCount() {
+		return segments.length;
+	}
+
+	/**
+	 * @param ix
+	 * @return the attribute at the specified position
+	 */
+	public String getAttribute(int ix) {
+		return segments[ix].attribute;
+	}
+
+	/**
+	 * @param ix
+	 * @return true if the attribute at the specified position is a number and
+	 *         can be used to index a list or array
+	 */
+	public boolean isIndex(int ix) {
+		return segments[ix].indexed;
+	}
+
+	/**
+	 * @param ix
+	 * @return the numeric value of the attribute at the specified position
+	 */
+	public int getIndex(int ix) {
+		return segments[ix].index;
+	}
+
+	/**
+	 * Read the attribute at the specified position from a Java bean.
+	 *
+	 * @param ix
+	 * @param bean
+	 * @return the value of the property, null if the bean does not have the
+	 *         property or reading it failed
+	 * @see PropertyAccessors
+	 */
+	public Object getProperty(int ix, Object bean) {
+		Segment seg = segments[ix];
+		Class<?> clazz = bean.getClass();
+		PropertyAccessor accessor = seg.accessor;
+		if (null == accessor || accessor.getType() != clazz) {
+			accessor = PropertyAccessors.getAccessor(clazz, seg.attribute);
+			seg.accessor = accessor;
+		}
+		return accessor.get(bean);
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * One attribute of the reference together with its inline cache
+	 */
+	private static final class Segment {
+		final String attribute;
+		final boolean indexed;
+		final int index;
+		volatile PropertyAccessor accessor;
+
+		Segment(String attribute) {
+			this.attribute = attribute;
+			boolean isNumber = false;
+			int value = 0;
+			if (isInteger(attribute)) {
+				try {
+					value = Integer.parseInt(attribute);
+					isNumber = true;
+				} catch (NumberFormatException e) {
+					// Too large to be an index
+				}
+			}
+			this.indexed = isNumber;
+			this.index = value;
+		}
+
+		/**
+		 * @return true if the attribute has the form Integer.parseInt accepts,
+		 *         checked up front as most attributes are names
+		 */
+		private static boolean isInteger(String attribute) {
+			int start = (attribute.startsWith("-") || attribute.startsWith("+")) ? 1 : 0;
+			if (attribute.length() <= start) {
+				return false;
+			}
+			for (int ix = start; ix < attribute.length(); ix++) {
+				char ch = attribute.charAt(ix);
+				if (ch < '0' || ch > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
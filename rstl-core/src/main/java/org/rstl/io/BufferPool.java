@@ -0,0 +1,59 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.io;
+
+/**
+ * Per thread pool of the buffers used to copy content into the output of a
+ * template. A buffer is taken from the pool for the duration of a copy and
+ * returned to it afterwards, so nested copies on the same thread get their
+ * own buffers.
+ */
+public class BufferPool {
+	public static final int BUF_SIZ = 16384;
+
+	private static final ThreadLocal<byte[]> byteBuffers = new ThreadLocal<byte[]>();
+	private static final ThreadLocal<char[]> charBuffers = new ThreadLocal<char[]>();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return a byte buffer of BUF_SIZ bytes, which should be returned with
+	 *         {@link #release(byte[])}
+	 */
+	public static byte[] acquireBytes() {
+		byte[] buf = byteBuffers.get();
+		if (null == buf) {
+			return new byte[BUF_SIZ];
+		}
+		byteBuffers.set(null);
+		return buf;
+	}
+
+	public static void release(byte[] buf) {
+		if (buf.length == BUF_SIZ) {
+			byteBuffers.set(buf);
+		}
+	}
+
+	/**
+	 * @return a char buffer of BUF_SIZ chars, which should be returned with
+	 *         {@link #release(char[])}
+	 */
+	public static char[] acquireChars() {
+		char[] buf = charBuffers.get();
+		if (null == buf) {
+			return new char[BUF_SIZ];
+		}
+		charBuffers.set(null);
+		return buf;
+	}
+
+	public static void release(char[] buf) {
+		if (buf.length == BUF_SIZ) {
+			charBuffers.set(buf);
+		}
+	}
+}
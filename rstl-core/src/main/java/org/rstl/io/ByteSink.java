@@ -0,0 +1,32 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.io;
+
+import java.io.IOException;
+
+/**
+ * A character output that also accepts bytes that are already encoded in its
+ * charset. Writers that implement this interface let the template engine
+ * copy encoded content, such as the body of a resource representation,
+ * without decoding and re-encoding it.
+ */
+public interface ByteSink {
+
+	/**
+	 * @return the charset in which bytes written to the sink must be encoded
+	 */
+	public java.nio.charset.Charset getCharset();
+
+	/**
+	 * Write bytes encoded in the charset of the sink, after any characters
+	 * previously written
+	 * 
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void writeBytes(byte[] b, int off, int len) throws IOException;
+}
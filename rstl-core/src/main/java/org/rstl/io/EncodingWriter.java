@@ -0,0 +1,147 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A writer that encodes characters into an output stream and that also
+ * accepts bytes that are already encoded, which are written to the stream
+ * as is. Use it to render a template into an output stream, such as the body
+ * of a HTTP response, so that resource representations in the same charset
+ * are copied without being decoded.
+ * 
+ * Encoded bytes are buffered, the stream is only flushed when the writer is
+ * flushed.
+ */
+public class EncodingWriter extends Writer implements ByteSink {
+	private static final int BUF_SIZ = 8192;
+
+	private final OutputStream out;
+	private final Charset charset;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer bytes;
+	private final char[] single = new char[1];
+	private final char[] pair = new char[2];
+	private char pendingHighSurrogate;
+	private boolean closed;
+
+	public EncodingWriter(OutputStream out) {
+		this(out, StreamUtil.UTF8);
+	}
+
+	public EncodingWriter(OutputStream out, Charset charset) {
+		this.out = out;
+		this.charset = charset;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate(BUF_SIZ);
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		single[0] = (char) c;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		encode(CharBuffer.wrap(str, off, off + len));
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		encode(CharBuffer.wrap(cbuf, off, len));
+	}
+
+	public void writeBytes(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		flushPendingSurrogate();
+		if (len >= bytes.capacity()) {
+			drain();
+			out.write(b, off, len);
+		} else {
+			if (len > bytes.remaining()) {
+				drain();
+			}
+			bytes.put(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			flushPendingSurrogate();
+			drain();
+			closed = true;
+			out.close();
+		}
+	}
+
+	private void encode(CharBuffer in) throws IOException {
+		ensureOpen();
+		if (pendingHighSurrogate != 0 && in.hasRemaining()) {
+			pair[0] = pendingHighSurrogate;
+			pair[1] = in.get();
+			pendingHighSurrogate = 0;
+			encode(CharBuffer.wrap(pair, 0, 2));
+		}
+		while (true) {
+			CoderResult result = encoder.encode(in, bytes, false);
+			if (result.isOverflow()) {
+				drain();
+			} else {
+				break;
+			}
+		}
+		if (in.hasRemaining()) {
+			// A high surrogate whose low surrogate has not been written yet
+			pendingHighSurrogate = in.get();
+		}
+	}
+
+	private void flushPendingSurrogate() throws IOException {
+		if (pendingHighSurrogate != 0) {
+			CharBuffer in = CharBuffer.wrap(new char[] { pendingHighSurrogate });
+			pendingHighSurrogate = 0;
+			while (encoder.encode(in, bytes, true).isOverflow()) {
+				drain();
+			}
+			encoder.reset();
+		}
+	}
+
+	private void drain() throws IOException {
+		if (bytes.position() > 0) {
+			out.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Writer is closed");
+		}
+	}
+}
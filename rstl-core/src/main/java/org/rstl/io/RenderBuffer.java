@@ -0,0 +1,246 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+/**
+ * A growable in memory buffer for rendered output, encoded as UTF-8.
+ * Characters are encoded as they are written and bytes that are already
+ * encoded, such as pre-encoded static template text, are copied as is. Once
+ * rendering is complete the content is written to an output stream or channel
+ * in one go, or read back as a String.
+ *
+ * Buffers are pooled per thread. Take one with {@link #acquire(int)} and
+ * return it with {@link #release()} once its content has been written.
+ * Nested renders on the same thread get their own buffers. Buffers that grew
+ * beyond {@link #MAX_POOLED_CAPACITY} are not pooled, so one very large page
+ * does not pin its memory.
+ */
+public class RenderBuffer extends Writer implements ByteSink {
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int MAX_POOLED_CAPACITY = 256 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 4;
+
+	private static final ThreadLocal<ArrayDeque<RenderBuffer>> pool = new ThreadLocal<ArrayDeque<RenderBuffer>>() {
+		protected ArrayDeque<RenderBuffer> initialValue() {
+			return new ArrayDeque<RenderBuffer>(MAX_POOLED_BUFFERS);
+		}
+	};
+
+	private byte[] buf;
+	private int count;
+	private char pendingHighSurrogate;
+
+	public RenderBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RenderBuffer(int capacity) {
+		buf = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Take an empty buffer from the pool of the current thread
+	 *
+	 * @param expectedSize
+	 *            the number of bytes the buffer is expected to hold, 0 if not
+	 *            known
+	 * @return the buffer
+	 */
+	public static RenderBuffer acquire(int expectedSize) {
+		RenderBuffer rb = pool.get().pollFirst();
+		if (null == rb) {
+			return new RenderBuffer(Math.max(expectedSize, DEFAULT_CAPACITY));
+		}
+		rb.ensureCapacity(expectedSize);
+		return rb;
+	}
+
+	/**
+	 * Return the buffer to the pool of the current thread. The buffer must not
+	 * be used afterwards.
+	 */
+	public void release() {
+		reset();
+		if (buf.length <= MAX_POOLED_CAPACITY) {
+			ArrayDeque<RenderBuffer> buffers = pool.get();
+			if (buffers.size() < MAX_POOLED_BUFFERS) {
+				buffers.addFirst(this);
+			}
+		}
+	}
+
+	public Charset getCharset() {
+		return StreamUtil.UTF8;
+	}
+
+	/**
+	 * @return the number of bytes in the buffer
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Discard the content of the buffer
+	 */
+	public void reset() {
+		count = 0;
+		pendingHighSurrogate = 0;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureCapacity(count + 4);
+		encode((char) c);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		// Worst case is 3 bytes for each char, a surrogate pair takes 4 bytes
+		ensureCapacity(count + 3 * len + 1);
+		for (int ix = off, end = off + len; ix < end; ix++) {
+			char c = str.charAt(ix);
+			if (c < 0x80 && 0 == pendingHighSurrogate) {
+				buf[count++] = (byte) c;
+			} else {
+				encode(c);
+			}
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureCapacity(count + 3 * len + 1);
+		for (int ix = off, end = off + len; ix < end; ix++) {
+			char c = cbuf[ix];
+			if (c < 0x80 && 0 == pendingHighSurrogate) {
+				buf[count++] = (byte) c;
+			} else {
+				encode(c);
+			}
+		}
+	}
+
+	public void writeBytes(byte[] b, int off, int len) throws IOException {
+		flushPendingSurrogate();
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing to flush, the content is written out with writeTo
+	}
+
+	@Override
+	public void close() {
+		// Nothing to close, the buffer is returned to the pool with release
+	}
+
+	/**
+	 * Write the content of the buffer to a stream
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		flushPendingSurrogate();
+		out.write(buf, 0, count);
+	}
+
+	/**
+	 * Write the content of the buffer to a channel
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		flushPendingSurrogate();
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+
+	/**
+	 * Write the content of the buffer to a writer
+	 *
+	 * @param w
+	 * @throws IOException
+	 */
+	public void writeTo(Writer w) throws IOException {
+		flushPendingSurrogate();
+		if (w instanceof ByteSink && StreamUtil.UTF8.equals(((ByteSink) w).getCharset())) {
+			((ByteSink) w).writeBytes(buf, 0, count);
+		} else {
+			w.write(toString());
+		}
+	}
+
+	/**
+	 * @return the content of the buffer decoded as a String
+	 */
+	public String toString() {
+		flushPendingSurrogate();
+		return new String(buf, 0, count, StreamUtil.UTF8);
+	}
+
+	private void encode(char c) {
+		if (0 != pendingHighSurrogate) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				buf[count++] = (byte) (0xF0 | (cp >> 18));
+				buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (cp & 0x3F));
+				return;
+			}
+			// Unpaired high surrogate
+			buf[count++] = '?';
+		}
+		if (c < 0x80) {
+			buf[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			// Unpaired low surrogate
+			buf[count++] = '?';
+		} else {
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void flushPendingSurrogate() {
+		if (0 != pendingHighSurrogate) {
+			ensureCapacity(count + 1);
+			buf[count++] = '?';
+			pendingHighSurrogate = 0;
+		}
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > buf.length) {
+			byte[] newBuf = new byte[Math.max(size, buf.length * 2)];
+			System.arraycopy(buf, 0, newBuf, 0, count);
+			buf = newBuf;
+		}
+	}
+}
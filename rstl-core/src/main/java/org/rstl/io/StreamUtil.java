@@ -0,0 +1,148 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Utilities to copy encoded content into the output of a template
+ */
+public class StreamUtil {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private StreamUtil() {
+	}
+
+	/**
+	 * Return the charset named by the charset parameter of a content type
+	 * 
+	 * @param contentType
+	 *            the value of a Content-Type header, for instance
+	 *            "application/xhtml+xml; charset=ISO-8859-1"
+	 * @return the charset, UTF-8 if the content type does not name a
+	 *         supported charset
+	 */
+	public static Charset getCharset(String contentType) {
+		if (null != contentType) {
+			int k = contentType.toLowerCase().indexOf("charset=");
+			if (k != -1) {
+				String name = contentType.substring(k + 8);
+				int l = name.indexOf(';');
+				if (l != -1) {
+					name = name.substring(0, l);
+				}
+				name = name.trim();
+				if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+					name = name.substring(1, name.length() - 1);
+				}
+				try {
+					if (Charset.isSupported(name)) {
+						return Charset.forName(name);
+					}
+				} catch (IllegalArgumentException e) {
+					// Illegal charset name
+				}
+			}
+		}
+		return UTF8;
+	}
+
+	/**
+	 * Return the media type of a content type without any parameters
+	 * 
+	 * @param contentType
+	 * @return
+	 */
+	public static String getMediaType(String contentType) {
+		if (null == contentType) {
+			return null;
+		}
+		int k = contentType.indexOf(';');
+		return (k != -1) ? contentType.substring(0, k).trim() : contentType.trim();
+	}
+
+	/**
+	 * Read a stream into memory
+	 * 
+	 * @param is
+	 * @return the content of the stream
+	 * @throws IOException
+	 */
+	public static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = BufferPool.acquireBytes();
+		try {
+			int readLen;
+			while ((readLen = is.read(buf)) != -1) {
+				bos.write(buf, 0, readLen);
+			}
+		} finally {
+			BufferPool.release(buf);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Copy encoded content to a writer. If the writer is a {@link ByteSink}
+	 * with the same charset as the content, the bytes are copied without
+	 * decoding them.
+	 * 
+	 * @param is
+	 *            the content
+	 * @param charset
+	 *            the charset the content is encoded in
+	 * @param w
+	 *            the writer
+	 * @throws IOException
+	 */
+	public static void copy(InputStream is, Charset charset, Writer w) throws IOException {
+		if (w instanceof ByteSink && ((ByteSink) w).getCharset().equals(charset)) {
+			ByteSink sink = (ByteSink) w;
+			byte[] buf = BufferPool.acquireBytes();
+			try {
+				int readLen;
+				while ((readLen = is.read(buf)) != -1) {
+					sink.writeBytes(buf, 0, readLen);
+				}
+			} finally {
+				BufferPool.release(buf);
+			}
+		} else {
+			Reader reader = new InputStreamReader(is, charset);
+			char[] buf = BufferPool.acquireChars();
+			try {
+				int readLen;
+				while ((readLen = reader.read(buf)) != -1) {
+					w.write(buf, 0, readLen);
+				}
+			} finally {
+				BufferPool.release(buf);
+			}
+		}
+	}
+
+	/**
+	 * Copy encoded content held in memory to a writer
+	 * 
+	 * @param b
+	 * @param charset
+	 *            the charset the content is encoded in
+	 * @param w
+	 * @throws IOException
+	 */
+	public static void write(byte[] b, Charset charset, Writer w) throws IOException {
+		if (w instanceof ByteSink && ((ByteSink) w).getCharset().equals(charset)) {
+			((ByteSink) w).writeBytes(b, 0, b.length);
+		} else {
+			w.write(new String(b, charset));
+		}
+	}
+}
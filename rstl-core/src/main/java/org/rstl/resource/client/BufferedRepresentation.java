@@ -0,0 +1,138 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A representation whose entity is held in memory. The entity may be read
+ * any number of times and from any thread, which allows a single fetched
+ * representation to be handed from the thread that fetched it to the thread
+ * that renders it.
+ */
+public class BufferedRepresentation implements Representation {
+	private static final int BUF_SIZ = 8192;
+	private static final String[] RETAINED_HEADERS = { "Cache-Control", "Expires", "Date", "ETag", "Last-Modified" };
+	private final boolean valid;
+	private final String contentType;
+	private final byte[] body;
+	private final Map<String, String> headers;
+
+	public BufferedRepresentation(boolean valid, String contentType, byte[] body) {
+		this(valid, contentType, body, null);
+	}
+
+	/**
+	 * @param valid
+	 * @param contentType
+	 * @param body
+	 * @param headers
+	 *            the headers of the representation, names are matched
+	 *            ignoring case
+	 */
+	public BufferedRepresentation(boolean valid, String contentType, byte[] body, Map<String, String> headers) {
+		this.valid = valid;
+		this.contentType = contentType;
+		this.body = (null != body) ? body : new byte[0];
+		if (null == headers || headers.isEmpty()) {
+			this.headers = Collections.emptyMap();
+		} else {
+			Map<String, String> h = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			h.putAll(headers);
+			this.headers = h;
+		}
+	}
+
+	/**
+	 * Read the entity of a representation into memory and release the
+	 * original representation. Representations that are already held in
+	 * memory are returned as is.
+	 * 
+	 * @param rep
+	 *            the representation to buffer
+	 * @return a buffered copy of the representation
+	 * @throws IOException
+	 *             if the entity could not be read
+	 */
+	public static Representation buffer(Representation rep) throws IOException {
+		if (rep instanceof BufferedRepresentation || rep instanceof ObjectRepresentation) {
+			return rep;
+		}
+		try {
+			byte[] body = null;
+			InputStream is = rep.isValid() ? rep.getEntity() : null;
+			if (null != is) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				byte[] buf = new byte[BUF_SIZ];
+				int readLen;
+				while ((readLen = is.read(buf)) != -1) {
+					bos.write(buf, 0, readLen);
+				}
+				body = bos.toByteArray();
+			}
+			return new BufferedRepresentation(rep.isValid(), rep.getContentType(), body, getRetainedHeaders(rep));
+		} finally {
+			rep.release();
+		}
+	}
+
+	/**
+	 * The caching headers of a representation, which are kept when it is
+	 * buffered
+	 * 
+	 * @param rep
+	 * @return
+	 */
+	static Map<String, String> getRetainedHeaders(Representation rep) {
+		Map<String, String> h = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (String name : RETAINED_HEADERS) {
+			String value = rep.getHeader(name);
+			if (null != value) {
+				h.put(name, value);
+			}
+		}
+		return h;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * @return the body of the representation. The array must not be modified.
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	public InputStream getEntity() {
+		return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * @return the length of the entity in bytes
+	 */
+	public int getLength() {
+		return body.length;
+	}
+
+	public void release() {
+		// Nothing to release
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Process wide pool of HTTP connections that is shared by every resource
+ * fetch. Connections are kept alive between fetches and reused, the number of
+ * connections to a single route (scheme, host, port) is capped and connect and
+ * read timeouts are applied to every request.
+ *
+ * The pool is created lazily on first use. Configuration changes are applied
+ * to a pool that is already running wherever the underlying connection manager
+ * allows it; timeouts and keep-alive always apply to subsequent requests.
+ * After {@link #shutdown()} the next call to {@link #getClient()} creates a
+ * fresh pool.
+ */
+public class HttpConnectionPool {
+	private static final String CLASS_NAME = HttpConnectionPool.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	public static final int DEFAULT_MAX_TOTAL = 200;
+	public static final int DEFAULT_MAX_PER_ROUTE = 50;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	public static final long DEFAULT_KEEP_ALIVE = 30000;
+
+	private static int maxTotal = DEFAULT_MAX_TOTAL;
+	private static int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+	private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static int readTimeout = DEFAULT_READ_TIMEOUT;
+	private static volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+	private static Map<HttpRoute, Integer> routeLimits = new HashMap<HttpRoute, Integer>();
+
+	private static PoolingClientConnectionManager connectionManager;
+	private static volatile DefaultHttpClient client;
+
+	private HttpConnectionPool() {
+	}
+
+	/**
+	 * Return the shared HTTP client, creating the connection pool if needed.
+	 *
+	 * @return the pooled HTTP client
+	 */
+	public static HttpClient getClient() {
+		DefaultHttpClient c = client;
+		if (null == c) {
+			synchronized (HttpConnectionPool.class) {
+				c = client;
+				if (null == c) {
+					c = createClient();
+					client = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Close all pooled connections and release the pool. Any request that is
+	 * in flight will fail.
+	 */
+	public static synchronized void shutdown() {
+		if (null != connectionManager) {
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "shutdown", "Shutting down the HTTP connection pool");
+			connectionManager.shutdown();
+		}
+		connectionManager = null;
+		client = null;
+	}
+
+	/**
+	 * Set the maximum number of connections in the pool across all routes.
+	 *
+	 * @param max
+	 */
+	public static synchronized void setMaxTotal(int max) {
+		maxTotal = max;
+		if (null != connectionManager) {
+			connectionManager.setMaxTotal(max);
+		}
+	}
+
+	/**
+	 * Set the maximum number of connections to any single route, unless the
+	 * route has its own limit.
+	 *
+	 * @param max
+	 */
+	public static synchronized void setMaxPerRoute(int max) {
+		maxPerRoute = max;
+		if (null != connectionManager) {
+			connectionManager.setDefaultMaxPerRoute(max);
+		}
+	}
+
+	/**
+	 * Set the maximum number of connections for a specific endpoint
+	 *
+	 * @param endpoint
+	 *            the scheme, host and optional port of the route, for
+	 *            instance "http://localhost:8080"
+	 * @param max
+	 */
+	public static synchronized void setMaxPerRoute(String endpoint, int max) {
+		HttpRoute route = new HttpRoute(toHost(endpoint));
+		routeLimits.put(route, max);
+		if (null != connectionManager) {
+			connectionManager.setMaxPerRoute(route, max);
+		}
+	}
+
+	/**
+	 * Set the timeout in milliseconds to establish a connection
+	 *
+	 * @param timeout
+	 */
+	public static synchronized void setConnectTimeout(int timeout) {
+		connectTimeout = timeout;
+		if (null != client) {
+			HttpConnectionParams.setConnectionTimeout(client.getParams(), timeout);
+		}
+	}
+
+	/**
+	 * Set the socket read timeout in milliseconds
+	 *
+	 * @param timeout
+	 */
+	public static synchronized void setReadTimeout(int timeout) {
+		readTimeout = timeout;
+		if (null != client) {
+			HttpConnectionParams.setSoTimeout(client.getParams(), timeout);
+		}
+	}
+
+	/**
+	 * Set the maximum time in milliseconds an idle connection is kept alive.
+	 * A server provided keep-alive timeout that is shorter takes precedence.
+	 *
+	 * @param millis
+	 *            the keep alive time, a value of 0 or less keeps connections
+	 *            alive until the server closes them
+	 */
+	public static void setKeepAlive(long millis) {
+		keepAlive = millis;
+	}
+
+	private static DefaultHttpClient createClient() {
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "createClient", "Creating HTTP connection pool with " + maxTotal
+				+ " connections and " + maxPerRoute + " connections per route");
+		connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		for (Map.Entry<HttpRoute, Integer> limit : routeLimits.entrySet()) {
+			connectionManager.setMaxPerRoute(limit.getKey(), limit.getValue());
+		}
+		DefaultHttpClient c = new DefaultHttpClient(connectionManager);
+		HttpParams params = c.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		c.setKeepAliveStrategy(new BoundedKeepAliveStrategy());
+		return c;
+	}
+
+	private static HttpHost toHost(String endpoint) {
+		String scheme = "http";
+		String hostPart = endpoint;
+		int schemeAt = endpoint.indexOf("://");
+		if (schemeAt != -1) {
+			scheme = endpoint.substring(0, schemeAt);
+			hostPart = endpoint.substring(schemeAt + 3);
+		}
+		int slashAt = hostPart.indexOf('/');
+		if (slashAt != -1) {
+			hostPart = hostPart.substring(0, slashAt);
+		}
+		int port = -1;
+		int portAt = hostPart.lastIndexOf(':');
+		if (portAt != -1) {
+			port = Integer.parseInt(hostPart.substring(portAt + 1));
+			hostPart = hostPart.substring(0, portAt);
+		}
+		if (port == -1) {
+			port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+		}
+		return new HttpHost(hostPart, port, scheme);
+	}
+
+	/**
+	 * Keep alive strategy that honors the server's Keep-Alive header but never
+	 * keeps a connection longer than the configured keep alive time, if one is
+	 * configured.
+	 */
+	private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long limit = keepAlive;
+			long duration = serverStrategy.getKeepAliveDuration(response, context);
+			if (limit > 0 && (duration < 0 || duration > limit)) {
+				duration = limit;
+			}
+			return duration;
+		}
+	}
+}
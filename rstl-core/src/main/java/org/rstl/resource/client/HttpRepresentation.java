@@ -0,0 +1,68 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Representation backed by the response to a HTTP request. The entity is
+ * streamed from the connection, which is returned to the connection pool when
+ * the representation is released.
+ */
+public class HttpRepresentation implements Representation {
+	private final HttpResponse response;
+	private final HttpEntity entity;
+	private final InputStream content;
+
+	/**
+	 * @param response
+	 *            the response whose entity is the representation
+	 * @throws IOException
+	 *             if the entity of the response cannot be read
+	 */
+	public HttpRepresentation(HttpResponse response) throws IOException {
+		this.response = response;
+		this.entity = response.getEntity();
+		this.content = (null != entity) ? entity.getContent() : null;
+	}
+
+	public boolean isValid() {
+		return getStatusCode() == 200 && null != content;
+	}
+
+	/**
+	 * @return the HTTP status code of the response
+	 */
+	public int getStatusCode() {
+		return response.getStatusLine().getStatusCode();
+	}
+
+	public String getContentType() {
+		return getHeader("Content-Type");
+	}
+
+	public String getHeader(String name) {
+		Header header = response.getFirstHeader(name);
+		return (null != header) ? header.getValue() : null;
+	}
+
+	public InputStream getEntity() {
+		return content;
+	}
+
+	public void release() {
+		try {
+			EntityUtils.consume(entity);
+		} catch (IOException e) {
+			// The connection is discarded rather than returned to the pool
+		}
+	}
+}
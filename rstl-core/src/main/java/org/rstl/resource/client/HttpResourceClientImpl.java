@@ -4,16 +4,25 @@
 
 package org.rstl.resource.client;
 
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 /**
  * Client that will retrieve a resource representation using a HTTP client
- * connection to a specified endpoint.
+ * connection to a specified endpoint. Connections are taken from the shared
+ * {@link HttpConnectionPool}.
  *
  */
-public class HttpResourceClientImpl implements ResourceClient {
+public class HttpResourceClientImpl implements RevalidatingResourceClient {
+	private static final String CLASS_NAME = HttpResourceClientImpl.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+	private static final String DEFAULT_ENDPOINT = "http://localhost";
 	
 	String resourceEndpoint;
 	
@@ -22,21 +31,76 @@ public class HttpResourceClientImpl implements ResourceClient {
 	 * @param resourceEndpoint the scheme and http endpoint to use to retrieve resources.
 	 */
 	public HttpResourceClientImpl(String resourceEndpoint) {
-		if (!resourceEndpoint.startsWith("http://")) {
-			// Log warning about invalid scheme  - use localhost
+		if (null == resourceEndpoint || !resourceEndpoint.startsWith("http")) {
+			_LOGGER.logp(Level.WARNING, CLASS_NAME, "HttpResourceClientImpl", "Invalid resource endpoint "
+					+ resourceEndpoint + ", using " + DEFAULT_ENDPOINT);
+			resourceEndpoint = DEFAULT_ENDPOINT;
 		}
+		this.resourceEndpoint = resourceEndpoint;
 	}
 
+	/**
+	 * @return the scheme and http endpoint used to retrieve relative resource identifiers
+	 */
+	public String getResourceEndpoint() {
+		return resourceEndpoint;
+	}
 
 	public boolean canRetrieve(String url, String contentType) {
-		// TODO Auto-generated method stub
-		return true;
+		return url.startsWith("/") || url.startsWith("http://") || url.startsWith("https://");
+	}
+
+	public Representation fetchResource(String url, String contentType) throws IOException {
+		return execute(createRequest(url, contentType));
+	}
+
+	public Representation revalidate(String url, String contentType, String etag, String lastModified)
+			throws IOException {
+		HttpGet req = createRequest(url, contentType);
+		if (null != etag) {
+			req.setHeader("If-None-Match", etag);
+		}
+		if (null != lastModified) {
+			req.setHeader("If-Modified-Since", lastModified);
+		}
+		Representation rep = execute(req);
+		if (((HttpRepresentation) rep).getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			rep.release();
+			return null;
+		}
+		return rep;
+	}
+
+	private HttpGet createRequest(String url, String contentType) {
+		HttpGet req = new HttpGet(getAbsoluteUri(url));
+		if (null != contentType) {
+			req.setHeader("Accept", contentType);
+		}
+		return req;
+	}
+
+	private Representation execute(HttpGet req) throws IOException {
+		HttpClient client = HttpConnectionPool.getClient();
+		HttpResponse res = client.execute(req);
+		try {
+			return new HttpRepresentation(res);
+		} catch (IOException e) {
+			req.abort();
+			throw e;
+		}
 	}
 
-	public Representation fetchResource(String url, String contentType) {
-		HttpClient client = new DefaultHttpClient();
-		HttpGet req = new HttpGet(url);
-		return null;
+	/**
+	 * Prefix relative resource identifiers with the endpoint of this client
+	 * @param uri
+	 * @return
+	 */
+	public String getAbsoluteUri(String uri) {
+		if (uri.startsWith("http")) {
+			return uri;
+		} else {
+			return resourceEndpoint + uri;
+		}
 	}
 
 }
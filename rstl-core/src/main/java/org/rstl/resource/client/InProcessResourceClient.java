@@ -0,0 +1,114 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client that retrieves resources from handlers running in the same JVM.
+ * Handlers are registered against a URI prefix and optionally a content type.
+ * A resource is routed to the handler with the longest matching prefix. Both
+ * relative identifiers and identifiers prefixed with the registry's default
+ * scheme part are matched against the prefix.
+ */
+public class InProcessResourceClient implements ResourceClient {
+	private static final String CLASS_NAME = InProcessResourceClient.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	private final CopyOnWriteArrayList<HandlerEntry> handlers = new CopyOnWriteArrayList<HandlerEntry>();
+
+	/**
+	 * Register a handler for all the resources whose identifier starts with a
+	 * prefix
+	 * 
+	 * @param uriPrefix
+	 *            the prefix of the resource identifiers, for instance
+	 *            "/web/resources/stores"
+	 * @param handler
+	 */
+	public void register(String uriPrefix, ResourceHandler handler) {
+		register(uriPrefix, null, handler);
+	}
+
+	/**
+	 * Register a handler for the resources whose identifier starts with a
+	 * prefix and that are requested with a content type
+	 * 
+	 * @param uriPrefix
+	 *            the prefix of the resource identifiers
+	 * @param contentType
+	 *            the content type, or null for any content type
+	 * @param handler
+	 */
+	public void register(String uriPrefix, String contentType, ResourceHandler handler) {
+		_LOGGER.logp(Level.FINE, CLASS_NAME, "register", "Registering handler for " + uriPrefix);
+		handlers.add(new HandlerEntry(uriPrefix, contentType, handler));
+	}
+
+	/**
+	 * Remove all the handlers registered for a prefix
+	 * 
+	 * @param uriPrefix
+	 */
+	public void unregister(String uriPrefix) {
+		for (HandlerEntry entry : handlers) {
+			if (entry.prefix.equals(uriPrefix)) {
+				handlers.remove(entry);
+			}
+		}
+	}
+
+	public boolean canRetrieve(String url, String contentType) {
+		return null != findHandler(url, contentType);
+	}
+
+	public Representation fetchResource(String url, String contentType) throws IOException {
+		HandlerEntry entry = findHandler(url, contentType);
+		if (null == entry) {
+			throw new IOException("No handler registered for resource " + url);
+		}
+		Representation rep = entry.handler.handle(toPath(url), contentType);
+		if (null == rep) {
+			rep = new ObjectRepresentation(false, contentType, null);
+		}
+		return rep;
+	}
+
+	private HandlerEntry findHandler(String url, String contentType) {
+		String path = toPath(url);
+		HandlerEntry match = null;
+		for (HandlerEntry entry : handlers) {
+			if (path.startsWith(entry.prefix)
+					&& (null == entry.contentType || entry.contentType.equals(contentType))
+					&& (null == match || entry.prefix.length() > match.prefix.length())) {
+				match = entry;
+			}
+		}
+		return match;
+	}
+
+	private static String toPath(String url) {
+		String schemePart = ResourceRegistry.getDefaultSchemePart();
+		if (url.startsWith(schemePart)) {
+			return url.substring(schemePart.length());
+		}
+		return url;
+	}
+
+	private static class HandlerEntry {
+		final String prefix;
+		final String contentType;
+		final ResourceHandler handler;
+
+		HandlerEntry(String prefix, String contentType, ResourceHandler handler) {
+			this.prefix = prefix;
+			this.contentType = contentType;
+			this.handler = handler;
+		}
+	}
+}
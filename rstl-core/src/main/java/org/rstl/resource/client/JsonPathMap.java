@@ -0,0 +1,241 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Read-only map over a JSON object that only materializes the attribute paths
+ * a template dereferences. The object is parsed with the streaming parser and
+ * the values of the selected paths are extracted, everything else is skipped
+ * without being allocated.
+ * 
+ * Any other attribute may still be read, for instance by an included template
+ * or a widget. The first such read parses the complete object, which is kept
+ * for subsequent reads. Iterating over the map also parses the complete
+ * object.
+ */
+public class JsonPathMap extends AbstractMap<String, Object> {
+	private static final ObjectMapper jom = new ObjectMapper();
+
+	private final Source source;
+	private final List<String> path;
+	private final Selection selection;
+	private final Map<String, Object> values;
+	private final Map<String, Object> overlay;
+	private Map<String, Object> full;
+
+	private JsonPathMap(Source source, List<String> path, Selection selection, Map<String, Object> values,
+			Map<String, Object> overlay) {
+		this.source = source;
+		this.path = path;
+		this.selection = selection;
+		this.values = values;
+		this.overlay = overlay;
+	}
+
+	/**
+	 * Parse the selected attribute paths of a JSON object
+	 * 
+	 * @param body
+	 *            the encoded JSON object
+	 * @param charset
+	 *            the charset of the body
+	 * @param selection
+	 *            the attribute paths to extract
+	 * @param overlay
+	 *            entries that take precedence over the attributes of the
+	 *            object, or null
+	 * @return the map
+	 * @throws IOException
+	 *             if the body is not a JSON object
+	 */
+	public static JsonPathMap parse(byte[] body, Charset charset, Selection selection, Map<String, Object> overlay)
+			throws IOException {
+		Source source = new Source(body, charset);
+		JsonParser p = source.createParser();
+		try {
+			if (p.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Representation is not a JSON object");
+			}
+			List<String> root = Collections.emptyList();
+			Map<String, Object> values = extract(p, selection, source, root);
+			Map<String, Object> o = Collections.emptyMap();
+			if (null != overlay && !overlay.isEmpty()) {
+				o = new HashMap<String, Object>(overlay);
+			}
+			return new JsonPathMap(source, root, selection, values, o);
+		} finally {
+			p.close();
+		}
+	}
+
+	/**
+	 * Extract the selected attributes of the object the parser is positioned
+	 * on
+	 */
+	private static Map<String, Object> extract(JsonParser p, Selection selection, Source source, List<String> path)
+			throws IOException {
+		Map<String, Object> values = new HashMap<String, Object>();
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String name = p.getCurrentName();
+			JsonToken token = p.nextToken();
+			Selection child = selection.children.get(name);
+			if (null == child) {
+				p.skipChildren();
+			} else if (token == JsonToken.START_OBJECT && !child.whole) {
+				List<String> childPath = new ArrayList<String>(path.size() + 1);
+				childPath.addAll(path);
+				childPath.add(name);
+				Map<String, Object> o = Collections.emptyMap();
+				values.put(name, new JsonPathMap(source, childPath, child, extract(p, child, source, childPath), o));
+			} else {
+				values.put(name, jom.readValue(p, Object.class));
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (overlay.containsKey(key)) {
+			return overlay.get(key);
+		}
+		if (null == full && selection.children.containsKey(key)) {
+			return values.get(key);
+		}
+		return getFull().get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (overlay.containsKey(key)) {
+			return true;
+		}
+		if (null == full && selection.children.containsKey(key)) {
+			return values.containsKey(key);
+		}
+		return getFull().containsKey(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Map<String, Object> merged = new LinkedHashMap<String, Object>(getFull());
+		merged.putAll(overlay);
+		return Collections.unmodifiableMap(merged).entrySet();
+	}
+
+	/**
+	 * @return the complete object at the path of this map
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> getFull() {
+		if (null == full) {
+			Object value = source.getFull();
+			for (String segment : path) {
+				value = (value instanceof Map) ? ((Map<String, Object>) value).get(segment) : null;
+			}
+			full = (value instanceof Map) ? (Map<String, Object>) value : Collections.<String, Object> emptyMap();
+		}
+		return full;
+	}
+
+	/**
+	 * The encoded object, parsed completely on demand
+	 */
+	private static class Source {
+		private final byte[] body;
+		private final Charset charset;
+		private Map<String, Object> full;
+
+		Source(byte[] body, Charset charset) {
+			this.body = body;
+			this.charset = charset;
+		}
+
+		JsonParser createParser() throws IOException {
+			if (charset.name().startsWith("UTF-")) {
+				// The parser detects the UTF encodings itself
+				return jom.getFactory().createParser(body);
+			}
+			return jom.getFactory().createParser(new InputStreamReader(new ByteArrayInputStream(body), charset));
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> getFull() {
+			if (null == full) {
+				try {
+					JsonParser p = createParser();
+					try {
+						full = jom.readValue(p, Map.class);
+					} finally {
+						p.close();
+					}
+				} catch (IOException e) {
+					full = Collections.emptyMap();
+				}
+			}
+			return full;
+		}
+	}
+
+	/**
+	 * The tree of attribute paths to extract from a JSON object. Selections
+	 * are immutable once created and may be shared.
+	 */
+	public static class Selection {
+		private final Map<String, Selection> children = new HashMap<String, Selection>();
+		private boolean whole;
+
+		private Selection() {
+		}
+
+		/**
+		 * Create a selection from attribute paths
+		 * 
+		 * @param paths
+		 *            dot separated attribute paths, for instance "name" or
+		 *            "address.city". The complete value at a path is
+		 *            extracted.
+		 * @return the selection
+		 */
+		public static Selection of(Collection<String> paths) {
+			Selection root = new Selection();
+			for (String path : paths) {
+				Selection node = root;
+				for (String segment : path.split("\\.")) {
+					if (node.whole) {
+						break;
+					}
+					Selection child = node.children.get(segment);
+					if (null == child) {
+						child = new Selection();
+						node.children.put(segment, child);
+					}
+					node = child;
+				}
+				node.whole = true;
+				node.children.clear();
+			}
+			return root;
+		}
+	}
+}
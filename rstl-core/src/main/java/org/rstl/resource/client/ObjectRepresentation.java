@@ -0,0 +1,109 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.rstl.io.StreamUtil;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A representation whose value is a Java object, as returned by an in-process
+ * {@link ResourceHandler}. A Map value is bound directly to a template
+ * variable by json resources. A String value is the markup for xhtml
+ * resources. Any other value is serialized to JSON when its entity is read.
+ */
+public class ObjectRepresentation implements Representation {
+	private static final ObjectMapper jom = new ObjectMapper();
+	private final boolean valid;
+	private final String contentType;
+	private final Object value;
+	private final Map<String, String> headers;
+
+	/**
+	 * Create a valid representation
+	 * 
+	 * @param contentType
+	 *            the content type of the representation
+	 * @param value
+	 *            the value of the representation
+	 */
+	public ObjectRepresentation(String contentType, Object value) {
+		this(true, contentType, value);
+	}
+
+	public ObjectRepresentation(boolean valid, String contentType, Object value) {
+		this(valid, contentType, value, null);
+	}
+
+	/**
+	 * @param valid
+	 * @param contentType
+	 * @param value
+	 * @param headers
+	 *            headers of the representation such as Cache-Control, names
+	 *            are matched ignoring case
+	 */
+	public ObjectRepresentation(boolean valid, String contentType, Object value, Map<String, String> headers) {
+		this.valid = valid && null != value;
+		this.contentType = contentType;
+		this.value = value;
+		if (null == headers || headers.isEmpty()) {
+			this.headers = Collections.emptyMap();
+		} else {
+			Map<String, String> h = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			h.putAll(headers);
+			this.headers = h;
+		}
+	}
+
+	/**
+	 * @return the value of the representation
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	public InputStream getEntity() {
+		if (null == value) {
+			return null;
+		}
+		byte[] body;
+		if (value instanceof String) {
+			body = ((String) value).getBytes(StreamUtil.getCharset(contentType));
+		} else if (value instanceof byte[]) {
+			body = (byte[]) value;
+		} else {
+			try {
+				body = jom.writeValueAsBytes(value);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to serialize representation", e);
+			}
+		}
+		return new ByteArrayInputStream(body);
+	}
+
+	public void release() {
+		// Nothing to release
+	}
+}
@@ -22,9 +22,21 @@ public interface Representation {
 	 */
 	public String getContentType();
 	
+	/**
+	 * @param name the name of the header, for instance Cache-Control
+	 * @return the value of a header of the representation, or null if the header is not present
+	 */
+	public String getHeader(String name);
+	
 	/**
 	 * @return the body associated with the representation
 	 */
 	public InputStream getEntity();
 	
+	/**
+	 * Release any resources, such as a pooled connection, held by this
+	 * representation. The entity should not be read after it is released.
+	 */
+	public void release();
+	
 }
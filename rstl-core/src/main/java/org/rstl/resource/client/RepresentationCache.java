@@ -0,0 +1,466 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.rstl.io.StreamUtil;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Bounded in-memory cache of fetched resource representations, keyed by the
+ * resolved resource identifier and the requested content type. The cache is
+ * bounded by the number of representations and by the bytes they hold, the
+ * least recently used representations are evicted when either bound is
+ * exceeded. The bytes of a representation are the length of its body, or an
+ * estimate of the memory held by the parsed value of a JSON representation.
+ * A representation larger than the byte bound is not cached.
+ * 
+ * The time a representation stays fresh is taken from the Cache-Control
+ * (s-maxage, max-age) or Expires headers of the representation, or the default
+ * time to live when there are no such headers. Representations marked
+ * no-store or private are never cached. Once a representation has expired and
+ * it carries an ETag or Last-Modified header, it is revalidated with a
+ * conditional request if the client that fetched it is a
+ * {@link RevalidatingResourceClient}.
+ * 
+ * JSON representations are parsed once when they are cached and held as
+ * read-only maps, so json resources are bound to template variables without
+ * parsing the representation again.
+ */
+public class RepresentationCache {
+	private static final String CLASS_NAME = RepresentationCache.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+	private static final ObjectMapper jom = new ObjectMapper();
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_TTL = 0;
+
+	private static volatile boolean enabled = true;
+	private static volatile long defaultTtl = DEFAULT_TTL;
+	private static int maxEntries = DEFAULT_MAX_ENTRIES;
+	private static long maxBytes = DEFAULT_MAX_BYTES;
+	private static long bytes;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong revalidations = new AtomicLong();
+
+	// In access order, so the eldest entry is the least recently used
+	private static final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16,
+			0.75f, true);
+
+	private RepresentationCache() {
+	}
+
+	/**
+	 * Return the cached representation of a resource, fetching it with the
+	 * client provided if it is not cached or has expired.
+	 * Concurrent fetches of a resource that is not cached are coalesced by the
+	 * {@link RequestCoalescer}.
+	 * 
+	 * @param client
+	 *            the client that retrieves the resource
+	 * @param uri
+	 *            the identifier of the resource
+	 * @param contentType
+	 *            the content type requested for the representation
+	 * @return the representation of the resource
+	 * @throws IOException
+	 *             if the resource could not be retrieved
+	 */
+	public static Representation fetch(final ResourceClient client, final String uri, final String contentType)
+			throws IOException {
+		final String key = contentType + ' ' + uri;
+		CacheEntry cached = null;
+		if (enabled) {
+			synchronized (entries) {
+				cached = entries.get(key);
+			}
+			if (null != cached && System.currentTimeMillis() < cached.expires) {
+				hits.incrementAndGet();
+				return cached.rep;
+			}
+		}
+		final CacheEntry entry = cached;
+		// Concurrent renders that miss on the same resource share one fetch
+		return RequestCoalescer.fetch(key, uri, new Callable<Representation>() {
+			public Representation call() throws IOException {
+				return load(client, key, uri, contentType, entry);
+			}
+		});
+	}
+
+	/**
+	 * Fetch or revalidate the representation and cache it
+	 */
+	private static Representation load(ResourceClient client, String key, String uri, String contentType,
+			CacheEntry entry) throws IOException {
+		if (!enabled) {
+			return client.fetchResource(uri, contentType);
+		}
+		long now = System.currentTimeMillis();
+		if (null != entry && entry.hasValidator() && client instanceof RevalidatingResourceClient) {
+			Representation rep = ((RevalidatingResourceClient) client).revalidate(uri, contentType, entry.etag,
+					entry.lastModified);
+			if (null == rep) {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "load", "Revalidated cached representation of " + uri);
+				revalidations.incrementAndGet();
+				hits.incrementAndGet();
+				put(key, new CacheEntry(entry.rep, now + getTtl(entry.rep, now)));
+				return entry.rep;
+			}
+			misses.incrementAndGet();
+			return store(key, rep, now);
+		}
+		misses.incrementAndGet();
+		return store(key, client.fetchResource(uri, contentType), now);
+	}
+
+	/**
+	 * Cache the representation if it may be cached
+	 * 
+	 * @return the cached copy of the representation, or the representation
+	 *         itself if it is not cached
+	 */
+	private static Representation store(String key, Representation rep, long now) throws IOException {
+		if (!rep.isValid() || !isStorable(rep)) {
+			remove(key);
+			return rep;
+		}
+		long ttl = getTtl(rep, now);
+		if (ttl <= 0 && null == rep.getHeader("ETag") && null == rep.getHeader("Last-Modified")) {
+			remove(key);
+			return rep;
+		}
+		Representation cached = toCacheable(rep);
+		CacheEntry entry = new CacheEntry(cached, now + ttl);
+		if (entry.size > maxBytes) {
+			_LOGGER.logp(Level.FINE, CLASS_NAME, "store", "Representation of " + key + " is too large to cache");
+			remove(key);
+			return cached;
+		}
+		put(key, entry);
+		return cached;
+	}
+
+	private static void put(String key, CacheEntry entry) {
+		synchronized (entries) {
+			CacheEntry previous = entries.put(key, entry);
+			if (null != previous) {
+				bytes -= previous.size;
+			}
+			bytes += entry.size;
+			evict();
+		}
+	}
+
+	private static void remove(String key) {
+		synchronized (entries) {
+			CacheEntry previous = entries.remove(key);
+			if (null != previous) {
+				bytes -= previous.size;
+			}
+		}
+	}
+
+	/**
+	 * Evict the least recently used representations until the cache is within
+	 * its bounds. Must be called holding the lock on the entries.
+	 */
+	private static void evict() {
+		Iterator<CacheEntry> it = entries.values().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			bytes -= it.next().size;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The bytes held by a cached representation
+	 */
+	private static long sizeOf(Representation rep) {
+		if (rep instanceof BufferedRepresentation) {
+			byte[] body = ((BufferedRepresentation) rep).getBody();
+			return (null == body) ? 0 : body.length;
+		} else if (rep instanceof ObjectRepresentation) {
+			return sizeOf(((ObjectRepresentation) rep).getValue());
+		}
+		return 0;
+	}
+
+	/**
+	 * Estimate the memory held by a parsed JSON value
+	 */
+	@SuppressWarnings("unchecked")
+	private static long sizeOf(Object value) {
+		if (value instanceof String) {
+			return 40 + 2L * ((String) value).length();
+		} else if (value instanceof Map) {
+			long size = 48;
+			for (Map.Entry<Object, Object> e : ((Map<Object, Object>) value).entrySet()) {
+				size += 40 + sizeOf(e.getKey()) + sizeOf(e.getValue());
+			}
+			return size;
+		} else if (value instanceof List) {
+			long size = 24;
+			for (Object o : (List<Object>) value) {
+				size += 8 + sizeOf(o);
+			}
+			return size;
+		}
+		return 16;
+	}
+
+	/**
+	 * A representation can be cached unless it is marked no-store or private
+	 */
+	private static boolean isStorable(Representation rep) {
+		String cacheControl = rep.getHeader("Cache-Control");
+		if (null == cacheControl) {
+			return true;
+		}
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+			if (directive.equals("no-store") || directive.startsWith("private")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The time in milliseconds the representation is fresh
+	 */
+	private static long getTtl(Representation rep, long now) {
+		String cacheControl = rep.getHeader("Cache-Control");
+		if (null != cacheControl) {
+			long maxAge = -1;
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-cache")) {
+					return 0;
+				}
+				try {
+					if (directive.startsWith("s-maxage=")) {
+						// s-maxage overrides max-age for a shared cache
+						return Long.parseLong(directive.substring(9).trim()) * 1000;
+					}
+					if (directive.startsWith("max-age=")) {
+						maxAge = Long.parseLong(directive.substring(8).trim()) * 1000;
+					}
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			if (maxAge >= 0) {
+				return maxAge;
+			}
+		}
+		String expires = rep.getHeader("Expires");
+		if (null != expires) {
+			try {
+				long base = now;
+				String date = rep.getHeader("Date");
+				if (null != date) {
+					base = DateUtils.parseDate(date).getTime();
+				}
+				Date expiresAt = DateUtils.parseDate(expires);
+				return expiresAt.getTime() - base;
+			} catch (DateParseException e) {
+				// An invalid Expires header means the representation has expired
+				return 0;
+			}
+		}
+		return defaultTtl;
+	}
+
+	/**
+	 * Copy the representation into a form that can be shared by concurrent
+	 * renders. JSON is parsed into read-only maps.
+	 */
+	private static Representation toCacheable(Representation rep) throws IOException {
+		if (rep instanceof ObjectRepresentation) {
+			ObjectRepresentation oRep = (ObjectRepresentation) rep;
+			return new ObjectRepresentation(true, rep.getContentType(), toReadOnly(oRep.getValue()),
+					BufferedRepresentation.getRetainedHeaders(rep));
+		}
+		Representation buffered = BufferedRepresentation.buffer(rep);
+		String contentType = buffered.getContentType();
+		String mediaType = StreamUtil.getMediaType(contentType);
+		if (buffered instanceof BufferedRepresentation
+				&& ("application/json".equals(mediaType) || "text/json".equals(mediaType))) {
+			try {
+				Object value = jom.readValue(new InputStreamReader(buffered.getEntity(),
+						StreamUtil.getCharset(contentType)), Map.class);
+				return new ObjectRepresentation(true, contentType, toReadOnly(value),
+						BufferedRepresentation.getRetainedHeaders(buffered));
+			} catch (IOException e) {
+				// Not valid JSON, cache the representation as is
+			}
+		}
+		return buffered;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object toReadOnly(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> m = new LinkedHashMap<Object, Object>();
+			for (Map.Entry<Object, Object> e : ((Map<Object, Object>) value).entrySet()) {
+				m.put(e.getKey(), toReadOnly(e.getValue()));
+			}
+			return Collections.unmodifiableMap(m);
+		} else if (value instanceof List) {
+			List<Object> l = new ArrayList<Object>();
+			for (Object o : (List<Object>) value) {
+				l.add(toReadOnly(o));
+			}
+			return Collections.unmodifiableList(l);
+		}
+		return value;
+	}
+
+	/**
+	 * Enable or disable the cache. The cache is enabled by default.
+	 * 
+	 * @param enable
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+		if (!enable) {
+			clear();
+		}
+	}
+
+	/**
+	 * Set the maximum number of cached representations
+	 * 
+	 * @param max
+	 */
+	public static void setMaxEntries(int max) {
+		synchronized (entries) {
+			maxEntries = max;
+			evict();
+		}
+	}
+
+	/**
+	 * Set the maximum number of bytes held by the cached representations
+	 * 
+	 * @param max
+	 */
+	public static void setMaxBytes(long max) {
+		synchronized (entries) {
+			maxBytes = max;
+			evict();
+		}
+	}
+
+	/**
+	 * Set the time in milliseconds a representation without Cache-Control or
+	 * Expires headers is cached. The default of 0 caches such representations
+	 * only if they can be revalidated.
+	 * 
+	 * @param millis
+	 */
+	public static void setDefaultTtl(long millis) {
+		defaultTtl = millis;
+	}
+
+	/**
+	 * Remove all the cached representations
+	 */
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @return the number of cached representations
+	 */
+	public static int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of bytes held by the cached representations
+	 */
+	public static long getBytes() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * @return the number of fetches served from the cache, including
+	 *         revalidated representations
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of fetches that retrieved the representation
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of representations evicted to bound the cache
+	 */
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of expired representations that were revalidated
+	 */
+	public static long getRevalidations() {
+		return revalidations.get();
+	}
+
+	private static class CacheEntry {
+		final Representation rep;
+		final long expires;
+		final String etag;
+		final String lastModified;
+		final long size;
+
+		CacheEntry(Representation rep, long expires) {
+			this.rep = rep;
+			this.expires = expires;
+			this.size = sizeOf(rep);
+			this.etag = rep.getHeader("ETag");
+			this.lastModified = rep.getHeader("Last-Modified");
+		}
+
+		boolean hasValidator() {
+			return null != etag || null != lastModified;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deduplicates concurrent fetches of the same resource. The first caller for a
+ * key performs the fetch on its own thread, callers that arrive while the
+ * fetch is in flight wait for and share its result instead of issuing their
+ * own request. The representation is only buffered in memory when callers
+ * joined the fetch, so that it can be read by every one of them. A fetch that
+ * nobody joined hands the representation to the first caller as is, so its
+ * entity can be streamed.
+ * 
+ * Waiting callers give up after a timeout, which may be configured for
+ * resources whose identifiers start with a prefix. The fetch itself is bounded
+ * by the timeouts of the client that performs it.
+ */
+public class RequestCoalescer {
+	private static final String CLASS_NAME = RequestCoalescer.class.getCanonicalName();
+	private static final Logger _LOGGER = Logger.getLogger(CLASS_NAME);
+
+	public static final long DEFAULT_TIMEOUT = 15000;
+
+	private static volatile boolean enabled = true;
+	private static volatile long defaultTimeout = DEFAULT_TIMEOUT;
+	private static final Map<String, Long> timeouts = new ConcurrentHashMap<String, Long>();
+	private static final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+	private static final AtomicLong coalesced = new AtomicLong();
+
+	private RequestCoalescer() {
+	}
+
+	/**
+	 * Fetch a representation, sharing the fetch with concurrent callers that
+	 * use the same key
+	 * 
+	 * @param key
+	 *            identifies the fetch, typically the content type and the
+	 *            resolved identifier of the resource
+	 * @param uri
+	 *            the identifier of the resource, used to find the timeout
+	 * @param loader
+	 *            performs the fetch
+	 * @return the representation
+	 * @throws IOException
+	 *             if the fetch failed or a waiting caller timed out
+	 */
+	public static Representation fetch(String key, String uri, final Callable<Representation> loader)
+			throws IOException {
+		if (!enabled) {
+			return call(loader);
+		}
+		while (true) {
+			Flight flight = new Flight();
+			Flight existing = inFlight.putIfAbsent(key, flight);
+			if (null == existing) {
+				return lead(key, flight, loader);
+			}
+			if (existing.join()) {
+				_LOGGER.logp(Level.FINE, CLASS_NAME, "fetch", "Waiting for in flight fetch of " + uri);
+				coalesced.incrementAndGet();
+				return await(existing.result, getTimeout(uri));
+			}
+			// The fetch completed before this caller could join it
+			inFlight.remove(key, existing);
+		}
+	}
+
+	/**
+	 * Perform the fetch for the callers that join the flight
+	 */
+	private static Representation lead(String key, Flight flight, Callable<Representation> loader)
+			throws IOException {
+		Representation rep = null;
+		try {
+			rep = call(loader);
+		} catch (IOException e) {
+			flight.error = e;
+		} finally {
+			int waiters = flight.close();
+			inFlight.remove(key, flight);
+			if (waiters > 0 && null != rep) {
+				try {
+					// Shared by the waiting callers, read it into memory once
+					rep = BufferedRepresentation.buffer(rep);
+				} catch (IOException e) {
+					flight.error = e;
+				}
+			}
+			flight.rep = rep;
+			flight.result.run();
+		}
+		return await(flight.result, 0);
+	}
+
+	private static Representation call(Callable<Representation> loader) throws IOException {
+		try {
+			return loader.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to fetch resource", e);
+		}
+	}
+
+	private static Representation await(FutureTask<Representation> task, long timeout) throws IOException {
+		try {
+			if (timeout <= 0) {
+				return task.get();
+			}
+			return task.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Failed to fetch resource", cause);
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out waiting for in flight fetch", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for in flight fetch", e);
+		}
+	}
+
+	/**
+	 * A fetch in flight. Callers join the flight until the fetch completes,
+	 * the result is then only shared with the callers that joined.
+	 */
+	private static class Flight {
+		private static final int CLOSED = -1;
+		private final AtomicInteger waiters = new AtomicInteger();
+		volatile Representation rep;
+		volatile IOException error;
+		final FutureTask<Representation> result = new FutureTask<Representation>(new Callable<Representation>() {
+			public Representation call() throws IOException {
+				if (null != error) {
+					throw error;
+				}
+				return rep;
+			}
+		});
+
+		/**
+		 * @return false if the fetch already completed
+		 */
+		boolean join() {
+			while (true) {
+				int count = waiters.get();
+				if (CLOSED == count) {
+					return false;
+				}
+				if (waiters.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Stop callers from joining
+		 * 
+		 * @return the number of callers that joined
+		 */
+		int close() {
+			return waiters.getAndSet(CLOSED);
+		}
+	}
+
+	/**
+	 * The time a caller waits for an in flight fetch of a resource. The
+	 * timeout of the longest matching prefix applies.
+	 * 
+	 * @param uri
+	 * @return the timeout in milliseconds
+	 */
+	public static long getTimeout(String uri) {
+		long timeout = defaultTimeout;
+		int matchLen = -1;
+		for (Map.Entry<String, Long> e : timeouts.entrySet()) {
+			if (uri.startsWith(e.getKey()) && e.getKey().length() > matchLen) {
+				matchLen = e.getKey().length();
+				timeout = e.getValue();
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Enable or disable coalescing of fetches. Coalescing is enabled by
+	 * default.
+	 * 
+	 * @param enable
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * @return true if concurrent fetches are coalesced
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Set the time in milliseconds a caller waits for an in flight fetch
+	 * 
+	 * @param millis
+	 */
+	public static void setDefaultTimeout(long millis) {
+		defaultTimeout = millis;
+	}
+
+	/**
+	 * Set the time in milliseconds a caller waits for an in flight fetch of
+	 * the resources whose identifiers start with a prefix
+	 * 
+	 * @param uriPrefix
+	 * @param millis
+	 */
+	public static void setTimeout(String uriPrefix, long millis) {
+		timeouts.put(uriPrefix, millis);
+	}
+
+	/**
+	 * @return the number of fetches that waited for an in flight fetch
+	 *         instead of fetching the resource
+	 */
+	public static long getCoalesced() {
+		return coalesced.get();
+	}
+}
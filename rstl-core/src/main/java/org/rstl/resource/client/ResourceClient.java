@@ -4,22 +4,30 @@
 
 package org.rstl.resource.client;
 
+import java.io.IOException;
+
 
 /**
- * Interface that defines the contract for implementations that can retrieve resources
+ * Interface that defines the contract for implementations that can retrieve resources.
+ * Clients are registered with the {@link ResourceRegistry}, which routes a resource
+ * to the first client that can retrieve it.
  */
 public interface ResourceClient {
 	
 	/**
-	 * @param ref reference to a resource
+	 * @param url the identifier of the resource
+	 * @param contentType the content type requested for the representation
 	 * @return true if the reference can be retrieved by this client
 	 */
 	public boolean canRetrieve(String url, String contentType);
 	
 	/**
-	 * Fetch the resource representation
-	 * @param ref
+	 * Fetch the resource representation. The caller must release the representation.
+	 * @param url the identifier of the resource
+	 * @param contentType the content type requested for the representation
+	 * @return the representation of the resource
+	 * @throws IOException if the resource could not be retrieved
 	 */
-	public Representation fetchResource(String url, String contentType);
+	public Representation fetchResource(String url, String contentType) throws IOException;
 	
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+
+/**
+ * A resource provider that runs in the same JVM as the template engine.
+ * Handlers are registered with an {@link InProcessResourceClient} and are
+ * called directly, without a network round trip or serialization of the
+ * representation.
+ */
+public interface ResourceHandler {
+
+	/**
+	 * Produce the representation of a resource. Handlers are called
+	 * concurrently from rendering and prefetching threads and must be thread
+	 * safe.
+	 * 
+	 * @param uri
+	 *            the identifier of the resource
+	 * @param contentType
+	 *            the content type requested for the representation
+	 * @return the representation, typically an {@link ObjectRepresentation}
+	 * @throws IOException
+	 *             if the representation could not be produced
+	 */
+	public Representation handle(String uri, String contentType) throws IOException;
+}
@@ -4,9 +4,9 @@
 
 package org.rstl.resource.client;
 
+import java.io.IOException;
 import java.util.List;
-
-import org.rstl.ResourceRef;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -17,23 +17,63 @@ import org.rstl.ResourceRef;
  * Local resources whose representations are in the filesystem may be referenced
  * using the Java file:// URI scheme.
  * 
+ * Resource clients registered with the registry are asked in the order of
+ * registration whether they can retrieve a resource. Resources that no client
+ * can retrieve are fetched over HTTP from the default scheme part.
  */
 public class ResourceRegistry {
 	private static final String BUILTIN_SCHEME_PART = "http://localhost";
-	private static String default_scheme_part = BUILTIN_SCHEME_PART;
+	private static volatile String default_scheme_part = BUILTIN_SCHEME_PART;
+	private static volatile HttpResourceClientImpl defaultClient = new HttpResourceClientImpl(BUILTIN_SCHEME_PART);
 	
-	private static List<ResourceClient> resClientList;
+	private static List<ResourceClient> resClientList = new CopyOnWriteArrayList<ResourceClient>();
 	
-	public static ResourceClient getClient(ResourceRef resRef) {
-		return null;
+	/**
+	 * Register a resource client. Clients registered earlier take precedence.
+	 * @param client
+	 */
+	public static void register(ResourceClient client) {
+		resClientList.add(client);
 	}
 
-	public static String getAbsoluteUri(String uri) {
-		if (uri.startsWith("http")) {
-			return uri;
-		} else {
-			return default_scheme_part + uri;
+	/**
+	 * Remove a resource client from the registry
+	 * @param client
+	 */
+	public static void unregister(ResourceClient client) {
+		resClientList.remove(client);
+	}
+
+	/**
+	 * Return the client that will retrieve a resource
+	 * @param uri the identifier of the resource
+	 * @param contentType the content type requested for the representation
+	 * @return the first registered client that can retrieve the resource, or the default HTTP client
+	 */
+	public static ResourceClient getClient(String uri, String contentType) {
+		for (ResourceClient client : resClientList) {
+			if (client.canRetrieve(uri, contentType)) {
+				return client;
+			}
 		}
+		return defaultClient;
+	}
+
+	/**
+	 * Fetch the representation of a resource using the client that can retrieve it.
+	 * Cacheable representations are served from the {@link RepresentationCache}.
+	 * The caller must release the representation.
+	 * @param uri the identifier of the resource
+	 * @param contentType the content type requested for the representation
+	 * @return the representation of the resource
+	 * @throws IOException if the resource could not be retrieved
+	 */
+	public static Representation fetchResource(String uri, String contentType) throws IOException {
+		return RepresentationCache.fetch(getClient(uri, contentType), uri, contentType);
+	}
+
+	public static String getAbsoluteUri(String uri) {
+		return defaultClient.getAbsoluteUri(uri);
 	}
 
 	/**
@@ -45,6 +85,14 @@ public class ResourceRegistry {
 	 */
 	public static void setDefaultSchemePart(String schemePart) {
 		default_scheme_part = schemePart;
+		defaultClient = new HttpResourceClientImpl(schemePart);
+	}
+
+	/**
+	 * @return the default scheme part for fetching resources
+	 */
+	public static String getDefaultSchemePart() {
+		return default_scheme_part;
 	}
 
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.resource.client;
+
+import java.io.IOException;
+
+/**
+ * A resource client that can make a conditional request for a representation
+ * it fetched earlier. Used by the {@link RepresentationCache} to revalidate
+ * representations that have expired.
+ */
+public interface RevalidatingResourceClient extends ResourceClient {
+
+	/**
+	 * Fetch the resource representation if it has changed
+	 * 
+	 * @param url
+	 *            the identifier of the resource
+	 * @param contentType
+	 *            the content type requested for the representation
+	 * @param etag
+	 *            the entity tag of the cached representation, or null
+	 * @param lastModified
+	 *            the last modified date of the cached representation, or null
+	 * @return the new representation, or null if the cached representation is
+	 *         still current
+	 * @throws IOException
+	 *             if the resource could not be retrieved
+	 */
+	public Representation revalidate(String url, String contentType, String etag, String lastModified)
+			throws IOException;
+}
@@ -7,19 +7,23 @@ package org.rstl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.antlr.runtime.RecognitionException;
 import org.junit.Test;
 import org.rstl.context.TemplateContextImpl;
+import org.rstl.io.RenderBuffer;
 
 public class BasicFunctionTest {
 	TemplateGroup tg = new TemplateGroup("templates", "target/testclasses", "target/testclasses");
@@ -68,6 +72,59 @@ public class BasicFunctionTest {
 				w.toString());
 	}
 	
+	@Test
+	public void testRenderToOutputStream() throws IOException {
+		String templateName = "basicfunctiontest/extended.html";
+		Map<String, Object> foo = new HashMap<String, Object>();
+		List<String> names = Arrays.asList("Hello", "Abcd", "Foobar");
+		foo.put("List", names);
+
+		StringWriter w = new StringWriter();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), w);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), out);
+		assertEquals("Byte output does not match character output", w.toString(),
+				new String(out.toByteArray(), "UTF-8"));
+		
+		out = new ByteArrayOutputStream();
+		tg.renderWithMetadata(templateName, new TemplateContextImpl(foo, tg), out);
+		assertEquals("Expected output size should follow the rendered output", out.size(),
+				tg.getExpectedOutputSize(templateName));
+	}
+	
+	@Test
+	public void testRenderBuffer() throws IOException {
+		String text = "a\u00e9\u20ac\ud83d\ude00z";
+		RenderBuffer buf = RenderBuffer.acquire(0);
+		buf.write(text);
+		buf.writeBytes(new byte[] {'!'}, 0, 1);
+		assertTrue("Encoded output does not match",
+				Arrays.equals((text + "!").getBytes("UTF-8"), toBytes(buf)));
+		assertEquals("Decoded output does not match", text + "!", buf.toString());
+		buf.release();
+		RenderBuffer reused = RenderBuffer.acquire(0);
+		assertTrue("Released buffer should be reused", buf == reused);
+		assertEquals("Reused buffer should be empty", 0, reused.size());
+		reused.release();
+
+		String templateName = "basicfunctiontest/nestedfor.html";
+		Map<String, Object> foo = new HashMap<String, Object>();
+		foo.put("List", Arrays.asList("Hello", "Abcd", "Foobar"));
+		StringWriter w = new StringWriter();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), w);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), Channels.newChannel(out));
+		assertEquals("Channel output does not match character output", w.toString(),
+				new String(out.toByteArray(), "UTF-8"));
+	}
+	
+	private byte[] toBytes(RenderBuffer buf) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buf.writeTo(out);
+		return out.toByteArray();
+	}
+	
 	@Test
 	public void testRGroupDeclaration() throws IOException {
 		String templateName = "basicfunctiontest/base.html";
@@ -175,6 +232,54 @@ public class BasicFunctionTest {
 		assertTrue("Template is null", t != null);
 	}
 	
+	@Test
+	public void testForLoopVariablesAreScoped() {
+		String templateName = "basicfunctiontest/nestedfor.html";
+		StringWriter w = new StringWriter();
+		Map<String, Object> foo = new HashMap<String, Object>();
+		List<String> names = Arrays.asList("Hello", "Abcd", "Foobar");
+		foo.put("List", names);
+		foo.put("x", "outer");
+		TemplateContextImpl ctx = new TemplateContextImpl(foo, tg);
+		tg.render(templateName, ctx, w);
+		assertEquals("loop variable should not replace the context value", "outer", foo.get("x"));
+		assertTrue("loop variable should not be left in the context", !foo.containsKey("y"));
+		assertTrue("forloop should not be left in the context", !foo.containsKey("forloop"));
+		assertEquals("context value should be visible after the loop", "outer", ctx.getString("x"));
+	}
+
+	@Test
+	public void testForLoopOverNullValues() {
+		String templateName = "basicfunctiontest/nestedfor.html";
+		StringWriter w = new StringWriter();
+		Map<String, Object> foo = new HashMap<String, Object>();
+		foo.put("List", Arrays.asList("Hello", null));
+		foo.put("x", "outer");
+		foo.put("y", "outer");
+		tg.render(templateName, new TemplateContextImpl(foo, tg), w);
+		assertTrue("null loop value should not render the context value: " + w, !w.toString().contains("outer"));
+		assertTrue("loop values should be rendered: " + w, w.toString().contains("Hello"));
+	}
+
+	@Test
+	public void testForLoopOverArraysAndMaps() {
+		String templateName = "basicfunctiontest/forvariants.html";
+		StringWriter w = new StringWriter();
+		Map<String, Object> foo = new HashMap<String, Object>();
+		Map<String, Object> amap = new LinkedHashMap<String, Object>();
+		amap.put("a", 1);
+		amap.put("b", "two");
+		foo.put("ints", new int[] {1, 2, 3});
+		foo.put("longs", new long[] {4L, 5L});
+		foo.put("amap", amap);
+		foo.put("strs", new String[] {"x", "y"});
+		TemplateContextImpl ctx = new TemplateContextImpl(foo, tg);
+		tg.render(templateName, ctx, w);
+		assertEquals("template output does not match", "1,2,3,|4,5,|a=1;b=two;|x:false y:true ", w.toString());
+		assertEquals("list size of primitive array", 3, ctx.getListSize("ints"));
+		assertEquals("indexed primitive array element", "2", ctx.getString("ints.1"));
+	}
+	
 	@Test
 	public void testConditionalWithForLoopCounters() {
 		String templateName = "basicfunctiontest/conditionalwithfor.html";
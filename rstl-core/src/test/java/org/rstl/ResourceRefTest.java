@@ -7,11 +7,24 @@ package org.rstl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
@@ -19,14 +32,34 @@ import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.rstl.ResourceRef;
 import org.rstl.TemplateGroup;
 import org.rstl.context.TemplateContextImpl;
+import org.rstl.io.EncodingWriter;
+import org.rstl.resource.client.BufferedRepresentation;
+import org.rstl.resource.client.HttpConnectionPool;
+import org.rstl.resource.client.InProcessResourceClient;
+import org.rstl.resource.client.JsonPathMap;
+import org.rstl.resource.client.ObjectRepresentation;
+import org.rstl.resource.client.Representation;
+import org.rstl.resource.client.RepresentationCache;
+import org.rstl.resource.client.RequestCoalescer;
+import org.rstl.resource.client.ResourceHandler;
+import org.rstl.resource.client.ResourceRegistry;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 public class ResourceRefTest {
 	private static TemplateGroup tg = new TemplateGroup("templates", "target/testclasses", "target/testclasses");
 	private static String WEBROOT = "/web";
@@ -51,7 +84,8 @@ public class ResourceRefTest {
 		assertTrue("Not a bad resource name", !ref.isBadResourceName());
 		assertEquals("Variable Ref size does not match", 1, ref.getVarRefsInId().size());
 		assertEquals("Variable Ref value does not match", "storeid", ref.getVarRefsInId().get(0));
-		assertEquals("Unresolved Variable Ref value does not match", "storeid", ref.getUnResolvedVarRefs().get(0));
+		assertEquals("Unresolved Variable Ref value does not match", "storeid", ref.getUnResolvedVarRefs(new TemplateContextImpl(null, tg)).get(0));
+		assertTrue("Expecting no unresolved variables", ref.getUnResolvedVarRefs(ctxt).isEmpty());
 		
 		assertEquals("Resource Id does not match", WEBROOT + "/resources/stores/10101/home", ref.getResolvedId(ctxt, false));
 		assertTrue("Expecting that resource is resolved", ref.resolve(ctxt));		
@@ -68,18 +102,28 @@ public class ResourceRefTest {
 		assertEquals("Variable Ref size does not match", 2, ref.getVarRefsInId().size());
 		assertEquals("Variable Ref value does not match", "storeid", ref.getVarRefsInId().get(0));
 		assertEquals("Variable Ref value does not match", "foobar", ref.getVarRefsInId().get(1));
-		assertEquals("Unresolved Variable Ref value does not match", "storeid", ref.getUnResolvedVarRefs().get(0));
-		assertEquals("Unresolved Variable Ref value does not match", "foobar", ref.getUnResolvedVarRefs().get(1));
+		TemplateContextImpl emptyCtxt = new TemplateContextImpl(null, tg);
+		assertEquals("Unresolved Variable Ref value does not match", "storeid", ref.getUnResolvedVarRefs(emptyCtxt).get(0));
+		assertEquals("Unresolved Variable Ref value does not match", "foobar", ref.getUnResolvedVarRefs(emptyCtxt).get(1));
 		
 		assertEquals("Resource Id does not match", "", ref.getResolvedId(ctxt, false));
 		assertTrue("Expecting that resource is not resolved", !ref.resolve(ctxt));		
+		assertEquals("Unresolved Variable Ref size does not match", 1, ref.getUnResolvedVarRefs(ctxt).size());
+		assertEquals("Unresolved Variable Ref value does not match", "foobar", ref.getUnResolvedVarRefs(ctxt).get(0));
 		
 		init.put("foobar", "index");
-		assertEquals("Unresolved Variable Ref size does not match", 1, ref.getUnResolvedVarRefs().size());
-		assertEquals("Unresolved Variable Ref value does not match", "foobar", ref.getUnResolvedVarRefs().get(0));
+		assertTrue("Expecting no unresolved variables", ref.getUnResolvedVarRefs(ctxt).isEmpty());
 		assertEquals("Resource Id does not match", WEBROOT + "/resources/stores/10101/home/index", ref.getResolvedId(ctxt, false));
 		assertTrue("Expecting that resource is resolved", ref.resolve(ctxt));		
 		
+		// Resolving against another context does not leak values from a previous resolution
+		Map<String, Object> other = new HashMap<String, Object>();
+		other.put("storeid", "20202");
+		TemplateContextImpl otherCtxt = new TemplateContextImpl(other, tg);
+		assertEquals("Resource Id does not match", "", ref.getResolvedId(otherCtxt, false));
+		assertEquals("Resource Id does not match", WEBROOT + "/resources/stores/20202/home/", ref.getResolvedId(otherCtxt, true));
+		assertEquals("Resource Id does not match", WEBROOT + "/resources/stores/10101/home/index", ref.getResolvedId(ctxt, false));
+		
 		ref = new ResourceRef(WEBROOT + "/resources/stores/{storeid}/{baz}bar", "", "xhtml" , "");
 		assertTrue("Not a bad resource name", !ref.isBadResourceName());
 		assertEquals("Resource Id does not match", WEBROOT + "/resources/stores/10101/bar", ref.getResolvedId(ctxt, true));
@@ -192,4 +236,300 @@ public class ResourceRefTest {
 		System.out.println(w.toString());
 		assertEquals("Expected output from resource.xhtml does not match", expectedOutput.toString(), w.toString());
 	}
+	
+	@Test
+	public void testInProcessResourceClient() {
+		final Map<String, Object> store = new HashMap<String, Object>();
+		store.put("name", "Store 10101");
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/stores", "application/json", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) {
+				return new ObjectRepresentation(contentType, store);
+			}
+		});
+		client.register("/resources/stores", "application/xhtml+xml", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) {
+				return new ObjectRepresentation(contentType, "<span>" + uri + "</span>");
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			assertTrue("Expecting the in-process client", client == ResourceRegistry.getClient("/resources/stores/10101/home", "application/json"));
+			assertTrue("Expecting the default client", client != ResourceRegistry.getClient("/resources/catalogs/1", "application/json"));
+			
+			Map<String, Object> init = new HashMap<String, Object>();
+			init.put("storeid", "10101");
+			TemplateContextImpl ctxt = new TemplateContextImpl(init, tg);
+			StringWriter w = new StringWriter();
+			tg.render("resourcetest/simplejsonresource.html", ctxt, w);
+			assertEquals("Expected output from resource.json does not match", "/resources/stores/10101/home", w.toString());
+			Map<String,Object> home = (Map<String, Object>)ctxt.get("home");
+			assertEquals("Attribute name unavailable", "Store 10101", home.get("name"));
+			assertTrue("Handler value should not be modified", !store.containsKey("resourceid"));
+			
+			w = new StringWriter();
+			tg.render("resourcetest/simpleresource.html", new TemplateContextImpl(null, tg), w);
+			assertTrue("Expected output from resource.xhtml does not match", w.toString().contains("<span>/resources/stores/10101/home</span>"));
+		} finally {
+			ResourceRegistry.unregister(client);
+		}
+	}
+	
+	@Test
+	public void testKeepAliveDuration() {
+		ConnectionKeepAliveStrategy strategy = ((AbstractHttpClient) HttpConnectionPool.getClient())
+				.getConnectionKeepAliveStrategy();
+		HttpResponse hinted = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		hinted.setHeader("Keep-Alive", "timeout=5");
+		HttpResponse unhinted = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		try {
+			HttpConnectionPool.setKeepAlive(2000);
+			assertEquals("Keep alive time should bound the server timeout", 2000,
+					strategy.getKeepAliveDuration(hinted, null));
+			assertEquals("Keep alive time should apply without a server timeout", 2000,
+					strategy.getKeepAliveDuration(unhinted, null));
+			HttpConnectionPool.setKeepAlive(10000);
+			assertEquals("Shorter server timeout should take precedence", 5000,
+					strategy.getKeepAliveDuration(hinted, null));
+			
+			HttpConnectionPool.setKeepAlive(0);
+			assertEquals("Server timeout should apply without a keep alive time", 5000,
+					strategy.getKeepAliveDuration(hinted, null));
+			assertTrue("Connection should be kept until the server closes it",
+					strategy.getKeepAliveDuration(unhinted, null) < 0);
+		} finally {
+			HttpConnectionPool.setKeepAlive(HttpConnectionPool.DEFAULT_KEEP_ALIVE);
+		}
+	}
+	
+	@Test
+	public void testCachedResource() {
+		final AtomicInteger calls = new AtomicInteger();
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Cache-Control", "max-age=60");
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/spots", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) {
+				calls.incrementAndGet();
+				Map<String, Object> spot = new HashMap<String, Object>();
+				spot.put("name", "spring sale");
+				return new ObjectRepresentation(true, contentType, spot, headers);
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			RepresentationCache.clear();
+			long hits = RepresentationCache.getHits();
+			ResourceRef ref = new ResourceRef("/resources/spots/{spotid}", "", "json", "spot");
+			Map<String, Object> init = new HashMap<String, Object>();
+			init.put("spotid", "1");
+			TemplateContextImpl ctxt = new TemplateContextImpl(init, tg);
+			ref.fetchResource(ctxt, new StringWriter(), null);
+			ref.fetchResource(ctxt, new StringWriter(), null);
+			assertEquals("Resource should be fetched once", 1, calls.get());
+			assertEquals("Cache hits do not match", hits + 1, RepresentationCache.getHits());
+			Map<String,Object> spot = (Map<String, Object>)ctxt.get("spot");
+			assertEquals("Attribute name unavailable", "spring sale", spot.get("name"));
+			assertEquals("Attribute resourceid unavailable", "/resources/spots/1", spot.get("resourceid"));
+			
+			init.put("spotid", "2");
+			ref.fetchResource(ctxt, new StringWriter(), null);
+			assertEquals("Resource should be fetched for a different id", 2, calls.get());
+		} finally {
+			ResourceRegistry.unregister(client);
+			RepresentationCache.clear();
+		}
+	}
+	
+	@Test
+	public void testCacheByteBound() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Cache-Control", "max-age=60");
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/banners", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) {
+				calls.incrementAndGet();
+				return new BufferedRepresentation(true, contentType, new byte[1000], headers);
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			RepresentationCache.clear();
+			RepresentationCache.setMaxBytes(2500);
+			long evictions = RepresentationCache.getEvictions();
+			for (int i = 1; i <= 3; i++) {
+				ResourceRegistry.fetchResource("/resources/banners/" + i, "application/xhtml+xml");
+			}
+			assertEquals("Least recently used representation should be evicted", evictions + 1, RepresentationCache.getEvictions());
+			assertEquals("Cached bytes do not match", 2000, RepresentationCache.getBytes());
+			ResourceRegistry.fetchResource("/resources/banners/3", "application/xhtml+xml");
+			assertEquals("Cached representation should not be fetched", 3, calls.get());
+			ResourceRegistry.fetchResource("/resources/banners/1", "application/xhtml+xml");
+			assertEquals("Evicted representation should be fetched", 4, calls.get());
+			
+			RepresentationCache.setMaxBytes(500);
+			assertEquals("Cache should be emptied when the bound shrinks", 0, RepresentationCache.getBytes());
+			ResourceRegistry.fetchResource("/resources/banners/1", "application/xhtml+xml");
+			assertEquals("Representation larger than the bound should not be cached", 0, RepresentationCache.size());
+		} finally {
+			ResourceRegistry.unregister(client);
+			RepresentationCache.setMaxBytes(RepresentationCache.DEFAULT_MAX_BYTES);
+			RepresentationCache.clear();
+		}
+	}
+	
+	@Test
+	public void testCoalescedResourceFetch() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch fetching = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/menus", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) throws IOException {
+				calls.incrementAndGet();
+				fetching.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return new ObjectRepresentation(contentType, "<ul></ul>");
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			Callable<Representation> fetch = new Callable<Representation>() {
+				public Representation call() throws IOException {
+					return ResourceRegistry.fetchResource("/resources/menus/top", "application/xhtml+xml");
+				}
+			};
+			ExecutorService exec = Executors.newFixedThreadPool(2);
+			Future<Representation> first = exec.submit(fetch);
+			fetching.await();
+			long coalesced = RequestCoalescer.getCoalesced();
+			Future<Representation> second = exec.submit(fetch);
+			while (RequestCoalescer.getCoalesced() == coalesced) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+			assertTrue("Coalesced fetches should share the representation", first.get() == second.get());
+			assertEquals("Resource should be fetched once", 1, calls.get());
+			exec.shutdown();
+		} finally {
+			ResourceRegistry.unregister(client);
+		}
+	}
+	
+	@Test
+	public void testStreamingResourceCharsets() throws Exception {
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/utf8", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) throws IOException {
+				return new BufferedRepresentation(true, "application/xhtml+xml; charset=UTF-8", "<p>caf\u00e9 \u20ac</p>".getBytes("UTF-8"));
+			}
+		});
+		client.register("/resources/latin1", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) throws IOException {
+				return new BufferedRepresentation(true, "application/xhtml+xml; charset=ISO-8859-1", "<p>caf\u00e9</p>".getBytes("ISO-8859-1"));
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			TemplateContextImpl ctxt = new TemplateContextImpl(null, tg);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			EncodingWriter w = new EncodingWriter(out);
+			new ResourceRef("/resources/utf8/1", "", "xhtml", "").fetchResource(ctxt, w, null);
+			new ResourceRef("/resources/latin1/1", "", "xhtml", "").fetchResource(ctxt, w, null);
+			w.flush();
+			String rendered = new String(out.toByteArray(), "UTF-8");
+			assertTrue("UTF-8 resource is not rendered", rendered.contains("<p>caf\u00e9 \u20ac</p>"));
+			assertTrue("ISO-8859-1 resource is not rendered", rendered.contains("<p>caf\u00e9</p>"));
+			
+			StringWriter sw = new StringWriter();
+			new ResourceRef("/resources/latin1/1", "", "xhtml", "").fetchResource(ctxt, sw, null);
+			assertTrue("ISO-8859-1 resource is not decoded", sw.toString().contains("<p>caf\u00e9</p>"));
+		} finally {
+			ResourceRegistry.unregister(client);
+		}
+	}
+	
+	@Test
+	public void testStreamingHttpResource() throws Exception {
+		final CountDownLatch firstWritten = new CountDownLatch(1);
+		final AtomicInteger streamed = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/resources/news", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type", "application/xhtml+xml; charset=UTF-8");
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream os = exchange.getResponseBody();
+				os.write("<p>first</p>".getBytes("UTF-8"));
+				os.flush();
+				try {
+					// The rest of the body is only sent once the first part reached the writer
+					if (firstWritten.await(5, TimeUnit.SECONDS)) {
+						streamed.incrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				os.write("<p>second</p>".getBytes("UTF-8"));
+				os.close();
+			}
+		});
+		server.start();
+		try {
+			StringWriter w = new StringWriter() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+					super.write(cbuf, off, len);
+					if (toString().contains("<p>first</p>")) {
+						firstWritten.countDown();
+					}
+				}
+			};
+			String uri = "http://localhost:" + server.getAddress().getPort() + "/resources/news/1";
+			new ResourceRef(uri, "", "xhtml", "").fetchResource(new TemplateContextImpl(null, tg), w, null);
+			assertEquals("Resource body should be streamed to the writer", 1, streamed.get());
+			assertTrue("Resource is not rendered", w.toString().contains("<p>first</p><p>second</p>"));
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testJSONResourceAttributePaths() throws Exception {
+		InProcessResourceClient client = new InProcessResourceClient();
+		client.register("/resources/stores", "application/json", new ResourceHandler() {
+			public Representation handle(String uri, String contentType) throws IOException {
+				String json = "{\"name\":\"Store 10101\",\"resourceid\":\"other\",\"address\":{\"city\":\"Austin\"},\"items\":[1,2,3]}";
+				return new BufferedRepresentation(true, "application/json", json.getBytes("UTF-8"));
+			}
+		});
+		ResourceRegistry.register(client);
+		try {
+			Map<String, Object> init = new HashMap<String, Object>();
+			init.put("storeid", "10101");
+			TemplateContextImpl ctxt = new TemplateContextImpl(init, tg);
+			StringWriter w = new StringWriter();
+			tg.render("resourcetest/simplejsonresource.html", ctxt, w);
+			assertEquals("Expected output from resource.json does not match", "/resources/stores/10101/home", w.toString());
+			assertTrue("Expecting only the dereferenced attributes to be parsed", ctxt.get("home") instanceof JsonPathMap);
+			// Attributes that are not dereferenced by the template are still available
+			assertEquals("Attribute name unavailable", "Store 10101", ctxt.get("home.name"));
+			assertEquals("Attribute address.city unavailable", "Austin", ctxt.get("home.address.city"));
+			assertEquals("Attribute items unavailable", 3, ((List<?>) ctxt.get("home.items")).size());
+			
+			JsonPathMap.Selection selection = JsonPathMap.Selection.of(Arrays.asList("address.city", "items"));
+			Map<String, Object> store = JsonPathMap.parse("{\"address\":{\"city\":\"Austin\",\"zip\":\"78758\"},\"items\":[{\"id\":1}]}".getBytes("UTF-8"), 
+					Charset.forName("UTF-8"), selection, null);
+			assertEquals("Attribute address.city unavailable", "Austin", ((Map<String, Object>) store.get("address")).get("city"));
+			assertEquals("Attribute address.zip unavailable", "78758", ((Map<String, Object>) store.get("address")).get("zip"));
+			assertEquals("Attribute items unavailable", 1, ((List<?>) store.get("items")).size());
+			assertEquals("Map size does not match", 2, store.size());
+		} finally {
+			ResourceRegistry.unregister(client);
+		}
+	}
 }
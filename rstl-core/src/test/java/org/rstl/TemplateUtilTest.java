@@ -5,14 +5,45 @@
 package org.rstl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.regex.Pattern;
 
 import org.junit.Test;
 import org.rstl.TemplateUtil;
+import org.rstl.context.TemplateContext;
+import org.rstl.context.TemplateContextImpl;
 
 public class TemplateUtilTest {
 	
@@ -43,6 +74,502 @@ public class TemplateUtilTest {
 		}
 	}
 	
+	@Test
+	public void batchCompileTest() throws Exception {
+		File templateDir = new File("templates");
+		File tmpJavaDir = new File("target/tests/batchcompile/java");
+		File classDir = new File("target/tests/batchcompile/classes");
+		new File(classDir, TemplateUtil.getPackageDir()).mkdirs();
+		
+		StringWriter out = new StringWriter();
+		StringWriter err = new StringWriter();
+		List<Exception> exceptionList = new ArrayList<Exception>();
+		TemplateUtil.setParallelism(4);
+		TemplateUtil.setMinBatchSize(1);
+		try {
+			TemplateUtil.compile(templateDir, tmpJavaDir, classDir, new PrintWriter(out, true), 
+					new PrintWriter(err, true), exceptionList, null);
+		} finally {
+			TemplateUtil.setParallelism(Runtime.getRuntime().availableProcessors());
+			TemplateUtil.setMinBatchSize(200);
+		}
+		
+		assertEquals("Unexpected exceptions " + exceptionList, 0, exceptionList.size());
+		assertTrue("Unexpected compiler errors " + err, err.toString().indexOf("ERROR in") == -1);
+		
+		Properties p = new Properties();
+		FileInputStream fis = new FileInputStream(new File(new File(classDir, TemplateUtil.getPackageDir()), "templatemap.properties"));
+		p.load(fis);
+		fis.close();
+		List<String> templateNames = new ArrayList<String>();
+		TemplateUtil.scanDirectory("templates", "target/tests/batchcompile/scan", templateNames, new ArrayList<String>());
+		assertEquals("The number of templates is incorrect", templateNames.size(), p.size());
+		for (String templateName : templateNames) {
+			String className = TemplateUtil.getClassName(templateName);
+			assertEquals(className, p.getProperty(templateName));
+			assertTrue("Missing class " + className, 
+					new File(new File(classDir, TemplateUtil.getPackageDir()), className + ".class").exists());
+		}
+	}
+	
+	@Test
+	public void incrementalCompileTest() throws Exception {
+		File root = new File("target/tests/incremental");
+		File layoutDir = copyLayoutTemplates(root);
+		File templateDir = layoutDir.getParentFile();
+		File tmpJavaDir = new File(root, "java");
+		File classDir = new File(root, "classes");
+		
+		String out = compileIncremental(templateDir, tmpJavaDir, classDir);
+		assertTrue(out, out.contains("Compiling 9 source files"));
+		out = compileIncremental(templateDir, tmpJavaDir, classDir);
+		assertTrue(out, out.contains("All 9 templates"));
+		
+		// Only the changed layout and the layout extending it have to be recompiled, 
+		// the code generated for the pages using the layouts does not change
+		FileWriter fw = new FileWriter(new File(layoutDir, "mylayout.html"), true);
+		fw.write("Some more layout text\n");
+		fw.close();
+		out = compileIncremental(templateDir, tmpJavaDir, classDir);
+		assertTrue(out, out.contains("Compiling 2 source files"));
+		
+		// Removed templates are dropped from the template map along with their classes
+		new File(layoutDir, "pagewithoutlayout.html").delete();
+		out = compileIncremental(templateDir, tmpJavaDir, classDir);
+		assertTrue(out, out.contains("All 8 templates"));
+		File classGenDir = new File(classDir, TemplateUtil.getPackageDir());
+		Properties p = new Properties();
+		FileInputStream fis = new FileInputStream(new File(classGenDir, "templatemap.properties"));
+		p.load(fis);
+		fis.close();
+		assertEquals(8, p.size());
+		assertFalse(new File(classGenDir, TemplateUtil.getClassName("layouttest/pagewithoutlayout.html") + ".class").exists());
+		
+		// All templates are recompiled when the parent template group they are compiled against changed
+		out = compileIncremental(templateDir, tmpJavaDir, classDir, "parent");
+		assertTrue(out, out.contains("Compiling 8 source files"));
+		out = compileIncremental(templateDir, tmpJavaDir, classDir, "parent");
+		assertTrue(out, out.contains("All 8 templates"));
+		
+		// The same templates compiled from scratch render the same as the incrementally compiled ones
+		TemplateGroup tg = new TemplateGroup(templateDir.getPath(), classDir.getPath(), tmpJavaDir.getPath());
+		TemplateGroup fresh = new TemplateGroup(templateDir.getPath(), new File(root, "freshclasses").getPath(), 
+				new File(root, "freshjava").getPath());
+		for (String templateName : p.stringPropertyNames()) {
+			assertEquals(render(fresh, templateName), render(tg, templateName));
+		}
+	}
+	
+	private static String render(TemplateGroup tg, String templateName) {
+		Map<String, Object> foo = new HashMap<String, Object>();
+		foo.put("storeid", "10101");
+		StringWriter w = new StringWriter();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), w);
+		return w.toString();
+	}
+	
+	@Test
+	public void reloadDependentsTest() throws Exception {
+		File root = new File("target/tests/reload");
+		File templateDir = copyLayoutTemplates(root).getParentFile();
+		TemplateGroup tg = new TemplateGroup(templateDir.getPath(), new File(root, "classes").getPath(), 
+				new File(root, "java").getPath());
+		Template unrelated = tg.getTemplate("layouttest/pagewithoutlayout.html");
+		Template extended = tg.getTemplate("layouttest/myextendedlayout.html");
+		
+		// pagewithlayoutext inherits its layout through the pagewithlayout it extends
+		assertEquals(Arrays.asList("layouttest/mylayout.html", "layouttest/myextendedlayout.html", 
+				"layouttest/pagewithlayout.html", "layouttest/pagewithextendedlayout.html", 
+				"layouttest/pagewithlayoutext.html", "layouttest/pagewithnewlayoutext.html"),
+				tg.getDependencyGraph().getTransitiveDependents("layouttest/mylayout.html"));
+		
+		editTemplate(new File(templateDir, "layouttest/mylayout.html"), "This is my layout", "This is my edited layout");
+		tg.updateSingleTemplate("layouttest/mylayout.html");
+		
+		assertSame(unrelated, tg.getTemplate("layouttest/pagewithoutlayout.html"));
+		assertNotSame(extended, tg.getTemplate("layouttest/myextendedlayout.html"));
+		assertTrue(render(tg, "layouttest/pagewithlayout.html").contains("This is my edited layout"));
+		assertTrue(render(tg, "layouttest/pagewithextendedlayout.html").contains("This is my edited layout"));
+	}
+	
+	@Test
+	public void inMemoryCompileTest() throws Exception {
+		File root = new File("target/tests/memory");
+		File layoutDir = copyLayoutTemplates(root);
+		File templateDir = layoutDir.getParentFile();
+		TemplateGroup memory = new TemplateGroup(templateDir.getPath());
+		TemplateGroup disk = new TemplateGroup(templateDir.getPath(), new File(root, "classes").getPath(), 
+				new File(root, "java").getPath());
+		assertNull(memory.getTemplateClassDir());
+		assertNull(memory.getGenTmpDir());
+		
+		List<String> templateNames = TemplateUtil.getTemplateNames(templateDir);
+		assertEquals(9, templateNames.size());
+		for (String templateName : templateNames) {
+			assertEquals(render(disk, templateName), render(memory, templateName));
+		}
+		assertTrue(render(memory, "layouttest/pagewithextendedlayout.html").contains("Extended block with 10101"));
+		// The references are taken from the manifest of the class directory or parsed from the templates
+		assertEquals(disk.getDependencyGraph().getTransitiveDependents("layouttest/mylayout.html"), 
+				memory.getDependencyGraph().getTransitiveDependents("layouttest/mylayout.html"));
+		
+		// Templates reloaded in memory are compiled against the classes of the templates that were not changed
+		Template unrelated = memory.getTemplate("layouttest/pagewithoutlayout.html");
+		editTemplate(new File(layoutDir, "pagewithlayout.html"), "This block definition is from pagewithlayout", 
+				"This block definition was edited");
+		memory.updateSingleTemplate("layouttest/pagewithlayout.html");
+		assertSame(unrelated, memory.getTemplate("layouttest/pagewithoutlayout.html"));
+		assertTrue(render(memory, "layouttest/pagewithlayout.html").contains("This block definition was edited"));
+		assertEquals(render(memory, "layouttest/pagewithlayout.html").replace("This block definition was edited", ""), 
+				render(disk, "layouttest/pagewithlayout.html").replace("This block definition is from pagewithlayout", ""));
+	}
+
+	@Test
+	public void interruptedCompileTest() throws Exception {
+		File templateDir = copyLayoutTemplates(new File("target/tests/interrupted")).getParentFile();
+		List<String> templateNames = TemplateUtil.getTemplateNames(templateDir);
+		List<Exception> exceptionList = new ArrayList<Exception>();
+		Map<String, byte[]> classes;
+		Thread.currentThread().interrupt();
+		try {
+			classes = TemplateUtil.compileInMemory(templateNames, templateDir, getClass().getClassLoader(),
+					null, exceptionList);
+		} finally {
+			assertTrue("interrupt status should be restored", Thread.interrupted());
+		}
+		assertEquals(1, exceptionList.size());
+		assertTrue(exceptionList.get(0) instanceof InterruptedException);
+		assertTrue("interrupted templates should not be compiled", classes.isEmpty());
+	}
+
+	@Test
+	public void failedReloadTest() throws Exception {
+		File root = new File("target/tests/failedreload");
+		File layoutDir = copyLayoutTemplates(root);
+		String templateName = "layouttest/pagewithoutlayout.html";
+		TemplateGroup memory = new TemplateGroup(layoutDir.getParent());
+		String expected = render(memory, templateName);
+
+		// A template that fails to compile keeps its previous class
+		Files.write(new File(layoutDir, "pagewithoutlayout.html").toPath(),
+				"{%extends \"layouttest/nosuchlayout.html\"%}".getBytes("UTF-8"));
+		memory.updateSingleTemplate(templateName);
+		assertEquals(expected, render(memory, templateName));
+
+		// Enough reloads to load the templates with a new class loader
+		for (int ix = 0; ix < 20; ix++) {
+			memory.updateSingleTemplate("layouttest/mynewlayout.html");
+		}
+		assertEquals(expected, render(memory, templateName));
+		File archiveFile = new File(root, "templates.jar");
+		memory.writeArchive(archiveFile, null);
+		assertEquals(expected, render(new TemplateGroup(archiveFile, "archived", null), templateName));
+	}
+
+	@Test
+	public void bytecodeGenerationTest() throws Exception {
+		File layoutDir = copyLayoutTemplates(new File("target/tests/bytecode"));
+		File templateDir = layoutDir.getParentFile();
+		TemplateGroup source = new TemplateGroup("templates");
+		TemplateGroup mixed = new TemplateGroup(templateDir.getPath());
+		TemplateUtil.setGenerateBytecode(true);
+		try {
+			TemplateGroup bytecode = new TemplateGroup("templates");
+			for (String templateName : TemplateUtil.getTemplateNames(new File("templates"))) {
+				if (templateName.startsWith("resourcetest/")) {
+					// Resources are fetched over the network
+					continue;
+				}
+				Template expected = source.getTemplate(templateName);
+				Template actual = bytecode.getTemplate(templateName);
+				assertNotNull(templateName, actual);
+				// Only the generated classes describe themselves with a TemplateInfo
+				assertEquals(templateName, TemplateInfo.class, actual.getClass().getDeclaredField("INFO").getType());
+				assertEquals(templateName, expected.getBlockNames(), actual.getBlockNames());
+				assertEquals(templateName, expected.getVariables(), actual.getVariables());
+				assertEquals(templateName, expected.getIncludes(), actual.getIncludes());
+				assertEquals(templateName, expected.getSuperTemplateName(), actual.getSuperTemplateName());
+				assertEquals(templateName, expected.getLayoutTemplateName(), actual.getLayoutTemplateName());
+				assertEquals(templateName, renderAll(source, templateName), renderAll(bytecode, templateName));
+			}
+			
+			// Generated classes extend classes compiled from source and the other way round
+			String leaf = "layouttest/pagewithnewlayoutext.html";
+			mixed.updateSingleTemplate(leaf);
+			assertEquals(renderAll(source, leaf), renderAll(mixed, leaf));
+			TemplateGroup mixedBytecode = new TemplateGroup(templateDir.getPath());
+			TemplateUtil.setGenerateBytecode(false);
+			mixedBytecode.updateSingleTemplate(leaf);
+			for (Field field : mixedBytecode.getTemplate(leaf).getClass().getDeclaredFields()) {
+				assertFalse("Not recompiled from source", "INFO".equals(field.getName()));
+			}
+			assertEquals(renderAll(source, leaf), renderAll(mixedBytecode, leaf));
+			TemplateUtil.setGenerateBytecode(true);
+			
+			// Edits are generated and loaded at once
+			TemplateGroup edited = new TemplateGroup(templateDir.getPath());
+			editTemplate(new File(layoutDir, "pagewithlayout.html"), "This block definition is from pagewithlayout", 
+					"This block definition was edited");
+			edited.updateSingleTemplate("layouttest/pagewithlayout.html");
+			assertTrue(render(edited, "layouttest/pagewithlayout.html").contains("This block definition was edited"));
+		} finally {
+			TemplateUtil.setGenerateBytecode(false);
+		}
+	}
+	
+	@Test
+	public void interpretedTemplateTest() throws Exception {
+		TemplateGroup compiled = new TemplateGroup("templates");
+		TemplateGroup interpreted = new TemplateGroup("templates");
+		interpreted.setPromotionThreshold(Integer.MAX_VALUE);
+		for (String templateName : TemplateUtil.getTemplateNames(new File("templates"))) {
+			if (templateName.startsWith("resourcetest/")) {
+				// Resources are fetched over the network
+				continue;
+			}
+			interpreted.updateSingleTemplate(templateName);
+			Template expected = compiled.getTemplate(templateName);
+			Template actual = interpreted.getTemplate(templateName);
+			assertTrue(templateName, actual instanceof InterpretedTemplate);
+			assertEquals(templateName, expected.getBlockNames(), actual.getBlockNames());
+			assertEquals(templateName, expected.getRGroupNames(), actual.getRGroupNames());
+			assertEquals(templateName, expected.getVariables(), actual.getVariables());
+			assertEquals(templateName, expected.getIncludes(), actual.getIncludes());
+			assertEquals(templateName, expected.getSuperTemplateName(), actual.getSuperTemplateName());
+			assertEquals(templateName, expected.getLayoutTemplateName(), actual.getLayoutTemplateName());
+			assertEquals(templateName, renderAll(compiled, templateName), renderAll(interpreted, templateName));
+		}
+		
+		// Edits render at once and are compiled when they are hot
+		File layoutDir = copyLayoutTemplates(new File("target/tests/interpreted"));
+		TemplateGroup edited = new TemplateGroup(layoutDir.getParent());
+		edited.setPromotionThreshold(3);
+		String templateName = "layouttest/pagewithlayout.html";
+		editTemplate(new File(layoutDir, "pagewithlayout.html"), "This block definition is from pagewithlayout", 
+				"This block definition was edited");
+		edited.updateSingleTemplate(templateName);
+		assertTrue(edited.getTemplate(templateName) instanceof InterpretedTemplate);
+		String output = render(edited, templateName);
+		assertTrue(output.contains("This block definition was edited"));
+		render(edited, templateName);
+		render(edited, templateName);
+		for (int i = 0; i < 300 && edited.getTemplate(templateName) instanceof InterpretedTemplate; i++) {
+			Thread.sleep(100);
+		}
+		assertFalse(edited.getTemplate(templateName) instanceof InterpretedTemplate);
+		assertEquals(output, render(edited, templateName));
+	}
+	
+	@Test
+	public void templateArchiveTest() throws Exception {
+		File root = new File("target/tests/archive");
+		File layoutDir = copyLayoutTemplates(root);
+		File cacheDir = new File(root, "cache");
+		String templateName = "layouttest/pagewithlayout.html";
+		TemplateUtil.setCacheDir(cacheDir);
+		try {
+			TemplateGroup compiled = new TemplateGroup(layoutDir.getParent());
+			File archiveFile = TemplateArchive.forTemplateGroup(cacheDir, layoutDir.getParentFile(), "").getArchiveFile();
+			assertTrue(archiveFile.isFile());
+			assertEquals(1, cacheDir.listFiles().length);
+			
+			// Nothing changed, the classes are loaded from the archive
+			archiveFile.setLastModified(1000000L);
+			TemplateGroup loaded = new TemplateGroup(layoutDir.getParent());
+			assertEquals(1000000L, archiveFile.lastModified());
+			assertEquals(render(compiled, templateName), render(loaded, templateName));
+			assertEquals(renderAll(compiled, "layouttest/pagewithnewlayoutext.html"), 
+					renderAll(loaded, "layouttest/pagewithnewlayoutext.html"));
+			
+			// An edited template replaces the archive
+			editTemplate(new File(layoutDir, "pagewithlayout.html"), "This block definition is from pagewithlayout", 
+					"This block definition was edited");
+			TemplateGroup edited = new TemplateGroup(layoutDir.getParent());
+			assertTrue(render(edited, templateName).contains("This block definition was edited"));
+			assertFalse(1000000L == archiveFile.lastModified());
+			archiveFile.setLastModified(1000000L);
+			assertEquals(render(edited, templateName), render(new TemplateGroup(layoutDir.getParent()), templateName));
+			assertEquals(1000000L, archiveFile.lastModified());
+		} finally {
+			TemplateUtil.setCacheDir(null);
+		}
+	}
+	
+	@Test
+	public void archivedTemplateGroupTest() throws Exception {
+		File archiveFile = new File("target/tests/aot/templates-0.2.jar");
+		delete(archiveFile.getParentFile());
+		TemplateGroup compiled = new TemplateGroup("templates");
+		compiled.writeArchive(archiveFile, "0.2");
+		assertEquals("0.2", new TemplateArchive(archiveFile).readManifest().getMainAttributes().getValue("Implementation-Version"));
+		
+		// The same templates give the same archive
+		File copy = new File(archiveFile.getParentFile(), "copy.jar");
+		compiled.writeArchive(copy, "0.2");
+		assertTrue(Arrays.equals(Files.readAllBytes(archiveFile.toPath()), Files.readAllBytes(copy.toPath())));
+		JarFile jar = new JarFile(archiveFile);
+		try {
+			for (JarEntry entry : Collections.list(jar.entries())) {
+				assertTrue(entry.getName(), entry.getTime() < archiveFile.lastModified() - 24 * 60 * 60 * 1000L);
+			}
+		} finally {
+			jar.close();
+		}
+		
+		TemplateGroup archived = new TemplateGroup(archiveFile, "archived", null);
+		assertEquals(compiled.getTemplateList(), archived.getTemplateList());
+		assertEquals(compiled.getPrioritizedTemplates("templateservicetest/home"), 
+				archived.getPrioritizedTemplates("templateservicetest/home"));
+		for (Object templateName : compiled.getTemplateList()) {
+			if (!((String) templateName).startsWith("resourcetest/")) {
+				assertEquals(renderAll(compiled, (String) templateName), renderAll(archived, (String) templateName));
+			}
+		}
+		
+		// The archive is loaded without the compiler on the class path
+		List<URL> urls = new ArrayList<URL>();
+		for (URL url : getClassPath()) {
+			if (!url.getPath().contains("jdt")) {
+				urls.add(url);
+			}
+		}
+		URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null);
+		try {
+			loader.loadClass("org.eclipse.jdt.internal.compiler.Compiler");
+			fail("The compiler is on the class path");
+		} catch (ClassNotFoundException e) {
+			// Expected
+		}
+		Class<?> groupClass = loader.loadClass(TemplateGroup.class.getName());
+		Object group = groupClass.getConstructor(File.class, String.class, groupClass).newInstance(archiveFile, "archived", null);
+		Map<String, Object> foo = new HashMap<String, Object>();
+		foo.put("storeid", "10101");
+		Object context = loader.loadClass(TemplateContextImpl.class.getName()).getConstructor(Map.class, groupClass)
+				.newInstance(foo, group);
+		StringWriter w = new StringWriter();
+		groupClass.getMethod("render", String.class, loader.loadClass(TemplateContext.class.getName()), Writer.class)
+				.invoke(group, "layouttest/pagewithnewlayoutext.html", context, w);
+		assertEquals(render(compiled, "layouttest/pagewithnewlayoutext.html"), w.toString());
+		
+		// A missing archive is rejected, a group that was loaded keeps its templates
+		try {
+			new TemplateGroup(new File(archiveFile.getParentFile(), "missing.jar"), "missing", null);
+			fail("The archive is missing");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		archiveFile.delete();
+		archived.update();
+		assertEquals(render(compiled, "layouttest/pagewithnewlayoutext.html"), 
+				render(archived, "layouttest/pagewithnewlayoutext.html"));
+		
+		// An archive generated by a different version of the engine is rejected the same way
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue(TemplateArchive.GENERATOR_ATTRIBUTE, "other");
+		new TemplateArchive(archiveFile).write(manifest, new HashMap<String, byte[]>(), new HashMap<String, byte[]>());
+		try {
+			new TemplateGroup(archiveFile, "other", null);
+			fail("The archive was generated by a different version");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		archived.update();
+		assertEquals(render(compiled, "layouttest/pagewithnewlayoutext.html"), 
+				render(archived, "layouttest/pagewithnewlayoutext.html"));
+	}
+	
+	/**
+	 * Return the class path of the tests, including the class path of the manifests of jars on the class path
+	 */
+	private static List<URL> getClassPath() throws Exception {
+		List<URL> urls = new ArrayList<URL>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			File f = new File(entry);
+			URL url = f.toURI().toURL();
+			urls.add(url);
+			if (f.isFile()) {
+				JarFile jar = new JarFile(f);
+				try {
+					Manifest manifest = jar.getManifest();
+					String classPath = (null == manifest) ? null : manifest.getMainAttributes().getValue("Class-Path");
+					if (null != classPath) {
+						for (String path : classPath.trim().split("\\s+")) {
+							urls.add(new URL(url, path));
+						}
+					}
+				} finally {
+					jar.close();
+				}
+			}
+		}
+		return urls;
+	}
+	
+	/**
+	 * Render a template with the values the templates of the test directory refer to, both through a 
+	 * character writer and through a byte stream
+	 */
+	private static String renderAll(TemplateGroup tg, String templateName) throws Exception {
+		Map<String, Object> foo = new HashMap<String, Object>();
+		Map<String, Object> amap = new LinkedHashMap<String, Object>();
+		amap.put("a", 1);
+		amap.put("b", "two");
+		foo.put("storeid", "10101");
+		foo.put("List", Arrays.asList("Hello", "Abcd", "Foobar"));
+		foo.put("ints", new int[] {1, 2, 3});
+		foo.put("longs", new long[] {4L, 5L});
+		foo.put("amap", amap);
+		foo.put("strs", new String[] {"x", "y"});
+		StringWriter w = new StringWriter();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), w);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tg.render(templateName, new TemplateContextImpl(foo, tg), out);
+		return w.toString() + "|" + new String(out.toByteArray(), "UTF-8");
+	}
+	
+	private static String compileIncremental(File templateDir, File tmpJavaDir, File classDir) {
+		return compileIncremental(templateDir, tmpJavaDir, classDir, null);
+	}
+	
+	private static String compileIncremental(File templateDir, File tmpJavaDir, File classDir, String compiledAgainst) {
+		StringWriter out = new StringWriter();
+		List<Exception> exceptionList = new ArrayList<Exception>();
+		TemplateUtil.compileIncremental(templateDir, tmpJavaDir, classDir, new PrintWriter(out, true), 
+				new PrintWriter(new StringWriter(), true), exceptionList, null, compiledAgainst);
+		assertEquals("Unexpected exceptions " + exceptionList, 0, exceptionList.size());
+		return out.toString();
+	}
+	
+	/**
+	 * Copy the layout test templates into the templates directory of an emptied test directory
+	 * @return the directory of the copied layout templates
+	 */
+	private static File copyLayoutTemplates(File root) throws IOException {
+		delete(root);
+		File layoutDir = new File(root, "templates/layouttest");
+		layoutDir.mkdirs();
+		for (File template : new File("templates/layouttest").listFiles()) {
+			Files.copy(template.toPath(), new File(layoutDir, template.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return layoutDir;
+	}
+	
+	private static void editTemplate(File template, String from, String to) throws IOException {
+		String content = new String(Files.readAllBytes(template.toPath()), "UTF-8");
+		Files.write(template.toPath(), content.replace(from, to).getBytes("UTF-8"));
+	}
+	
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (null != files) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+	
 	@Test
 	public void patternTest() {
 	
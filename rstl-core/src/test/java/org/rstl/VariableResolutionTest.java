@@ -5,6 +5,9 @@
 package org.rstl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.StringWriter;
@@ -18,7 +21,9 @@ import org.antlr.runtime.CharStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.junit.Test;
+import org.rstl.context.PropertyAccessors;
 import org.rstl.context.TemplateContextImpl;
+import org.rstl.context.VarPath;
 
 public class VariableResolutionTest {
 	private static TemplateGroup tg = new TemplateGroup("templates", "target/testclasses", "target/testclasses");
@@ -157,6 +162,51 @@ public class VariableResolutionTest {
 
 		assertEquals("template result does not match", expectedResult, w.toString());
 	}
+	
+	@Test
+	public void testBeanAttributes() {
+		Map<String, Object> foo = new HashMap<String, Object>();
+		List<Object> items = new ArrayList<Object>();
+		items.add(new Item("first", null));
+		items.add(new Item("second", new Item("nested", null)));
+		foo.put("items", items);
+		TemplateContextImpl ctx = new TemplateContextImpl(foo, tg);
+		
+		VarPath name = VarPath.compile("items.0.name");
+		assertEquals("Failed to match head", "items", name.getHead());
+		assertEquals("Failed to match attribute count", 2, name.getAttributeCount());
+		assertTrue("Numeric attribute should be an index", name.isIndex(0));
+		assertFalse("Named attribute should not be an index", name.isIndex(1));
+		assertFalse("Too large to be an index", VarPath.compile("items.99999999999").isIndex(0));
+		assertSame("Shared references should be compiled once", VarPath.of("items.0.name"), VarPath.of("items.0.name"));
+		assertEquals("Failed to read bean attribute", "first", ctx.getString(name));
+		assertEquals("Failed to read bean attribute", "first", ctx.getString(name));
+		assertEquals("Failed to read nested bean attribute", "nested", ctx.getString("items.1.child.name"));
+		assertEquals("Missing bean attribute should be empty", "", ctx.getString("items.0.nosuchattr"));
+		
+		// Same reference against a different class of bean
+		foo.put("items", new Object[] {new OtherItem("other")});
+		assertEquals("Failed to read bean attribute", "other", ctx.getString(name));
+	}
+	
+	@Test
+	public void testPropertyAccessors() {
+		Map<String, Object> foo = new HashMap<String, Object>();
+		foo.put("item", new OtherItem("other"));
+		TemplateContextImpl ctx = new TemplateContextImpl(foo, tg);
+		
+		assertEquals("Failed to read boolean attribute", "true", ctx.getString("item.available"));
+		assertEquals("Failed to read public field", "42", ctx.getString("item.quantity"));
+		
+		assertEquals("Missing bean attribute should be empty", "", ctx.getString("item.nosuchattr"));
+		long misses = PropertyAccessors.getMisses();
+		long hits = PropertyAccessors.getHits();
+		// A separately compiled reference does not share the inline cache of the first one
+		assertEquals("Missing bean attribute should be empty", "", ctx.getString(VarPath.compile("item.nosuchattr")));
+		assertEquals("Missing property should be cached", misses, PropertyAccessors.getMisses());
+		assertEquals("Missing property should be cached", hits + 1, PropertyAccessors.getHits());
+		assertFalse("Property should not exist", PropertyAccessors.getAccessor(OtherItem.class, "nosuchattr").exists());
+	}
 		
 	private RSTLParser createParser(String testString) throws IOException {
 		CharStream stream = new ANTLRStringStream(testString);
@@ -166,4 +216,39 @@ public class VariableResolutionTest {
 		return parser;
 	}
 
+	public static class Item {
+		private String name;
+		private Item child;
+		
+		public Item(String name, Item child) {
+			this.name = name;
+			this.child = child;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public Item getChild() {
+			return child;
+		}
+	}
+	
+	public static class OtherItem {
+		private String name;
+		public int quantity = 42;
+		
+		public OtherItem(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public boolean isAvailable() {
+			return true;
+		}
+	}
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.rstl.TemplateGroup;
+import org.rstl.TemplateUtil;
+
+/**
+ * Compile a directory of templates at build time into a jar of template
+ * classes, along with the template map and the priorities of the templates.
+ * The jar is loaded at runtime with
+ * {@link TemplateGroup#TemplateGroup(File, String, TemplateGroup)}, which does
+ * not compile anything and does not need the compiler on the class path.
+ */
+@Mojo(name = "compile-templates", defaultPhase = LifecyclePhase.PROCESS_CLASSES)
+public class CompileTemplatesMojo extends AbstractMojo {
+	/**
+	 * The directory of the templates
+	 */
+	@Parameter(defaultValue = "${basedir}/src/main/templates", required = true)
+	private File templateDirectory;
+
+	/**
+	 * The jar of template classes to write
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}-templates.jar", required = true)
+	private File archiveFile;
+
+	/**
+	 * The version recorded in the jar
+	 */
+	@Parameter(defaultValue = "${project.version}")
+	private String version;
+
+	/**
+	 * The name of the template group
+	 */
+	@Parameter(defaultValue = "")
+	private String groupName;
+
+	/**
+	 * Generate the template classes as bytecode instead of compiling generated
+	 * Java source
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean generateBytecode;
+
+	/**
+	 * Fail the build if a template does not compile
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean failOnError;
+
+	/**
+	 * Attach the jar to the project, so it is installed and deployed with the
+	 * project
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean attach;
+
+	/**
+	 * The classifier of the attached jar
+	 */
+	@Parameter(defaultValue = "templates")
+	private String classifier;
+
+	@Parameter(defaultValue = "${project}", readonly = true, required = true)
+	private MavenProject project;
+
+	@Component
+	private MavenProjectHelper projectHelper;
+
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (!templateDirectory.isDirectory()) {
+			getLog().info("No templates in " + templateDirectory);
+			return;
+		}
+		// The setting is global, the build may run other executions in the same JVM
+		boolean wasGenerateBytecode = TemplateUtil.isGenerateBytecode();
+		TemplateUtil.setGenerateBytecode(generateBytecode);
+		try {
+			TemplateGroup group = new TemplateGroup(templateDirectory.getPath(), null, null,
+					(null == groupName) ? "" : groupName, null);
+			List<String> templateNames = TemplateUtil.getTemplateNames(templateDirectory);
+			Set<Object> compiled = group.getTemplateList();
+			List<String> failed = new ArrayList<String>();
+			for (String templateName : templateNames) {
+				if (!compiled.contains(templateName)) {
+					failed.add(templateName);
+				}
+			}
+			if (!failed.isEmpty()) {
+				if (failOnError) {
+					throw new MojoFailureException("Failed to compile the templates " + failed);
+				}
+				getLog().warn("Failed to compile the templates " + failed);
+			}
+			group.writeArchive(archiveFile, version);
+			getLog().info("Compiled " + compiled.size() + " templates into " + archiveFile);
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to write " + archiveFile, e);
+		} finally {
+			TemplateUtil.setGenerateBytecode(wasGenerateBytecode);
+		}
+		if (attach && null != project) {
+			projectHelper.attachArtifact(project, "jar", classifier, archiveFile);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright IBM Corp. 2012
+ */
+
+package org.rstl.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Test;
+import org.rstl.TemplateGroup;
+import org.rstl.TemplateUtil;
+import org.rstl.context.TemplateContextImpl;
+
+public class CompileTemplatesMojoTest {
+
+	@Test
+	public void compileTemplatesTest() throws Exception {
+		File root = new File("target/tests/mojo");
+		File templateDir = new File(root, "templates");
+		File archiveFile = new File(root, "templates.jar");
+		delete(root);
+		templateDir.mkdirs();
+		Files.write(new File(templateDir, "hello.html").toPath(), "Hello {{name}}".getBytes("UTF-8"));
+
+		TemplateUtil.setGenerateBytecode(true);
+		try {
+			createMojo(templateDir, archiveFile).execute();
+			assertTrue("The setting of the build is restored", TemplateUtil.isGenerateBytecode());
+		} finally {
+			TemplateUtil.setGenerateBytecode(false);
+		}
+		assertTrue(archiveFile.isFile());
+
+		// The archive is loaded without compiling
+		TemplateGroup archived = new TemplateGroup(archiveFile, "archived", null);
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("name", "world");
+		StringWriter w = new StringWriter();
+		archived.render("hello.html", new TemplateContextImpl(context, archived), w);
+		assertEquals("Hello world", w.toString());
+
+		// A template that does not compile fails the build
+		Files.write(new File(templateDir, "broken.html").toPath(),
+				"{%extends \"nosuchtemplate.html\"%}".getBytes("UTF-8"));
+		try {
+			createMojo(templateDir, new File(root, "broken.jar")).execute();
+			fail("broken.html does not compile");
+		} catch (MojoFailureException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("broken.html"));
+		}
+		assertFalse(new File(root, "broken.jar").exists());
+	}
+
+	private static CompileTemplatesMojo createMojo(File templateDir, File archiveFile) throws Exception {
+		CompileTemplatesMojo mojo = new CompileTemplatesMojo();
+		set(mojo, "templateDirectory", templateDir);
+		set(mojo, "archiveFile", archiveFile);
+		set(mojo, "version", "0.2");
+		set(mojo, "groupName", "");
+		set(mojo, "failOnError", true);
+		set(mojo, "attach", false);
+		return mojo;
+	}
+
+	private static void set(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (null != files) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}